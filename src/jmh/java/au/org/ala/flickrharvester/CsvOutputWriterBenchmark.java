@@ -0,0 +1,69 @@
+package au.org.ala.flickrharvester;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second through {@link CsvOutputWriter} to a real file, checkpointing once a second as a harvest does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvOutputWriterBenchmark {
+    private static final int ROWS_PER_PAGE = 100;
+
+    private List<String[]> page;
+    private Path dir;
+    private PageLedger ledger;
+    private CsvOutputWriter writer;
+    private int pageNumber;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        DwcRecordMapper mapper = new DwcRecordMapper(SyntheticPhotos.LICENSES);
+        page = new ArrayList<>(ROWS_PER_PAGE);
+        for (int i = 0; i < ROWS_PER_PAGE; i++) {
+            String[] record = DwcRecordMapper.newRecord();
+            mapper.map(SyntheticPhotos.photo(4000000000L + i), record);
+            page.add(record);
+        }
+        dir = Files.createTempDirectory("writer-benchmark");
+        ledger = PageLedger.open(dir.resolve("out.csv.ledger"), false);
+        writer = new CsvOutputWriter(dir.resolve("out.csv"), Config.CSV_FIELD_LIST, ledger);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        writer.close();
+        ledger.close();
+        Files.delete(dir.resolve("out.csv"));
+        Files.delete(dir.resolve("out.csv.ledger"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_PAGE)
+    public void writePage() throws Exception {
+        writer.write(Integer.toString(++pageNumber), page);
+    }
+}
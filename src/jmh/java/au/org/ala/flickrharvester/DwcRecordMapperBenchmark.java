@@ -0,0 +1,125 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Per-photo Darwin Core mapping: {@link DwcRecordMapper} against the HashMap based mapping it replaced, kept here
+ * verbatim as the baseline. Scores are nanoseconds per photo; run with {@code -prof gc} for bytes per photo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DwcRecordMapperBenchmark {
+    private static final int PHOTOS = 100;
+
+    private List<Photo> photos;
+    private DwcRecordMapper mapper;
+    private String[] record;
+
+    @Setup
+    public void setUp() {
+        photos = new ArrayList<>(PHOTOS);
+        for (int i = 0; i < PHOTOS; i++) {
+            photos.add(SyntheticPhotos.photo(4000000000L + i));
+        }
+        mapper = new DwcRecordMapper(SyntheticPhotos.LICENSES);
+        record = DwcRecordMapper.newRecord();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHOTOS)
+    public void recordMapper(Blackhole blackhole) throws FlickrException {
+        for (Photo photo : photos) {
+            mapper.map(photo, record);
+            blackhole.consume(record);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PHOTOS)
+    public void legacyHashMap(Blackhole blackhole) throws FlickrException {
+        for (Photo photo : photos) {
+            blackhole.consume(legacyMap(photo, SyntheticPhotos.LICENSES));
+        }
+    }
+
+    private static Map<String, String> legacyMap(Photo photoInfo, Map<String, String> licenseMap) throws FlickrException {
+        Map<String, String> dwcMap = new HashMap();
+        dwcMap.put("basisOfRecord", "Image");
+        final String license = licenseMap.get(photoInfo.getLicense());
+        dwcMap.put("dcterms:accessRights", license);
+
+        String photoUrl = photoInfo.getUrl().replaceAll("://f", "://www.f");
+        photoUrl += (!photoUrl.endsWith("/"))?"/":null;
+        dwcMap.put("occurrenceID", photoUrl);
+
+        dwcMap.put("userId", photoInfo.getOwner().getId());
+        dwcMap.put("associatedMedia", photoInfo.getOriginalUrl());
+        if (photoInfo.getDateTaken() != null) {
+            dwcMap.put("eventDate", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(photoInfo.getDateTaken()));
+        }
+        dwcMap.put("occurrenceRemarks", photoInfo.getDescription());
+
+        if (photoInfo.getDescription() != null){
+            Pattern bhlPattern = Pattern.compile("http://www.biodiversitylibrary.org/page/\\d+");
+            Matcher matcher = bhlPattern.matcher(photoInfo.getDescription());
+            dwcMap.put("occurrenceDetails", (matcher.find())?matcher.group():null);
+        }
+        if (dwcMap.get("occurrenceDetails") == null)
+            dwcMap.put("occurrenceDetails", photoUrl);
+
+        dwcMap.put("recordedBy", (photoInfo.getOwner().getRealName() != null)? photoInfo.getOwner().getRealName() : photoInfo.getOwner().getUsername());
+        dwcMap.put("license", license);
+
+        if (photoInfo.getGeoData() != null){
+            dwcMap.put("decimalLatitude", photoInfo.getGeoData().getLatitude()+"");
+            dwcMap.put("decimalLongitude", photoInfo.getGeoData().getLongitude()+"");
+            dwcMap.put("coordinateUncertaintyInMeters", photoInfo.getGeoData().getAccuracy()+"");
+        }
+
+        dwcMap.put("country", (photoInfo.getCountry() != null )? photoInfo.getCountry().getName() : null);
+        dwcMap.put("locality", (photoInfo.getLocality() != null )? photoInfo.getLocality().getName() : null);
+        dwcMap.put("stateProvince", (photoInfo.getRegion() != null )? photoInfo.getRegion().getName() : null);
+
+        if(photoInfo.getLocality() == null && photoInfo.getOwner().getLocation() != null)
+            dwcMap.put("locality", photoInfo.getOwner().getLocation());
+
+        photoInfo.getTags().forEach(tag -> {
+            Pattern machineTagPattern = Pattern.compile("(.+):(.+)=(.+)");
+            Matcher matcher = machineTagPattern.matcher(tag.getValue());
+            if(matcher.find()){
+
+                if (Stream.of(Config.ALLOWED_TAGS).anyMatch(x ->  x.equalsIgnoreCase(matcher.group(2)))) {
+                    dwcMap.put(matcher.group(2), matcher.group(3));
+                }
+            }
+        });
+        return dwcMap;
+    }
+}
@@ -0,0 +1,125 @@
+package au.org.ala.flickrharvester;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A whole harvest, through {@link FlickrHarvester#main} as run from the command line, of a {@link FlickrStandIn}
+ * serving synthetic photos with the given latency and error rate. Scores are seconds per harvest, one harvest per
+ * fork as the harvester registers its MBeans once per process, e.g. for a million photos over both engines:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="HarvestLoad -p photos=1000000 -p engine=inprocess,jms"
+ * </pre>
+ * The record index is on as it is by default, and the peak heap is reported along with its size, so that a run of
+ * several million photos in a small heap shows it isn't on the heap:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="HarvestLoad -p photos=5000000 -p latencyMillis=0 -p errorRate=0 -jvmArgs -Xmx512m"
+ * </pre>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HarvestLoadBenchmark {
+
+    @Param("100000")
+    public long photos;
+
+    @Param("50")
+    public long latencyMillis;
+
+    @Param("0.01")
+    public double errorRate;
+
+    @Param("inprocess")
+    public String engine;
+
+    @Param("32")
+    public int threads;
+
+    @Param("250")
+    public int perPage;
+
+    @Param("csv")
+    public String outputFormat;
+
+    @Param("true")
+    public boolean dedupIndex;
+
+    private FlickrStandIn flickr;
+    private Path dir;
+    private Path config;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        flickr = new FlickrStandIn(photos, latencyMillis, errorRate, 0);
+        dir = Files.createTempDirectory("harvest-load");
+        Map<String, String> settings = new HashMap<>();
+        settings.put("flickr.per_page", Integer.toString(perPage));
+        settings.put("flickr.max_attempts", "10");
+        settings.put("collectory.dedup_index", Boolean.toString(dedupIndex));
+        config = flickr.writeConfig(dir.resolve("config.properties"), settings);
+    }
+
+    @Benchmark
+    public void harvest() throws Exception {
+        FlickrHarvester.main("-c", config.toString(), "-od", dir + "/", "-sf", dir.resolve("state").toString(), "-e", engine,
+                "-t", Integer.toString(threads), "-ff", outputFormat);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        flickr.close();
+        System.out.println();
+        System.out.println(flickr.getCallCount() + " Flickr calls, " + flickr.getFailureCount() + " failed");
+        Path csv = dir.resolve("flickr.dwc.csv");
+        if (Files.exists(csv)) {
+            long rows;
+            try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+                rows = reader.lines().count() - 1;
+            }
+            System.out.println(rows + " rows written of " + photos + " photos");
+        }
+        Path index = dir.resolve("state.index");
+        if (Files.exists(index)) {
+            System.out.println("Record index of " + Files.size(index) / (1 << 20) + " MB");
+        }
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println(peakHeap / (1 << 20) + " MB peak heap of " + Runtime.getRuntime().maxMemory() / (1 << 20) + " MB");
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
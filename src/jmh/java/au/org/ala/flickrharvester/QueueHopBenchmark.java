@@ -0,0 +1,93 @@
+package au.org.ala.flickrharvester;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving one page of mapped rows between stages: as a JMS ObjectMessage through the embedded broker
+ * (the jms engine) against a bounded in-memory queue (the inprocess engine). Scores are rows per second; run
+ * with {@code -prof gc} to compare allocation per row.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueueHopBenchmark {
+    private static final int ROWS_PER_PAGE = 100;
+
+    private List<String[]> page;
+    private ArrayList<String[]> jmsBody;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private MessageConsumer consumer;
+    private BlockingQueue<List<String[]>> queue;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        DwcRecordMapper mapper = new DwcRecordMapper(SyntheticPhotos.LICENSES);
+        page = new ArrayList<>(ROWS_PER_PAGE);
+        jmsBody = new ArrayList<>(ROWS_PER_PAGE);
+        for (int i = 0; i < ROWS_PER_PAGE; i++) {
+            String[] record = DwcRecordMapper.newRecord();
+            mapper.map(SyntheticPhotos.photo(4000000000L + i), record);
+            page.add(record);
+            jmsBody.add(record);
+        }
+
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://benchmark?broker.persistent=false&broker.useJmx=false");
+        connectionFactory.setTrustAllPackages(true);
+        connection = connectionFactory.createConnection();
+        connection.start();
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        producer = session.createProducer(session.createQueue("output.csv"));
+        consumer = session.createConsumer(session.createQueue("output.csv"));
+
+        queue = new ArrayBlockingQueue<>(16);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_PAGE)
+    @SuppressWarnings("unchecked")
+    public List<String[]> jmsObjectMessage() throws Exception {
+        producer.send(session.createObjectMessage(jmsBody));
+        return (List<String[]>) ((ObjectMessage) consumer.receive()).getObject();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_PAGE)
+    public List<String[]> boundedQueue() throws Exception {
+        queue.put(page);
+        return queue.take();
+    }
+}
@@ -0,0 +1,120 @@
+package au.org.ala.flickrharvester;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes rows to an Avro container file. Every term is an optional string field, so the many terms a photo
+ * leaves empty take a single byte each, and blocks are deflated, which collapses values that repeat from row to
+ * row such as license, country and recordedBy. The original term name is kept on each field as {@code term},
+ * since names like {@code dcterms:accessRights} are not valid Avro names.
+ * <p>
+ * Checkpoints end the current block, so a committed offset always falls on a block boundary and the file can be
+ * cut back and appended to on {@code --resume}.
+ * <p>
+ * Not thread safe: it is meant to be driven by a single writer thread.
+ */
+public class AvroOutputWriter implements OutputSink {
+    private static final Logger log = LoggerFactory.getLogger(AvroOutputWriter.class);
+
+    static final String TERM_PROPERTY = "term";
+    private static final int DEFLATE_LEVEL = 6;
+
+    private final Path outputPath;
+    private final PageLedger ledger;
+    private final long checkpointMillis;
+    private final DataFileWriter<GenericRecord> writer;
+    private final GenericData.Record record;
+    private final List<String> pendingKeys = new ArrayList<>();
+    private long lastCheckpoint;
+    // read by the harvest metrics from other threads
+    private volatile long rowCount;
+
+    public AvroOutputWriter(Path outputPath, List<String> header, PageLedger ledger) throws IOException {
+        this(outputPath, header, ledger, CsvOutputWriter.DEFAULT_CHECKPOINT_MILLIS);
+    }
+
+    /**
+     * Appends to an existing file, taking its schema and codec, or creates a new one for the header's terms.
+     */
+    public AvroOutputWriter(Path outputPath, List<String> header, PageLedger ledger, long checkpointMillis) throws IOException {
+        this.outputPath = outputPath;
+        this.ledger = ledger;
+        this.checkpointMillis = checkpointMillis;
+        Schema schema = schema(header);
+        this.writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(schema));
+        if (Files.exists(outputPath) && Files.size(outputPath) > 0) {
+            writer.appendTo(outputPath.toFile());
+        } else {
+            writer.setCodec(CodecFactory.deflateCodec(DEFLATE_LEVEL));
+            writer.create(schema, outputPath.toFile());
+        }
+        // records are encoded as they are appended, so one can be refilled for every row
+        this.record = new GenericData.Record(schema);
+        this.lastCheckpoint = System.currentTimeMillis();
+    }
+
+    static Schema schema(List<String> terms) {
+        SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record("Occurrence")
+                .namespace("au.org.ala.flickrharvester")
+                .doc("A Darwin Core occurrence harvested from Flickr")
+                .fields();
+        for (String term : terms) {
+            fields = fields.name(term.replaceAll("[^A-Za-z0-9_]", "_")).prop(TERM_PROPERTY, term).type().optional().stringType();
+        }
+        return fields.endRecord();
+    }
+
+    @Override
+    public void write(String key, List<String[]> rows) throws IOException {
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                record.put(i, row[i]);
+            }
+            writer.append(record);
+        }
+        rowCount += rows.size();
+        pendingKeys.add(key);
+        if (System.currentTimeMillis() - lastCheckpoint >= checkpointMillis) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        writer.fSync();
+        if (!pendingKeys.isEmpty()) {
+            ledger.written(pendingKeys, Files.size(outputPath));
+            pendingKeys.clear();
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+            log.info("Wrote {} rows to {}", rowCount, outputPath);
+        } finally {
+            writer.close();
+        }
+    }
+}
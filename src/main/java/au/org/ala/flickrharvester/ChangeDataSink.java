@@ -0,0 +1,176 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes only what changed since the previous harvest, as three outputs next to where the snapshot would go:
+ * {@code <output>.added} for records the {@link RecordIndex} hasn't come across before, {@code <output>.updated}
+ * for records whose content changed, and {@code <output>.removed} for records to withdraw, with only their unique
+ * key terms filled in. A record whose license changed is withdrawn and added again under its new license, and the
+ * records that have left the group are withdrawn by {@link #writeRemoved()} once a full harvest is over.
+ * <p>
+ * Rows are classified as they stream through the writer thread, so there is no pass over the output afterwards.
+ * Each output has a ledger of its own, and a page is only committed to the harvest's ledger once all three outputs
+ * have checkpointed it.
+ */
+public class ChangeDataSink implements OutputSink {
+    private static final Logger log = LoggerFactory.getLogger(ChangeDataSink.class);
+
+    public static final String ADDED = "added";
+    public static final String UPDATED = "updated";
+    public static final String REMOVED = "removed";
+    private static final String UNSEEN_KEY = "unseen";
+    private static final int ROWS_PER_BATCH = 1000;
+
+    private final RecordIndex index;
+    private final int[] keyColumns;
+    private final PageLedger ledger;
+    private final List<Path> ledgerPaths = new ArrayList<>();
+    private final List<PageLedger> ledgers = new ArrayList<>();
+    private final OutputSink added;
+    private final OutputSink updated;
+    private final OutputSink removed;
+    private final List<String[]> addedRows = new ArrayList<>();
+    private final List<String[]> updatedRows = new ArrayList<>();
+    private final List<String[]> removedRows = new ArrayList<>();
+    private final List<String> pendingKeys = new ArrayList<>();
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    /**
+     * Replaces any change outputs of an earlier run.
+     *
+     * @param ledger the harvest's ledger, which pages are committed to once all three outputs hold them
+     */
+    public ChangeDataSink(Path output, OutputFormat format, RecordIndex index, int[] keyColumns, PageLedger ledger) throws IOException {
+        this.index = index;
+        this.keyColumns = keyColumns;
+        this.ledger = ledger;
+        this.added = open(changePath(output, format, ADDED), format);
+        this.updated = open(changePath(output, format, UPDATED), format);
+        this.removed = open(changePath(output, format, REMOVED), format);
+    }
+
+    /**
+     * @return where the records of one kind of change go, {@code flickr.dwc.added.csv} for {@code flickr.dwc.csv}
+     */
+    public static Path changePath(Path output, OutputFormat format, String change) {
+        return output.resolveSibling(format.baseName(output) + "." + change + format.suffix);
+    }
+
+    private OutputSink open(Path path, OutputFormat format) throws IOException {
+        Files.deleteIfExists(path);
+        Path ledgerPath = Paths.get(path + ".ledger");
+        PageLedger own = PageLedger.open(ledgerPath, false);
+        ledgerPaths.add(ledgerPath);
+        ledgers.add(own);
+        return format.open(path, Config.CSV_FIELD_LIST, own);
+    }
+
+    @Override
+    public void write(String key, List<String[]> rows) throws IOException {
+        addedRows.clear();
+        updatedRows.clear();
+        removedRows.clear();
+        for (String[] row : rows) {
+            if (!DeduplicatingSink.hasKey(row, keyColumns)) {
+                addedRows.add(row);
+                continue;
+            }
+            switch (index.classify(row, keyColumns)) {
+                case NEW:
+                    addedRows.add(row);
+                    break;
+                case CHANGED:
+                    updatedRows.add(row);
+                    break;
+                case RELICENSED:
+                    removedRows.add(keyRow(RecordIndex.keyText(row, keyColumns)));
+                    addedRows.add(row);
+                    break;
+                default:
+                    // unchanged, or already written by this run
+            }
+        }
+        added.write(key, addedRows);
+        updated.write(key, updatedRows);
+        removed.write(key, removedRows);
+        pendingKeys.add(key);
+        if (System.currentTimeMillis() - lastCheckpoint >= CsvOutputWriter.DEFAULT_CHECKPOINT_MILLIS) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Withdraws every record the index knows of that this run hasn't written, and forgets them. Only call this
+     * once a full harvest has written every page, or photos that were merely not reached are withdrawn too.
+     */
+    public void writeRemoved() throws IOException {
+        removedRows.clear();
+        index.removeUnseen(keyText -> {
+            if (keyText == null) {
+                return;
+            }
+            removedRows.add(keyRow(keyText));
+            if (removedRows.size() == ROWS_PER_BATCH) {
+                removed.write(UNSEEN_KEY, removedRows);
+                removedRows.clear();
+            }
+        });
+        removed.write(UNSEEN_KEY, removedRows);
+        removed.checkpoint();
+        log.info("{} records are no longer in the group", index.getRemovedCount());
+    }
+
+    /**
+     * A row with nothing but the key terms, split back out of their key text.
+     */
+    private String[] keyRow(String keyText) {
+        String[] row = DwcRecordMapper.newRecord();
+        String[] values = keyText.split("\t", -1);
+        for (int i = 0; i < keyColumns.length && i < values.length; i++) {
+            row[keyColumns[i]] = values[i].isEmpty() ? null : values[i];
+        }
+        return row;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        added.checkpoint();
+        updated.checkpoint();
+        removed.checkpoint();
+        if (!pendingKeys.isEmpty()) {
+            ledger.written(pendingKeys, -1);
+            pendingKeys.clear();
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getRowCount() {
+        return added.getRowCount() + updated.getRowCount() + removed.getRowCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        log.info("Changes since the previous harvest: {} added, {} updated, {} removed", added.getRowCount(), updated.getRowCount(),
+                removed.getRowCount());
+        added.close();
+        updated.close();
+        removed.close();
+        for (PageLedger own : ledgers) {
+            own.close();
+        }
+        for (Path ledgerPath : ledgerPaths) {
+            Files.deleteIfExists(ledgerPath);
+        }
+    }
+}
@@ -8,7 +8,9 @@ import java.io.File;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -49,7 +51,9 @@ public final class Config {
     public final String PRIVACY_FILTER;
     public final String CONTENT_TYPE;
     public final String[] UNIQUE_KEYS;
+    public final Boolean DEDUP_INDEX;
     public final String FLICKR_BASE_URL;
+    public final String TRANSPORT;
     public final Date MIN_UPLOAD_DATE;
     public final Date MAX_UPLOAD_DATE;
     public final Date MIN_TAKEN_DATE;
@@ -58,6 +62,39 @@ public final class Config {
     public final Date MAX_UPDATE_DATE;
     public final String DEFAULT_QUERY_STRING;
     public final String SHARED_SECRET;
+    public final Double RATE_LIMIT;
+    public final Integer RATE_BURST;
+    public final Integer PARTITION_MAX_RESULTS;
+    public final Boolean LOOKUP_OWNERS;
+    public final Boolean LOOKUP_PLACES;
+    public final Boolean PHOTO_INFO;
+    public final Integer PHOTO_INFO_THREADS;
+    public final Integer PHOTO_INFO_QUEUE;
+    public final Long CACHE_MAX_SIZE;
+    public final Long CACHE_MAX_DETAILS;
+    public final Integer CACHE_TTL_HOURS;
+    public final String CACHE_FILE;
+    public final Integer METRICS_PORT;
+    public final Integer METRICS_LOG_SECONDS;
+    public final Integer CONNECT_TIMEOUT_MILLIS;
+    public final Integer READ_TIMEOUT_MILLIS;
+    public final Integer MAX_ATTEMPTS;
+    public final Long RETRY_BASE_MILLIS;
+    public final Long RETRY_MAX_MILLIS;
+    /** What a run harvests, the one source of GROUP_ID, USER_ID and MACHINE_TAGS unless {@code flickr.sources} names others */
+    public final List<HarvestSource> SOURCES;
+    public final Boolean SEPARATE_SOURCE_OUTPUTS;
+    public final String MAPPING_FILE;
+    /** The mapping rules, compiled */
+    public final MappingPlan MAPPING;
+    public final Integer JMS_MIN_PAGES;
+    public final Long HEAP_BUDGET_MB;
+    public final Integer BYTES_PER_PHOTO;
+    public final Boolean MEDIA_VERIFY;
+    public final Integer MEDIA_THREADS;
+    public final Long MEDIA_MAX_BYTES_PER_SECOND;
+    public final Long MEDIA_MAX_BYTES;
+    public final String MEDIA_THUMBNAIL_DIR;
 
     public Config(String filePath) throws ConfigurationException, ParseException {
         Configurations configs = new Configurations();
@@ -67,6 +104,7 @@ public final class Config {
         SHARED_SECRET = config.getString("flickr.secret");
         CONTENT_TYPE = config.getString("flickr.content_type");
         FLICKR_BASE_URL = config.getString("flickr.baseUrl");
+        TRANSPORT = config.getString("flickr.transport", "json");
         MACHINE_TAGS = config.getStringArray("flickr.machine_tags");
         GROUP_ID = config.getString("flickr.group_id");
 
@@ -86,8 +124,52 @@ public final class Config {
         PER_PAGE = config.getInteger("flickr.per_page", 100);
         PRIVACY_FILTER = config.getString("flickr.privacy_filter");
         UNIQUE_KEYS = config.getStringArray("collectory.termsForUniqueKey");
+        DEDUP_INDEX = config.getBoolean("collectory.dedup_index", true);
         USER_ID = config.getString("flickr.user_id");
         EXTRAS = config.getStringArray("flickr.extras");
+        RATE_LIMIT = config.getDouble("flickr.rate_limit", 1.0);
+        RATE_BURST = config.getInteger("flickr.rate_burst", 5);
+        PARTITION_MAX_RESULTS = config.getInteger("flickr.partition_max_results", 4000);
+        LOOKUP_OWNERS = config.getBoolean("flickr.lookup_owners", false);
+        LOOKUP_PLACES = config.getBoolean("flickr.lookup_places", false);
+        PHOTO_INFO = config.getBoolean("flickr.photo_info", false);
+        PHOTO_INFO_THREADS = config.getInteger("flickr.photo_info_threads", 2);
+        PHOTO_INFO_QUEUE = config.getInteger("flickr.photo_info_queue", 4);
+        CACHE_MAX_SIZE = config.getLong("cache.max_size", 100000L);
+        CACHE_MAX_DETAILS = config.getLong("cache.max_details", 5000000L);
+        CACHE_TTL_HOURS = config.getInteger("cache.ttl_hours", 168);
+        CACHE_FILE = config.getString("cache.file", "");
+        METRICS_PORT = config.getInteger("metrics.port", 0);
+        METRICS_LOG_SECONDS = config.getInteger("metrics.log_seconds", 60);
+        CONNECT_TIMEOUT_MILLIS = config.getInteger("flickr.connect_timeout_millis", 30000);
+        READ_TIMEOUT_MILLIS = config.getInteger("flickr.read_timeout_millis", 60000);
+        MAX_ATTEMPTS = config.getInteger("flickr.max_attempts", 5);
+        RETRY_BASE_MILLIS = config.getLong("flickr.retry_base_millis", 2000L);
+        RETRY_MAX_MILLIS = config.getLong("flickr.retry_max_millis", 120000L);
+        List<HarvestSource> sources = new ArrayList<>();
+        for (String name : config.getString("flickr.sources", "").split("[,\\s]+")) {
+            if (!name.isEmpty()) {
+                String prefix = "flickr.source." + name + ".";
+                sources.add(new HarvestSource(name, config.getString(prefix + "group_id", ""), config.getString(prefix + "user_id", ""),
+                        config.getStringArray(prefix + "machine_tags")));
+            }
+        }
+        if (sources.isEmpty()) {
+            sources.add(new HarvestSource(null, GROUP_ID, USER_ID, MACHINE_TAGS));
+        }
+        SOURCES = Collections.unmodifiableList(sources);
+        SEPARATE_SOURCE_OUTPUTS = "separate".equalsIgnoreCase(config.getString("flickr.source_output", "merged"));
+        MAPPING_FILE = config.getString("mapping.file", "");
+        MAPPING = MappingPlan.load(MAPPING_FILE);
+        // 0 keeps auto in-process until the broker has been verified on the JDK in use
+        JMS_MIN_PAGES = config.getInteger("engine.jms_min_pages", 0);
+        HEAP_BUDGET_MB = config.getLong("memory.heap_budget_mb", 0L);
+        BYTES_PER_PHOTO = config.getInteger("memory.bytes_per_photo", 16384);
+        MEDIA_VERIFY = config.getBoolean("media.verify", false);
+        MEDIA_THREADS = config.getInteger("media.threads", 4);
+        MEDIA_MAX_BYTES_PER_SECOND = config.getLong("media.max_bytes_per_second", 2000000L);
+        MEDIA_MAX_BYTES = config.getLong("media.max_bytes", 50000000L);
+        MEDIA_THUMBNAIL_DIR = config.getString("media.thumbnail_dir", "");
 
 
         String defaultQueryString = "";
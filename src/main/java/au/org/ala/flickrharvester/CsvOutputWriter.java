@@ -0,0 +1,217 @@
+package au.org.ala.flickrharvester;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes rows as CSV. Rows are formatted into memory and written out with a single channel write once the
+ * buffer fills, instead of opening and appending to the file for every message.
+ * <p>
+ * Pages are only committed to the {@link PageLedger} at a checkpoint, after the file has been forced to disk,
+ * so a W entry never points past bytes that could still be lost. A checkpoint is taken when
+ * {@code checkpointMillis} have passed since the last one and when the writer is closed.
+ * <p>
+ * Compressed output is a series of gzip members or zstd frames, each closed at a checkpoint. Both formats
+ * allow them to be concatenated, so cutting the file back to a committed offset on {@code --resume} still
+ * leaves something every reader can decompress.
+ * <p>
+ * Not thread safe: it is meant to be driven by a single writer thread.
+ */
+public class CsvOutputWriter implements OutputSink {
+    private static final Logger log = LoggerFactory.getLogger(CsvOutputWriter.class);
+
+    static final CSVFormat CSV_FORMAT = CSVFormat.DEFAULT.withDelimiter(',').withQuote('"').withEscape('\\');
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    static final long DEFAULT_CHECKPOINT_MILLIS = 1000;
+    private static final int COMPRESSED_BLOCK_SIZE = 64 * 1024;
+
+    public enum Compression {
+        NONE, GZIP, ZSTD
+    }
+
+    private final Path outputPath;
+    private final PageLedger ledger;
+    private final FileChannel channel;
+    private final Compression compression;
+    private final int bufferSize;
+    private final long checkpointMillis;
+    private final StringBuilder text;
+    private final CSVPrinter printer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer bytes;
+    private final List<String> pendingKeys = new ArrayList<>();
+    private CharBuffer chars;
+    private OutputStream member;
+    /** Whether anything has gone to the file since it was last forced */
+    private boolean unforced;
+    private long lastCheckpoint;
+    // read by the harvest metrics from other threads
+    private volatile long rowCount;
+
+    public CsvOutputWriter(Path outputPath, List<String> header, PageLedger ledger) throws IOException {
+        this(outputPath, header, ledger, Compression.NONE);
+    }
+
+    public CsvOutputWriter(Path outputPath, List<String> header, PageLedger ledger, Compression compression) throws IOException {
+        this(outputPath, header, ledger, compression, DEFAULT_BUFFER_SIZE, DEFAULT_CHECKPOINT_MILLIS);
+    }
+
+    /**
+     * Opens the output for appending, writing the header if the file is new or empty.
+     *
+     * @param bufferSize       how many characters are held before they go to the file
+     * @param checkpointMillis how long written pages may wait to be forced to disk and committed
+     */
+    public CsvOutputWriter(Path outputPath, List<String> header, PageLedger ledger, Compression compression,
+                           int bufferSize, long checkpointMillis) throws IOException {
+        this.outputPath = outputPath;
+        this.ledger = ledger;
+        this.compression = compression;
+        this.bufferSize = bufferSize;
+        this.checkpointMillis = checkpointMillis;
+        this.text = new StringBuilder(bufferSize + bufferSize / 4);
+        this.printer = new CSVPrinter(text, CSV_FORMAT);
+        this.chars = CharBuffer.allocate(text.capacity());
+        // the compressors want arrays, a plain file is written straight from native memory
+        this.bytes = compression == Compression.NONE ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        this.channel = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        if (channel.size() == 0) {
+            printer.printRecord(header);
+            flush();
+        }
+        this.lastCheckpoint = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends a page's rows. The page is committed to the ledger at the next checkpoint.
+     */
+    @Override
+    public void write(String key, List<String[]> rows) throws IOException {
+        for (String[] row : rows) {
+            printer.printRecord((Object[]) row);
+            if (text.length() >= bufferSize) {
+                flush();
+            }
+        }
+        rowCount += rows.size();
+        pendingKeys.add(key);
+        if (System.currentTimeMillis() - lastCheckpoint >= checkpointMillis) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes out whatever is buffered, forces it to disk and commits every page written since the last checkpoint.
+     * The file is only forced when something has been written to it since the last time.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        flush();
+        if (member != null) {
+            member.close();
+            member = null;
+        }
+        if (unforced) {
+            channel.force(false);
+            unforced = false;
+        }
+        if (!pendingKeys.isEmpty()) {
+            ledger.written(pendingKeys, channel.position());
+            pendingKeys.clear();
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    private void flush() throws IOException {
+        int length = text.length();
+        if (length == 0) {
+            return;
+        }
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(length);
+        }
+        // copy into an array backed buffer, the encoder is much quicker on those than on a wrapped CharSequence.
+        // Calls through Buffer, Java 9 overrides them in CharBuffer and ByteBuffer and those aren't in Java 8
+        ((Buffer) chars).clear();
+        text.getChars(0, length, chars.array(), 0);
+        ((Buffer) chars).limit(length);
+        text.setLength(0);
+
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            drain();
+        } while (result.isOverflow());
+        while (encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+        drain();
+    }
+
+    private void drain() throws IOException {
+        ((Buffer) bytes).flip();
+        if (bytes.hasRemaining()) {
+            unforced = true;
+        }
+        if (compression == Compression.NONE) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } else if (bytes.hasRemaining()) {
+            if (member == null) {
+                member = openMember();
+            }
+            member.write(bytes.array(), bytes.position(), bytes.remaining());
+        }
+        ((Buffer) bytes).clear();
+    }
+
+    private OutputStream openMember() throws IOException {
+        // closing a member finishes it but must leave the file open for the next one
+        OutputStream file = new CloseShieldOutputStream(Channels.newOutputStream(channel));
+        if (compression == Compression.GZIP) {
+            return new GZIPOutputStream(file, COMPRESSED_BLOCK_SIZE);
+        }
+        return new ZstdOutputStream(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+            log.info("Wrote {} rows to {}", rowCount, outputPath);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package au.org.ala.flickrharvester;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts every row through a {@link RecordIndex} on its way to another sink, dropping the rows this run has already
+ * written. Records are identified by the {@code collectory.termsForUniqueKey} terms, the same ones the collectory
+ * uses to match records on ingestion.
+ */
+public class DeduplicatingSink implements OutputSink {
+
+    /**
+     * What the collectory calls the photo page link, which the harvester writes as occurrenceID
+     */
+    private static final String PHOTO_PAGE_URL = "photoPageUrl";
+
+    private final OutputSink sink;
+    private final RecordIndex index;
+    private final int[] keyColumns;
+    private final List<String[]> kept = new ArrayList<>();
+
+    public DeduplicatingSink(OutputSink sink, RecordIndex index, int[] keyColumns) {
+        this.sink = sink;
+        this.index = index;
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * @return the columns of {@link Config#CSV_FIELD_LIST} holding the unique key terms
+     * @throws IllegalArgumentException if a term isn't one the harvester writes
+     */
+    public static int[] keyColumns(String[] uniqueKeyTerms) {
+        if (uniqueKeyTerms == null || uniqueKeyTerms.length == 0) {
+            throw new IllegalArgumentException("No collectory.termsForUniqueKey configured");
+        }
+        int[] columns = new int[uniqueKeyTerms.length];
+        for (int i = 0; i < columns.length; i++) {
+            String term = PHOTO_PAGE_URL.equalsIgnoreCase(uniqueKeyTerms[i]) ? "occurrenceID" : uniqueKeyTerms[i];
+            columns[i] = Config.CSV_FIELD_LIST.indexOf(term);
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Unique key term " + uniqueKeyTerms[i] + " is not in the CSV field list");
+            }
+        }
+        return columns;
+    }
+
+    @Override
+    public void write(String key, List<String[]> rows) throws IOException {
+        kept.clear();
+        for (String[] row : rows) {
+            if (!hasKey(row, keyColumns) || index.classify(row, keyColumns) != RecordIndex.Status.DUPLICATE) {
+                kept.add(row);
+            }
+        }
+        sink.write(key, kept);
+    }
+
+    /**
+     * A row with none of its key terms can't be matched to anything, so it is passed on as it is.
+     */
+    static boolean hasKey(String[] row, int[] keyColumns) {
+        for (int column : keyColumns) {
+            if (row[column] != null && !row[column].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        sink.checkpoint();
+    }
+
+    @Override
+    public long getRowCount() {
+        return sink.getRowCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
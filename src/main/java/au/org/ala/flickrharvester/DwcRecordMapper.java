@@ -0,0 +1,182 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.tags.Tag;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps a Flickr photo to a Darwin Core record held in a {@code String[]} laid out like {@link Config#CSV_FIELD_LIST},
+ * by running the rules of a {@link MappingPlan}.
+ * <p>
+ * This runs once per photo, so everything that can be worked out ahead of time is: the plan has the rules resolved
+ * to columns and fields and their patterns compiled, and machine tags are matched to columns through a
+ * case-insensitive hash table probed directly on the tag text. An instance reuses its matchers and so must stay on
+ * one thread.
+ */
+public class DwcRecordMapper {
+
+    public static final int WIDTH = Config.CSV_FIELD_LIST.size();
+
+    private static final Pattern MACHINE_TAG_PATTERN = Pattern.compile("(.+):(.+)=(.+)");
+
+    static final int OCCURRENCE_ID = column("occurrenceID");
+    static final int ASSOCIATED_MEDIA = column("associatedMedia");
+    static final int OCCURRENCE_REMARKS = column("occurrenceRemarks");
+    static final int OCCURRENCE_DETAILS = column("occurrenceDetails");
+    static final int LICENSE = column("license");
+
+    private final MappingPlan plan;
+    private final Map<String, String> licenseMap;
+    private final Matcher machineTagMatcher = MACHINE_TAG_PATTERN.matcher("");
+    /** One matcher per pattern of the plan, by step number */
+    private final Matcher[] stepMatchers;
+    private final StringBuffer replaced = new StringBuffer();
+
+    /**
+     * Maps photos by the rules bundled with the harvester.
+     */
+    public DwcRecordMapper(Map<String, String> licenseMap) {
+        this(MappingPlan.defaults(), licenseMap);
+    }
+
+    public DwcRecordMapper(MappingPlan plan, Map<String, String> licenseMap) {
+        this.plan = plan;
+        this.licenseMap = licenseMap;
+        this.stepMatchers = new Matcher[plan.steps.length];
+        for (int i = 0; i < stepMatchers.length; i++) {
+            stepMatchers[i] = plan.steps[i].pattern.matcher("");
+        }
+    }
+
+    static int column(String term) {
+        int index = Config.CSV_FIELD_LIST.indexOf(term);
+        if (index < 0) {
+            throw new IllegalStateException(term + " is not in the CSV field list");
+        }
+        return index;
+    }
+
+    public static String[] newRecord() {
+        return new String[WIDTH];
+    }
+
+    /**
+     * Fills {@code record}, which must be {@link #WIDTH} long. Anything left in it from a previous photo is cleared.
+     * The rules run in order, and the machine tags after them.
+     */
+    public void map(Photo photo, String[] record) throws FlickrException {
+        Arrays.fill(record, null);
+        int[] columns = plan.columns;
+        for (int rule = 0; rule < columns.length; rule++) {
+            for (MappingPlan.Source source : plan.sources[rule]) {
+                String value = value(source, photo, record);
+                if (value != null) {
+                    record[columns[rule]] = value;
+                    break;
+                }
+            }
+        }
+
+        for (Tag tag : photo.getTags()) {
+            Matcher matcher = machineTagMatcher.reset(tag.getValue());
+            if (matcher.find()) {
+                int column = plan.tags.get(tag.getValue(), matcher.start(2), matcher.end(2));
+                if (column >= 0) {
+                    record[column] = matcher.group(3);
+                }
+            }
+        }
+    }
+
+    private String value(MappingPlan.Source source, Photo photo, String[] record) throws FlickrException {
+        String value;
+        if (source.field != null) {
+            value = source.field.value(photo, licenseMap);
+        } else if (source.column >= 0) {
+            value = record[source.column];
+        } else {
+            value = source.constant;
+        }
+        for (int i = 0; i < source.steps.length && value != null; i++) {
+            value = step(source.steps[i], value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the first match, group 1 if the pattern has groups, or the value with every match replaced. A value
+     * without a match keeps no value, or is left as it is when replacing.
+     */
+    private String step(int step, String value) {
+        Matcher matcher = stepMatchers[step].reset(value);
+        String replacement = plan.steps[step].replacement;
+        if (!matcher.find()) {
+            return replacement == null ? null : value;
+        }
+        if (replacement == null) {
+            return matcher.group(matcher.groupCount() > 0 ? 1 : 0);
+        }
+        replaced.setLength(0);
+        do {
+            matcher.appendReplacement(replaced, replacement);
+        } while (matcher.find());
+        matcher.appendTail(replaced);
+        return replaced.toString();
+    }
+
+    /**
+     * Open addressing table from machine tag predicate to column, ignoring case, that can be probed with a slice of a
+     * string so looking up a machine tag's predicate doesn't need a substring or a lower-cased copy.
+     */
+    static final class TagColumns {
+        private final String[] keys;
+        private final int[] columns;
+        private final int mask;
+
+        /**
+         * @param predicates the column of each machine tag predicate
+         */
+        TagColumns(Map<String, Integer> predicates) {
+            int capacity = Integer.highestOneBit(Math.max(predicates.size(), 1) * 4 - 1) << 1;
+            keys = new String[capacity];
+            columns = new int[capacity];
+            mask = capacity - 1;
+            for (Map.Entry<String, Integer> predicate : predicates.entrySet()) {
+                String key = predicate.getKey();
+                int slot = hash(key, 0, key.length()) & mask;
+                while (keys[slot] != null && !keys[slot].equalsIgnoreCase(key)) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                columns[slot] = predicate.getValue();
+            }
+        }
+
+        /**
+         * @return the column of the term spelled by {@code text[start, end)}, or -1 if it isn't a predicate of the plan
+         */
+        int get(String text, int start, int end) {
+            int length = end - start;
+            for (int slot = hash(text, start, end) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                String key = keys[slot];
+                if (key.length() == length && key.regionMatches(true, 0, text, start, length)) {
+                    return columns[slot];
+                }
+            }
+            return -1;
+        }
+
+        private static int hash(String text, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + Character.toLowerCase(text.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.Flickr;
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.SearchParameters;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Fetches pages through flickr4java, which downloads each response whole and parses it into a DOM before
+ * building the photos. Kept for {@code flickr.transport=rest}, in case Flickr's JSON ever disagrees with its XML.
+ */
+public class Flickr4JavaTransport implements FlickrTransport {
+
+    private final Flickr flickr;
+
+    public Flickr4JavaTransport(Flickr flickr) {
+        this.flickr = flickr;
+    }
+
+    @Override
+    public PhotoList<Photo> getPoolPhotos(FlickrRequest request) throws FlickrException {
+        return flickr.getPoolsInterface().getPhotos(request.groupId, request.userId, request.tags,
+                new HashSet<String>(Arrays.asList(request.extras)), request.perPage, request.page);
+    }
+
+    /**
+     * Unlike the group pool, photos.search takes upload and taken date bounds, so they are applied by Flickr
+     * rather than after the page has been downloaded.
+     */
+    @Override
+    public PhotoList<Photo> searchPhotos(FlickrRequest request) throws FlickrException {
+        SearchParameters parameters = new SearchParameters();
+        if (request.groupId != null && !request.groupId.isEmpty()) {
+            parameters.setGroupId(request.groupId);
+        }
+        if (request.userId != null && !request.userId.isEmpty()) {
+            parameters.setUserId(request.userId);
+        }
+        if (request.tags != null && request.tags.length > 0) {
+            parameters.setMachineTags(request.tags);
+        }
+        parameters.setExtras(new HashSet<String>(Arrays.asList(request.extras)));
+        parameters.setMinUploadDate(request.minUploadDate);
+        parameters.setMaxUploadDate(request.maxUploadDate);
+        parameters.setSort(SearchParameters.DATE_POSTED_ASC);
+        return flickr.getPhotosInterface().search(parameters, request.perPage, request.page);
+    }
+}
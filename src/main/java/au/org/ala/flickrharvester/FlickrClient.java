@@ -0,0 +1,170 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.Flickr;
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.FlickrRuntimeException;
+import com.flickr4java.flickr.REST;
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.licenses.License;
+import com.flickr4java.flickr.places.Location;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Single entry point for Flickr API calls, shared by all the processor threads so that they draw from the
+ * same {@link RateLimiter}.
+ */
+public class FlickrClient {
+    private static final Pattern THROTTLE_PATTERN = Pattern.compile(
+            "rate limit|too many requests|response code: (429|50[0234])\\b|service(\\s+\\w+)?\\s+unavailable|bad gateway|gateway time-?out",
+            Pattern.CASE_INSENSITIVE);
+    /**
+     * Flickr API error codes asking the caller to back off: 105 "Service currently unavailable", and 0 "Sorry, the
+     * Flickr API service is not currently available", which Flickr answers with when a key goes over its limit.
+     */
+    private static final Set<String> THROTTLE_CODES = new HashSet<>(Arrays.asList("0", "105"));
+
+    private final Flickr flickr;
+    private final FlickrTransport transport;
+    private final RateLimiter rateLimiter;
+    private final HarvestMetrics metrics;
+
+    public FlickrClient(Config config, RateLimiter rateLimiter) {
+        this(config, rateLimiter, new HarvestMetrics(rateLimiter));
+    }
+
+    /**
+     * @param metrics where every call's latency is recorded, and which the stages using this client report to
+     */
+    public FlickrClient(Config config, RateLimiter rateLimiter, HarvestMetrics metrics) {
+        this.metrics = metrics;
+        REST rest = rest(config.FLICKR_BASE_URL);
+        rest.setConnectTimeoutMs(config.CONNECT_TIMEOUT_MILLIS);
+        rest.setReadTimeoutMs(config.READ_TIMEOUT_MILLIS);
+        this.flickr = new Flickr(config.API_KEY, config.SHARED_SECRET, rest);
+        this.transport = "rest".equalsIgnoreCase(config.TRANSPORT) ? new Flickr4JavaTransport(flickr) : new JsonTransport(config);
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * flickr4java's transport for the lookups, pointed at {@code flickr.baseUrl} rather than its built in host.
+     */
+    static REST rest(String baseUrl) {
+        REST rest = new REST();
+        if (baseUrl != null && !baseUrl.isEmpty()) {
+            URI uri = URI.create(baseUrl);
+            rest.setScheme(uri.getScheme());
+            // flickr4java builds its URLs from the scheme, host and path alone
+            rest.setHost(uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost());
+            rest.setPath(uri.getPath());
+        }
+        return rest;
+    }
+
+    /**
+     * Runs a {@link FlickrRequest.RequestType#POOL_SEARCH} or {@link FlickrRequest.RequestType#PHOTO_SEARCH} request.
+     */
+    public PhotoList<Photo> getPhotos(FlickrRequest request) throws FlickrException {
+        switch (request.requestType) {
+            case POOL_SEARCH:
+                return getPoolPhotos(request);
+            case PHOTO_SEARCH:
+                return searchPhotos(request);
+            default:
+                throw new IllegalArgumentException("Not a photo list request: " + request.requestType);
+        }
+    }
+
+    public PhotoList<Photo> getPoolPhotos(FlickrRequest request) throws FlickrException {
+        return call(HarvestMetrics.Call.PAGE, () -> transport.getPoolPhotos(request));
+    }
+
+    public PhotoList<Photo> searchPhotos(FlickrRequest request) throws FlickrException {
+        return call(HarvestMetrics.Call.PAGE, () -> transport.searchPhotos(request));
+    }
+
+    /**
+     * Runs photos.getInfo, which unlike the photo lists returns the raw machine tags and the owner's location.
+     */
+    public Photo getPhotoInfo(String photoId, String secret) throws FlickrException {
+        return call(HarvestMetrics.Call.INFO, () -> flickr.getPhotosInterface().getInfo(photoId, secret));
+    }
+
+    public Collection<License> getLicenses() throws FlickrException {
+        return call(HarvestMetrics.Call.LOOKUP, () -> flickr.getLicensesInterface().getInfo());
+    }
+
+    public User getOwner(String userId) throws FlickrException {
+        return call(HarvestMetrics.Call.LOOKUP, () -> flickr.getPeopleInterface().getInfo(userId));
+    }
+
+    public Location getPlace(String placeId) throws FlickrException {
+        return call(HarvestMetrics.Call.LOOKUP, () -> flickr.getPlacesInterface().getInfo(placeId, null));
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public HarvestMetrics getMetrics() {
+        return metrics;
+    }
+
+    private <T> T call(HarvestMetrics.Call kind, FlickrCall<T> call) throws FlickrException {
+        try {
+            rateLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FlickrException("Interrupted while waiting for the rate limiter", e);
+        }
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            rateLimiter.onSuccess();
+            return result;
+        } catch (FlickrException | FlickrRuntimeException e) {
+            if (isThrottled(e)) {
+                rateLimiter.onThrottled();
+            }
+            throw e;
+        } finally {
+            metrics.recordCall(kind, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Flickr's own error codes for an overloaded or over quota API are checked first. flickr4java doesn't expose the
+     * HTTP status, so a 429/5xx shows up either as the "HTTP response code: 503" of an error message or as a
+     * {@link FlickrRuntimeException} from failing to parse the HTML error page as XML.
+     */
+    static boolean isThrottled(Throwable e) {
+        if (e instanceof FlickrRuntimeException && e.getCause() instanceof org.xml.sax.SAXException) {
+            return true;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof FlickrException && THROTTLE_CODES.contains(((FlickrException) t).getErrorCode())) {
+                return true;
+            }
+            if (t.getMessage() != null && THROTTLE_PATTERN.matcher(t.getMessage()).find()) {
+                return true;
+            }
+            if (t instanceof FlickrException && ((FlickrException) t).getErrorMessage() != null
+                    && THROTTLE_PATTERN.matcher(((FlickrException) t).getErrorMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface FlickrCall<T> {
+        T call() throws FlickrException;
+    }
+}
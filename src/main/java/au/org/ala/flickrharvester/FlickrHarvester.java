@@ -1,28 +1,36 @@
 package au.org.ala.flickrharvester;
 
-import com.flickr4java.flickr.Flickr;
-import com.flickr4java.flickr.REST;
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
 import com.flickr4java.flickr.photos.PhotoList;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.broker.BrokerService;
-import org.apache.camel.CamelContext;
-import org.apache.camel.builder.RouteBuilder;
-import org.apache.camel.component.jms.JmsComponent;
-import org.apache.camel.impl.DefaultCamelContext;
-import org.apache.camel.model.dataformat.CsvDataFormat;
 import org.apache.commons.cli.*;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jms.*;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,118 +43,532 @@ public class FlickrHarvester {
     private static final String DEFAULT_CONFIG_FILE = "config.properties";
     private static final String DEFAULT_THREAD_COUNT = "3";
     private static final String DEFAULT_OUTPUT_DIR = "/tmp/";
-    private static final String DEFAULT_OUTPUT_FILE = "flickr.dwc.csv";
+    private static final String DEFAULT_OUTPUT_FILE = "flickr.dwc";
+    private static final String DEFAULT_DELTA_FILE = "flickr.dwc.delta";
+    private static final String DEFAULT_OUTPUT_FORMAT = "csv";
+    private static final String DEFAULT_STATE_FILE = "flickrharvester.state";
+    private static final String LEDGER_SUFFIX = ".ledger";
+    private static final String PARTITIONS_SUFFIX = ".partitions";
+    private static final String INDEX_SUFFIX = ".index";
+    static final String LEDGER_KEY_HEADER = "ledgerKey";
+    private static final String DEFAULT_ENGINE = "auto";
+    private static final String DEFAULT_ROLE = "standalone";
+    private static final String DEFAULT_BROKER_URL = "tcp://localhost:61616";
+    private static final long COORDINATOR_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
     private final Config config;
     private final String outputDir;
     private final String outputFile;
+    private final boolean incremental;
+    private final String stateFile;
+    private final boolean resume;
+    private final Engine engine;
+    private final OutputFormat outputFormat;
+    private final boolean partitioned;
+    private final boolean diff;
+    private final StartupTimer startup = new StartupTimer();
+
+    /**
+     * How pages travel between the fetch, map and write steps.
+     */
+    public enum Engine {
+        /** Through the embedded ActiveMQ broker and Camel routes */
+        JMS,
+        /** Through bounded in-memory queues, without the broker */
+        INPROCESS,
+        /**
+         * Through the broker for harvests of {@code engine.jms_min_pages} pages or more when that is set, in-process
+         * otherwise
+         */
+        AUTO
+    }
+
+    /**
+     * Which part of a harvest this process plays.
+     */
+    public enum Role {
+        /** Counts, fetches and writes everything itself */
+        STANDALONE,
+        /** Queues pages on a shared broker for workers and waits for them to be written */
+        COORDINATOR,
+        /** Harvests pages off a shared broker into a shard of its own */
+        WORKER,
+        /** Combines the workers' shards into the output file */
+        MERGE
+    }
 
     public FlickrHarvester(String configFile, String dir, String file) throws ConfigurationException, java.text.ParseException {
+        this(configFile, dir, file, false, dir + DEFAULT_STATE_FILE, false, Engine.AUTO, OutputFormat.CSV, false, false);
+    }
+
+    /**
+     * @param diff write the records added, updated and removed since the previous harvest instead of a snapshot
+     */
+    public FlickrHarvester(String configFile, String dir, String file, boolean incremental, String stateFile, boolean resume, Engine engine,
+                           OutputFormat outputFormat, boolean partitioned, boolean diff) throws ConfigurationException, java.text.ParseException {
         this.config = new Config(configFile);
         this.outputDir = dir;
         this.outputFile = file;
+        this.incremental = incremental;
+        this.stateFile = stateFile;
+        this.resume = resume;
+        this.engine = engine;
+        this.outputFormat = outputFormat;
+        this.partitioned = partitioned;
+        this.diff = diff;
+        if (diff && resume) {
+            throw new IllegalArgumentException("A --diff harvest can't be resumed, the record index of the interrupted run was never saved");
+        }
+        if (diff && !config.DEDUP_INDEX) {
+            throw new IllegalArgumentException("A --diff harvest needs collectory.dedup_index");
+        }
+        if (diff && config.SEPARATE_SOURCE_OUTPUTS) {
+            throw new IllegalArgumentException("A --diff harvest writes changes to one set of outputs, it can't keep flickr.source_output separate");
+        }
+        startup.phase("config");
+    }
+
+    StartupTimer getStartup() {
+        return startup;
     }
 
-    private void run(int threads) throws Exception {
-        final BrokerService broker = new BrokerService();
-        final String brokerUrl = "tcp://localhost:61616";
-        // configure the broker
-        broker.addConnector(brokerUrl);
-        broker.setUseJmx(true);
-        broker.setPersistent(false);
-        broker.start();
-
-
-        ConnectionFactory connectionFactory =
-                new ActiveMQConnectionFactory(brokerUrl);
-
-        CamelContext context = new DefaultCamelContext();
-        context.addComponent("amq",
-                JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
-
-        context.addRoutes(new RouteBuilder() {
-            public void configure() {
-                // Set up the route — from the input JMS broker, to
-                //  the output directory, via a log operation
-                // Note that we're specifying the log class as JMSToFile, and
-                //  the log level as DEBUG. We will use these parameters in
-                //  the log configuration file log4j.properties to control
-                //  logging from the program.
-                // Note also that the specific destination we consume from is
-                //  test_queue. To exercise this program, we must place messages
-                //  in that destination using a JMS client
-
-                from("amq:reuests.backlog").throttle(10).timePeriodMillis(1000 * 60)
-                        .to("amq:reuests.todo")
-                ;
-
-                CsvDataFormat csvDataFormat = new CsvDataFormat();
-                csvDataFormat.setFormatName(null);
-                csvDataFormat.setDelimiter(",");
-                csvDataFormat.setQuote("\"");
-                csvDataFormat.setHeader(config.CSV_FIELD_LIST);
-                csvDataFormat.setSkipHeaderRecord(true);
-                csvDataFormat.setEscape("\\");
-                csvDataFormat.setEscapeDisabled(false);
-
-                from("amq:output.csv")
-                        .marshal(csvDataFormat)
-                        .to("file:" + outputDir + "?fileName=" + outputFile + "&fileExist=Append");
+    /**
+     * A full harvest walks the whole group pool, or searches for the whole of a source without a group. An
+     * incremental one asks photos.search for what has been uploaded since the source's previous run and drops
+     * anything whose last_update is not newer than its previous high-water mark.
+     */
+    private FlickrRequest buildQuery(HarvestSource source, HarvestState state) {
+        if (incremental && state.getPreviousDateUpload() != null) {
+            log.info("Incremental harvest of {}, photos uploaded since {} and updated after {}", source, state.getPreviousDateUpload(),
+                    state.getPreviousLastUpdate());
+            return new FlickrRequest(source.groupId, source.userId, source.machineTags, config.EXTRAS, config.PER_PAGE, 1,
+                    null, null, FlickrRequest.RequestType.PHOTO_SEARCH, state.getPreviousDateUpload(), null, state.getPreviousLastUpdate())
+                    .forSource(source.name);
+        }
+        if (incremental) {
+            log.warn("No previous harvest state for {}, falling back to a full harvest", source);
+        }
+        return new FlickrRequest(source.groupId, source.userId, source.machineTags, config.EXTRAS, config.PER_PAGE, 1,
+                null, null, source.isPool() ? FlickrRequest.RequestType.POOL_SEARCH : FlickrRequest.RequestType.PHOTO_SEARCH)
+                .forSource(source.name);
+    }
 
+    /**
+     * The high-water marks of each named source, kept next to the state file, or none for the single unnamed source.
+     */
+    private Map<String, HarvestState> loadSourceStates() throws IOException {
+        Map<String, HarvestState> states = new LinkedHashMap<>();
+        for (HarvestSource source : config.SOURCES) {
+            if (source.name != null) {
+                states.put(source.name, HarvestState.load(Paths.get(stateFile + "." + source.name)));
             }
-        });
-        context.start();
+        }
+        return states;
+    }
 
-        // Create a Connection
-        Connection connection = connectionFactory.createConnection();
-        connection.start();
+    /**
+     * Every page of every source, taken from the sources in turn. The sources are counted at the same time through
+     * the one client, so they share its rate limit and connections.
+     */
+    private List<FlickrRequest> plan(FlickrClient flickr, HarvestState state, Map<String, HarvestState> sourceStates, int threads)
+            throws Exception {
+        List<Future<List<FlickrRequest>>> counts = new ArrayList<>();
+        for (HarvestSource source : config.SOURCES) {
+            FlickrRequest query = buildQuery(source, source.name == null ? state : sourceStates.get(source.name));
+            counts.add(inBackground("count", () -> partitioned ? partition(flickr, query, threads) : pages(flickr, query)));
+        }
+        List<List<FlickrRequest>> sources = new ArrayList<>();
+        for (Future<List<FlickrRequest>> count : counts) {
+            sources.add(await(count));
+        }
+        return sources.size() == 1 ? sources.get(0) : PageSource.interleave(sources);
+    }
 
-        // Create a Session
-        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    /**
+     * Runs a step on a thread of its own so the caller can get on with the next one.
+     */
+    private static <T> Future<T> inBackground(String name, Callable<T> step) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new StageThreadFactory(name, 0));
+        Future<T> result = executor.submit(step);
+        executor.shutdown();
+        return result;
+    }
 
-        // Create the destination (Topic or Queue)
-        Destination destination = session.createQueue("reuests.backlog");
+    private static <T> T await(Future<T> result) throws Exception {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
 
-        // Create a MessageProducer from the Session to the Topic or Queue
-        MessageProducer producer = session.createProducer(destination);
+    /**
+     * Publishes a stage over JMX, in place of the one an earlier run in this JVM left behind.
+     */
+    private static void register(Object mbean, String type) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("au.org.ala.flickrharvester:type=" + type);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+    }
 
+    /**
+     * Every Flickr call from every thread of this process goes through the one rate limiter, and is timed by the
+     * one set of metrics.
+     */
+    private FlickrClient createClient() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(config.RATE_LIMIT, config.RATE_BURST);
+        register(rateLimiter, "RateLimiter");
+        HarvestMetrics metrics = new HarvestMetrics(rateLimiter);
+        register(metrics, "HarvestMetrics");
+        if (config.METRICS_PORT > 0) {
+            metrics.serve(config.METRICS_PORT);
+        }
+        if (config.METRICS_LOG_SECONDS > 0) {
+            metrics.logEvery(config.METRICS_LOG_SECONDS);
+        }
+        return new FlickrClient(config, rateLimiter, metrics);
+    }
 
-        Flickr flickr = new Flickr(config.API_KEY, config.SHARED_SECRET, new REST());
-        PhotoList photoList = flickr.getPoolsInterface().getPhotos(config.GROUP_ID, config.USER_ID, config.MACHINE_TAGS, new HashSet<String>(Arrays.asList(config.EXTRAS)),
-                config.PER_PAGE, 0);
-        log.info("Total number of photos:{}, Number of pages in total:{}, Number of photos per page:{}", photoList.getTotal(), photoList.getPages(), photoList.getPerPage());
-        for (int page = 1; page <= photoList.getPages(); page++) {
-//        for (int page = 1; page <= 5; page++) {
+    /**
+     * Licenses, owners and places shared by every thread of this process, warmed from disk when configured.
+     */
+    private MetadataCache createMetadataCache(FlickrClient flickr) throws Exception {
+        MetadataCache metadata = new MetadataCache(flickr, config.CACHE_MAX_SIZE, config.CACHE_MAX_DETAILS, TimeUnit.HOURS.toMillis(config.CACHE_TTL_HOURS),
+                config.CACHE_FILE.isEmpty() ? null : Paths.get(config.CACHE_FILE), config.LOOKUP_OWNERS, config.LOOKUP_PLACES);
+        register(metadata, "MetadataCache");
+        return metadata;
+    }
+
+    /**
+     * The photos.getInfo stage, registered over JMX, when it is turned on.
+     */
+    private PhotoInfoEnricher createEnricher(FlickrClient flickr, MetadataCache metadata) throws Exception {
+        if (!config.PHOTO_INFO) {
+            return null;
+        }
+        PhotoInfoEnricher enricher = new PhotoInfoEnricher(flickr, metadata, config.PHOTO_INFO_THREADS, config.PHOTO_INFO_QUEUE);
+        register(enricher, "PhotoInfoEnricher");
+        return enricher;
+    }
+
+    private static void logEnricher(PhotoInfoEnricher enricher) {
+        if (enricher != null) {
+            log.info("Photo info: {} fetched, {} unchanged since cached, {} shared with another page, {} skipped as not updated, {} failed",
+                    enricher.getFetchedCount(), enricher.getCachedCount(), enricher.getSharedCount(), enricher.getSkippedCount(), enricher.getFailedCount());
+        }
+    }
+
+    /**
+     * The media checks, registered over JMX, when they are turned on.
+     */
+    private MediaVerifier createMediaVerifier(Path mediaFile) throws Exception {
+        if (!config.MEDIA_VERIFY) {
+            return null;
+        }
+        MediaVerifier media = MediaVerifier.open(config, mediaFile, resume);
+        register(media, "MediaVerifier");
+        return media;
+    }
 
-            ObjectMessage message = session.createObjectMessage(new FlickrRequest(config.GROUP_ID, config.USER_ID, config.MACHINE_TAGS, config.EXTRAS, config.PER_PAGE, page,
-                    null, null, FlickrRequest.RequestType.POOL_SEARCH));
-            log.info("Request scheduled: " + message.hashCode() + " : " + Thread.currentThread().getName());
-            producer.send(message);
+    private static void closeMediaVerifier(MediaVerifier media) throws IOException {
+        if (media != null) {
+            media.close();
+            log.info("Media: {} found, {} replaced by another size, {} missing, {} unchecked, {} thumbnails, {} bytes read, listed in {}",
+                    media.getVerifiedCount(), media.getFallbackCount(), media.getMissingCount(), media.getUncheckedCount(),
+                    media.getThumbnailCount(), media.getBytesRead(), media.getMediaFile());
         }
-        for (int i = 0; i < threads; i++) {
-            producer.send(session.createObjectMessage(new FlickrRequest(null, null, null, null, 0, 0,
-                    null, null, FlickrRequest.RequestType.END_OF_OPERATION)));
+    }
+
+    /**
+     * The pages that may be in flight at once, registered over JMX.
+     */
+    private HeapBudget createHeapBudget() throws Exception {
+        HeapBudget budget = HeapBudget.of(config);
+        register(budget, "HeapBudget");
+        log.info("Heap budget of {} MB, at most {} pages in flight", budget.getBudgetBytes() >> 20, budget.getMaxPages());
+        return budget;
+    }
+
+    private static void logHeapBudget(HeapBudget budget) {
+        log.info("Heap budget: {} ms waiting for room, limit lowered {} times, {} MB left on the heap after the last collection",
+                budget.getWaitMillis(), budget.getShrinkCount(), budget.getLiveHeapBytes() >> 20);
+    }
+
+    private static void logMetadataCache(MetadataCache metadata) {
+        log.info("Metadata cache: owners {} hits {} misses, places {} hits {} misses", metadata.getOwnerHitCount(), metadata.getOwnerMissCount(),
+                metadata.getPlaceHitCount(), metadata.getPlaceMissCount());
+    }
+
+    /**
+     * The records of earlier runs, or null when the index is turned off.
+     *
+     * @param expectedRecords how many records the run is likely to emit, to size the index for
+     */
+    private RecordIndex loadRecordIndex(long expectedRecords) throws Exception {
+        if (!config.DEDUP_INDEX) {
+            return null;
         }
+        RecordIndex index = RecordIndex.load(Paths.get(stateFile + INDEX_SUFFIX), expectedRecords);
+        register(index, "RecordIndex");
+        return index;
+    }
 
-        producer.close();
-        session.close();
-        connection.close();
+    private OutputSink deduplicate(OutputSink sink, RecordIndex index) {
+        return index == null ? sink : new DeduplicatingSink(sink, index, DeduplicatingSink.keyColumns(config.UNIQUE_KEYS));
+    }
 
-        final ExecutorService flickrExecutor = Executors.newFixedThreadPool(threads);
-        for (int i = 0; i < threads; i++) {
-            flickrExecutor.execute(new FlickrProcessor(config, context));
+    /**
+     * The snapshot, the three change outputs of a {@code --diff} harvest, or a snapshot per source.
+     */
+    private OutputSink openSink(Path outputPath, PageLedger ledger, RecordIndex index) throws IOException {
+        if (diff) {
+            return new ChangeDataSink(outputPath, outputFormat, index, DeduplicatingSink.keyColumns(config.UNIQUE_KEYS), ledger);
         }
-        flickrExecutor.shutdown();
-        int flickrExecutorWait = 0;
-        while (!flickrExecutor.awaitTermination(1, TimeUnit.MINUTES) && !Thread.currentThread().isInterrupted()
-                && flickrExecutorWait < 600) {
-            flickrExecutorWait++;
-            log.warn("Threads not complete after {} minutes, waiting for them again", flickrExecutorWait);
+        if (config.SEPARATE_SOURCE_OUTPUTS && config.SOURCES.size() > 1) {
+            return deduplicate(new PerSourceSink(outputPath, outputFormat, config.SOURCES, ledger, resume), index);
         }
-        context.stop();
-        broker.stop();
-        broker.waitUntilStopped();
-        flickrExecutor.shutdownNow();
-        log.info("Executor service is shutdown now.");
+        return deduplicate(outputFormat.open(outputPath, Config.CSV_FIELD_LIST, ledger), index);
+    }
+
+    /**
+     * Photos the index knows of that a full harvest didn't come across have left the group, so long as every page
+     * made it into the output.
+     */
+    private void writeRemoved(ChangeDataSink sink, PageLedger ledger, List<FlickrRequest> pages) throws IOException {
+        if (pages.stream().anyMatch(page -> page.minUpdateDate != null)) {
+            log.info("An incremental harvest only sees the photos that changed, removals are left to the next full harvest");
+            return;
+        }
+        sink.checkpoint();
+        long failed = pages.stream().filter(page -> !ledger.isWritten(page.key())).count();
+        if (failed > 0) {
+            log.warn("{} pages weren't written, leaving removals to the next full harvest", failed);
+            return;
+        }
+        sink.writeRemoved();
+    }
+
+    /**
+     * Saves the high-water marks of every source whose pages all made it into the output. The marks move as photos
+     * are mapped, so a page that was never written may hold photos older than them, which the next incremental run
+     * wouldn't ask for again.
+     */
+    private static void saveStates(HarvestState state, Map<String, HarvestState> sourceStates, PageLedger ledger, List<FlickrRequest> pages)
+            throws IOException {
+        Set<String> unwritten = new HashSet<>();
+        for (FlickrRequest page : pages) {
+            if (!ledger.isWritten(page.key())) {
+                unwritten.add(page.source);
+            }
+        }
+        if (sourceStates.isEmpty()) {
+            saveState(state, null, unwritten);
+        }
+        for (Map.Entry<String, HarvestState> sourceState : sourceStates.entrySet()) {
+            saveState(sourceState.getValue(), sourceState.getKey(), unwritten);
+        }
+    }
+
+    private static void saveState(HarvestState state, String source, Set<String> unwritten) throws IOException {
+        if (unwritten.contains(source)) {
+            log.warn("Pages of {} weren't written, keeping its previous high-water marks so the next run asks for them again",
+                    source == null ? "the harvest" : source);
+        } else {
+            state.save();
+        }
+    }
+
+    private static void saveRecordIndex(RecordIndex index) throws IOException {
+        if (index != null) {
+            index.save();
+            index.close();
+            log.info("Records: {} new, {} changed, {} relicensed, {} unchanged since the last run, {} removed, {} duplicates dropped, {} known in all",
+                    index.getNewCount(), index.getChangedCount(), index.getRelicensedCount(), index.getUnchangedCount(), index.getRemovedCount(),
+                    index.getDuplicateCount(), index.getSize());
+        }
+    }
+
+    private static void logRateLimiter(FlickrClient flickr) {
+        RateLimiter rateLimiter = flickr.getRateLimiter();
+        log.info("Rate limiter: {} calls, {} ms spent waiting, {} throttle events, final rate {} calls/second", rateLimiter.getPermitsIssued(),
+                rateLimiter.getTotalWaitMillis(), rateLimiter.getThrottleCount(), rateLimiter.getCurrentRate());
+        log.info(flickr.getMetrics().summary());
+        flickr.getMetrics().close();
+    }
+
+    /**
+     * Harvests every page of every source. The broker of a JMS run starts, and the licenses are looked up, while the
+     * pages are counted, and what each step of getting started took is logged at the end.
+     */
+    void run(int threads, int mapThreads) throws Exception {
+        final Path outputPath = Paths.get(outputDir + outputFile);
+        final PageLedger ledger = PageLedger.open(Paths.get(outputDir + outputFile + LEDGER_SUFFIX), resume);
+        if (resume) {
+            ledger.truncateToCommitted(outputPath);
+        } else if (!diff) {
+            Files.deleteIfExists(outputPath);
+        }
+
+        JmsPipeline jms = engine == Engine.JMS ? new JmsPipeline(DEFAULT_BROKER_URL).start() : null;
+        FlickrClient flickr = createClient();
+        MetadataCache metadata = createMetadataCache(flickr);
+        PhotoInfoEnricher enricher = createEnricher(flickr, metadata);
+        HeapBudget budget = createHeapBudget();
+        Future<Map<String, String>> licenses = inBackground("licenses", metadata::getLicenses);
+        HarvestState state = HarvestState.load(Paths.get(stateFile));
+        Map<String, HarvestState> sourceStates = loadSourceStates();
+        startup.phase("setup");
+        List<FlickrRequest> pages;
+        try {
+            pages = plan(flickr, state, sourceStates, threads);
+        } catch (Exception e) {
+            if (jms != null) {
+                jms.stop();
+            }
+            throw e;
+        }
+        startup.phase("page count");
+        RecordIndex index = loadRecordIndex((long) pages.size() * config.PER_PAGE);
+        flickr.getMetrics().track(ledger, pages.size());
+        MediaVerifier media = createMediaVerifier(Paths.get(outputDir + outputFile + MediaVerifier.MEDIA_SUFFIX));
+        PageMapper pageMapper = new PageMapper(config, await(licenses), state, sourceStates, flickr.getMetrics(), media);
+        startup.phase("licenses");
+        if (engine == Engine.AUTO && config.JMS_MIN_PAGES > 0 && pages.size() >= config.JMS_MIN_PAGES) {
+            log.info("{} pages to harvest, running them through the broker", pages.size());
+            jms = new JmsPipeline(DEFAULT_BROKER_URL).start();
+        }
+        if (jms != null) {
+            jms.awaitStarted();
+            startup.phase("broker");
+        }
+        try (PageRetrier retrier = PageRetrier.open(config, Paths.get(outputDir + outputFile + PageRetrier.DEAD_LETTER_SUFFIX), resume, flickr.getMetrics());
+             OutputSink sink = openSink(outputPath, ledger, index)) {
+            flickr.getMetrics().trackRows(sink::getRowCount);
+            if (jms == null) {
+                new InProcessPipeline(config, flickr, metadata, enricher, pageMapper, ledger, retrier, startup.watch(sink), budget, threads,
+                        mapThreads, DEFAULT_QUEUE_CAPACITY).run(pages);
+            } else {
+                jms.run(config, flickr, metadata, enricher, pageMapper, ledger, retrier, startup.watch(sink), budget, pages, threads, mapThreads);
+            }
+            if (diff) {
+                writeRemoved((ChangeDataSink) sink, ledger, pages);
+            }
+        }
+        saveStates(state, sourceStates, ledger, pages);
+        ledger.close();
+        if (config.SOURCES.size() > 1) {
+            log.info("{} photos were left out as another source had already harvested them", pageMapper.getSharedCount());
+        }
+        saveRecordIndex(index);
+        metadata.save();
+        logRateLimiter(flickr);
+        logMetadataCache(metadata);
+        logEnricher(enricher);
+        closeMediaVerifier(media);
+        logHeapBudget(budget);
+        log.info(startup.breakdown());
+    }
+
+    /**
+     * Counts the pages and queues them on the broker for workers, returning once they have all been written.
+     *
+     * @param embeddedBroker start a broker listening on the URL in this process rather than using a running one
+     * @return whether every page was written
+     */
+    private boolean coordinate(String brokerUrl, boolean embeddedBroker, int threads) throws Exception {
+        BrokerService broker = null;
+        if (embeddedBroker) {
+            broker = new BrokerService();
+            broker.addConnector(brokerUrl);
+            broker.setUseJmx(true);
+            broker.setPersistent(false);
+            broker.start();
+        }
+        FlickrClient flickr = createClient();
+        List<FlickrRequest> pages = plan(flickr, HarvestState.load(Paths.get(stateFile)), loadSourceStates(), threads);
+        try (PageLedger ledger = PageLedger.open(Paths.get(outputDir + outputFile + LEDGER_SUFFIX), resume)) {
+            flickr.getMetrics().track(ledger, pages.size());
+            return new HarvestCoordinator(new ActiveMQConnectionFactory(brokerUrl), ledger).run(pages, COORDINATOR_IDLE_TIMEOUT_MILLIS);
+        } finally {
+            logRateLimiter(flickr);
+            if (broker != null) {
+                broker.stop();
+                broker.waitUntilStopped();
+            }
+        }
+    }
+
+    /**
+     * Harvests pages queued by a coordinator into this worker's shard of the output.
+     */
+    private void work(String brokerUrl, String workerId, int threads, int mapThreads) throws Exception {
+        FlickrClient flickr = createClient();
+        MetadataCache metadata = createMetadataCache(flickr);
+        PhotoInfoEnricher enricher = createEnricher(flickr, metadata);
+        // each worker keeps the high-water marks of what it harvested itself
+        HarvestState state = HarvestState.load(Paths.get(stateFile + "." + workerId));
+        Path shardPath = ShardMerger.shardPath(Paths.get(outputDir + outputFile), outputFormat, workerId);
+        MediaVerifier media = createMediaVerifier(Paths.get(shardPath + MediaVerifier.MEDIA_SUFFIX));
+        HeapBudget budget = createHeapBudget();
+        new HarvestWorker(config, flickr, metadata, enricher, media, budget, new ActiveMQConnectionFactory(brokerUrl), outputFormat, shardPath, state, resume)
+                .run(threads, mapThreads, DEFAULT_QUEUE_CAPACITY);
+        if (flickr.getMetrics().getPagesDeadLettered() > 0) {
+            log.warn("{} pages weren't written, keeping the previous high-water marks", flickr.getMetrics().getPagesDeadLettered());
+        } else {
+            state.save();
+        }
+        metadata.save();
+        logRateLimiter(flickr);
+        logMetadataCache(metadata);
+        logEnricher(enricher);
+        closeMediaVerifier(media);
+        logHeapBudget(budget);
+    }
+
+    /**
+     * Combines the workers' shards found next to the output file into it, dropping records more than one worker harvested.
+     */
+    private void merge() throws Exception {
+        Path outputPath = Paths.get(outputDir + outputFile);
+        RecordIndex index = loadRecordIndex(0);
+        ShardMerger merger = new ShardMerger(outputFormat, index, index == null ? null : DeduplicatingSink.keyColumns(config.UNIQUE_KEYS));
+        merger.merge(merger.shards(outputPath), outputPath);
+        saveRecordIndex(index);
+    }
+
+    /**
+     * Every page of the query, walked one after the other from page 1.
+     */
+    private List<FlickrRequest> pages(FlickrClient flickr, FlickrRequest query) throws FlickrException {
+        PhotoList<Photo> photoList = flickr.getPhotos(query);
+        log.info("Total number of photos:{}, Number of pages in total:{}, Number of photos per page:{}", photoList.getTotal(), photoList.getPages(), photoList.getPerPage());
+        return PageSource.pages(query, photoList.getPages());
+    }
+
+    /**
+     * Every page of every upload date window, reusing the windows of the interrupted run when resuming.
+     */
+    private List<FlickrRequest> partition(FlickrClient flickr, FlickrRequest query, int threads) throws Exception {
+        Path planPath = Paths.get(outputDir + outputFile + PARTITIONS_SUFFIX + (query.source == null ? "" : "." + query.source));
+        List<UploadDatePartitioner.Window> windows;
+        if (resume && Files.exists(planPath)) {
+            windows = UploadDatePartitioner.loadPlan(planPath);
+            log.info("Resuming with the {} upload date windows in {}", windows.size(), planPath);
+        } else {
+            Date from = config.MIN_UPLOAD_DATE;
+            if (query.minUploadDate != null && (from == null || query.minUploadDate.after(from))) {
+                from = query.minUploadDate;
+            }
+            windows = new UploadDatePartitioner(flickr, config.PARTITION_MAX_RESULTS, threads).partition(query, from, config.MAX_UPLOAD_DATE);
+            UploadDatePartitioner.savePlan(planPath, windows);
+        }
+        List<FlickrRequest> pages = UploadDatePartitioner.requests(query, windows);
+        log.info("Total number of photos:{}, Number of pages in total:{}, Number of upload date windows:{}",
+                windows.stream().mapToLong(window -> window.total).sum(), pages.size(), windows.size());
+        return pages;
     }
 
     public static void main(String... args) throws Exception {
@@ -166,9 +588,21 @@ public class FlickrHarvester {
         final Options options = new Options();
         options.addOption("h", "help", false, "prints this message.");
         options.addOption("c", "config", true, "Configuration file path. default is:" + DEFAULT_CONFIG_FILE);
-        options.addOption("t", "threads", true, "Number of threads. default is:" + DEFAULT_THREAD_COUNT);
+        options.addOption("t", "threads", true, "Number of Flickr requests in flight at once. default is:" + DEFAULT_THREAD_COUNT);
+        options.addOption("mt", "mapthreads", true, "Number of threads mapping photos to Darwin Core. default is the number of cores");
         options.addOption("od", "outputdir", true, "Output directory. default is:" + DEFAULT_OUTPUT_DIR);
-        options.addOption("of", "outputfile", true, "Output File. default is:" + DEFAULT_OUTPUT_FILE);
+        options.addOption("of", "outputfile", true, "Output File. default is:" + DEFAULT_OUTPUT_FILE + "<format suffix>, or " + DEFAULT_DELTA_FILE + "<format suffix> with --incremental");
+        options.addOption("ff", "outputformat", true, "Output format, csv, gzip, zstd or avro. default is:" + DEFAULT_OUTPUT_FORMAT);
+        options.addOption("i", "incremental", false, "Only harvest photos changed since the previous run, writing them to a delta file.");
+        options.addOption("r", "resume", false, "Carry on from where an interrupted run stopped, appending to its output file.");
+        options.addOption("d", "diff", false, "Write the records added, updated and removed since the previous harvest to <outputfile>.added, .updated and .removed files instead of a snapshot.");
+        options.addOption("p", "partitioned", false, "Harvest upload date windows in parallel instead of paging through the whole pool in order.");
+        options.addOption("ro", "role", true, "Part this process plays, standalone, coordinator, worker or merge. default is:" + DEFAULT_ROLE);
+        options.addOption("b", "broker", true, "Broker URL shared by a coordinator and its workers. default is:" + DEFAULT_BROKER_URL);
+        options.addOption("eb", "embeddedbroker", false, "Have the coordinator start a broker listening on the --broker URL.");
+        options.addOption("w", "workerid", true, "Name of this worker's shard. default is:<pid>-<host>");
+        options.addOption("e", "engine", true, "Pipeline engine, jms, inprocess or auto, which only starts the broker for long harvests. default is:" + DEFAULT_ENGINE);
+        options.addOption("sf", "statefile", true, "File holding the high-water marks of the previous run. default is:<outputdir>" + DEFAULT_STATE_FILE);
         try {
             // parse the command line arguments
             final CommandLine line = parser.parse(options, args);
@@ -180,11 +614,35 @@ public class FlickrHarvester {
             }
             final String cfg = line.getOptionValue("config", DEFAULT_CONFIG_FILE);
             final String dir = line.getOptionValue("outputdir", DEFAULT_OUTPUT_DIR);
-            final String file = line.getOptionValue("outputfile", DEFAULT_OUTPUT_FILE);
-            final int threads = Integer.parseInt(line.getOptionValue("thread", DEFAULT_THREAD_COUNT));
-            Files.deleteIfExists(Paths.get(dir + file));
-            FlickrHarvester harvester = new FlickrHarvester(cfg, dir, file);
-            harvester.run(threads);
+            final boolean incremental = line.hasOption("incremental");
+            final OutputFormat outputFormat = OutputFormat.valueOf(line.getOptionValue("outputformat", DEFAULT_OUTPUT_FORMAT).toUpperCase());
+            final String file = line.getOptionValue("outputfile", (incremental ? DEFAULT_DELTA_FILE : DEFAULT_OUTPUT_FILE) + outputFormat.suffix);
+            final String stateFile = line.getOptionValue("statefile", dir + DEFAULT_STATE_FILE);
+            final boolean resume = line.hasOption("resume");
+            final int threads = Integer.parseInt(line.getOptionValue("threads", DEFAULT_THREAD_COUNT));
+            final int mapThreads = Integer.parseInt(line.getOptionValue("mapthreads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+            final boolean partitioned = line.hasOption("partitioned");
+            final Engine engine = Engine.valueOf(line.getOptionValue("engine", DEFAULT_ENGINE).toUpperCase());
+            final Role role = Role.valueOf(line.getOptionValue("role", DEFAULT_ROLE).toUpperCase());
+            final String brokerUrl = line.getOptionValue("broker", DEFAULT_BROKER_URL);
+            FlickrHarvester harvester = new FlickrHarvester(cfg, dir, file, incremental, stateFile, resume, engine, outputFormat, partitioned,
+                    line.hasOption("diff"));
+            switch (role) {
+                case COORDINATOR:
+                    if (!harvester.coordinate(brokerUrl, line.hasOption("embeddedbroker"), threads)) {
+                        System.exit(1);
+                    }
+                    break;
+                case WORKER:
+                    String workerId = line.getOptionValue("workerid", ManagementFactory.getRuntimeMXBean().getName());
+                    harvester.work(brokerUrl, workerId.replaceAll("[^A-Za-z0-9_-]", "-"), threads, mapThreads);
+                    break;
+                case MERGE:
+                    harvester.merge();
+                    break;
+                default:
+                    harvester.run(threads, mapThreads);
+            }
 
 
         } catch (ParseException exp) {
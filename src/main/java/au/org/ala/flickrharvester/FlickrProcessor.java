@@ -1,40 +1,64 @@
 package au.org.ala.flickrharvester;
 
 
-import com.flickr4java.flickr.Flickr;
 import com.flickr4java.flickr.FlickrException;
-import com.flickr4java.flickr.REST;
 import com.flickr4java.flickr.photos.Photo;
 import com.flickr4java.flickr.photos.PhotoList;
-import com.flickr4java.flickr.photos.licenses.License;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ScheduledMessage;
 import org.apache.camel.CamelContext;
 import org.apache.camel.ProducerTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jms.*;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Takes pages off the broker's request queue, fetches them and hands them to the map executor. A page that fails
+ * goes back on the queue, held back by the broker for the {@link PageRetrier}'s backoff, until it is given up on.
+ * The processors stop once every page has been written, turned out to have no rows, or been given up on. A page is
+ * paid for from the {@link HeapBudget} before it is fetched, and given back once its rows are written or it is dropped.
+ */
 public class FlickrProcessor implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(FlickrProcessor.class);
+    /** How often a processor with nothing to do checks whether the harvest is through */
+    private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
     private final MessageConsumer consumer;
+    private final MessageProducer producer;
     private final Session session;
     private final Connection connection;
-    private static final AtomicInteger requestCount = new AtomicInteger(0);
-    private final Flickr flickr;
+    private final FlickrClient flickr;
     private final Config config;
-    private final Map<String, String> licenseMap = new HashMap<>();
+    private final MetadataCache metadata;
+    private final PhotoInfoEnricher enricher;
     private final ProducerTemplate template;
     private final Destination destination;
-
-    public FlickrProcessor(Config config, CamelContext context) throws JMSException, FlickrException {
+    private final PageLedger ledger;
+    private final PageMapper pageMapper;
+    private final Executor mapExecutor;
+    private final PageRetrier retrier;
+    private final HeapBudget budget;
+    private final CountDownLatch pending;
+    private final AtomicReference<Exception> failure;
+
+    /**
+     * @param enricher    the photo details stage, run on this thread before a page is mapped, or null to skip it
+     * @param pageMapper  shared by all the processors, so that a photo more than one source returns is mapped once
+     * @param mapExecutor where fetched pages are mapped and sent on, so this thread can go back to waiting on Flickr
+     * @param budget      shared with the output route, which gives back the pages it writes
+     * @param pending     shared with the output route, which counts down the pages it writes, and counted down here
+     *                    for each page that has no rows, fails to map or is given up on
+     * @param failure     where the first page that fails to map is kept, for the pipeline to fail the run with
+     */
+    public FlickrProcessor(Config config, CamelContext context, FlickrClient flickr, MetadataCache metadata, PhotoInfoEnricher enricher,
+                           PageMapper pageMapper, PageLedger ledger, Executor mapExecutor, PageRetrier retrier, HeapBudget budget,
+                           CountDownLatch pending, AtomicReference<Exception> failure)
+            throws JMSException, FlickrException {
 
         log.debug("Initialising FlickrProcessor Thread...");
         this.template = context.createProducerTemplate();
@@ -57,154 +81,128 @@ public class FlickrProcessor implements Runnable {
 
         // Create a MessageProducer from the Session to the Topic or Queue
         consumer = session.createConsumer(destination);
-        flickr = new Flickr(config.API_KEY, config.SHARED_SECRET, new REST());
-        getFlickrLicenseMap();
+        producer = session.createProducer(destination);
+        this.flickr = flickr;
+        this.ledger = ledger;
+        this.mapExecutor = mapExecutor;
+        this.retrier = retrier;
+        this.budget = budget;
+        this.pending = pending;
+        this.failure = failure;
+        this.metadata = metadata;
+        this.enricher = enricher;
+        this.pageMapper = pageMapper;
 
 
     }
 
-    private void getFlickrLicenseMap() throws FlickrException {
-        log.debug("Getting Flickr license list.");
-
-        Collection<License> licenseInfo = flickr.getLicensesInterface().getInfo();
-        licenseInfo.forEach(license -> {
-            licenseMap.put(license.getId(), license.getName());
-        });
-        log.info("Got {} licenses from Flickr. ", licenseMap.size());
-    }
-
-    private boolean process(FlickrRequest request) throws FlickrException, JMSException {
-        boolean stop = false;
+    private void process(FlickrRequest request) throws FlickrException, IOException, InterruptedException {
         switch (request.requestType) {
             case POOL_SEARCH:
-                 processPoolSearch(request);
+            case PHOTO_SEARCH:
+                processPoolSearch(request);
                 break;
             case PHOTO_INFO:
                 processPhotoInfo(request);
                 break;
-            case END_OF_OPERATION:
-                stop = true;
-                break;
             default:
-                stop = true;
+                log.warn("Ignoring a {} request", request.requestType);
                 break;
-
         }
-        return stop;
     }
 
-    private void processPhotoInfo(FlickrRequest request) throws FlickrException {
+    /**
+     * Puts the page back on the queue to be delivered once its backoff is up, or lets it go if it was its last attempt.
+     */
+    private void failed(FlickrRequest request, Exception e) throws JMSException {
+        long delay = retrier.failed(request, e);
+        if (delay < 0) {
+            pending.countDown();
+            return;
+        }
+        ObjectMessage message = session.createObjectMessage(request.nextAttempt());
+        message.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delay);
+        producer.send(message);
+    }
 
+    /**
+     * A single photo, already complete from photos.getInfo, goes out like a page of one.
+     */
+    private void processPhotoInfo(FlickrRequest request) throws FlickrException, IOException {
+        log.debug("Issuing a photo info request on Flickr...");
+        PhotoList<Photo> photoList = new PhotoList<>();
+        photoList.add(flickr.getPhotoInfo(request.photoId, request.secret));
+        metadata.resolve(photoList);
+        ledger.fetched(request.key());
+        send(request, photoList);
     }
 
-    private void processPoolSearch(FlickrRequest request) throws FlickrException, JMSException {
+    private void processPoolSearch(FlickrRequest request) throws FlickrException, IOException, InterruptedException {
         log.debug("Issuing a PoolSearch request on Flickr...");
-        if(request.page == 1){ // Send the header of the CSV first
-            Map<String, String> dwcFieldsMap = new LinkedHashMap<>();
-            config.CSV_FIELD_LIST.forEach(e -> dwcFieldsMap.put(e,e));
-            template.sendBody("amq:output.csv", dwcFieldsMap);
-
+        PhotoList<Photo> photoList = flickr.getPhotos(request);
+        metadata.resolve(photoList);
+        if (enricher != null) {
+            enricher.enrich(request, photoList);
         }
-        PhotoList photoList = flickr.getPoolsInterface().getPhotos(request.groupId, request.userId, request.tags, new HashSet<String>(Arrays.asList(request.extras)), request
-                .perPage, request
-                .page);
+        ledger.fetched(request.key());
 
         log.info("Got {} photos in page number {}.", photoList.size(), request.page);
+        send(request, photoList);
+    }
 
-        for (Object photo : photoList) {
-            Photo photoInfo = (Photo) photo;
-            boolean minUpdateMet = (config.MIN_UPDATE_DATE == null)? true :  photoInfo.getLastUpdate().after(config.MIN_UPDATE_DATE);
-            boolean maxUpdateMet = (config.MAX_UPDATE_DATE == null)? true :  photoInfo.getLastUpdate().before(config.MAX_TAKEN_DATE);
-            if(minUpdateMet && maxUpdateMet){
-                log.debug("Photo is being processed...", photoInfo.getUrl());
-                Map<String, String> dwcMap = new HashMap();
-                dwcMap.put("basisOfRecord", "Image");
-                final String license = licenseMap.get(photoInfo.getLicense());
-                dwcMap.put("dcterms:accessRights", license);
-
-                String photoUrl = photoInfo.getUrl().replaceAll("://f", "://www.f");
-                photoUrl += (!photoUrl.endsWith("/"))?"/":null;
-                dwcMap.put("occurrenceID", photoUrl);
-
-                dwcMap.put("userId", photoInfo.getOwner().getId());
-                dwcMap.put("associatedMedia", photoInfo.getOriginalUrl());
-                if (photoInfo.getDateTaken() != null) {
-                    dwcMap.put("eventDate", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(photoInfo.getDateTaken()));
-                }
-                dwcMap.put("occurrenceRemarks", photoInfo.getDescription());
-
-                if (photoInfo.getDescription() != null){
-                    Pattern bhlPattern = Pattern.compile("http://www.biodiversitylibrary.org/page/\\d+");
-                    Matcher matcher = bhlPattern.matcher(photoInfo.getDescription());
-                    dwcMap.put("occurrenceDetails", (matcher.find())?matcher.group():null);
-                }
-                if (dwcMap.get("occurrenceDetails") == null)
-                    dwcMap.put("occurrenceDetails", photoUrl);
-
-                dwcMap.put("recordedBy", (photoInfo.getOwner().getRealName() != null)? photoInfo.getOwner().getRealName() : photoInfo.getOwner().getUsername());
-                dwcMap.put("license", license);
-
-                if (photoInfo.getGeoData() != null){
-                    dwcMap.put("decimalLatitude", photoInfo.getGeoData().getLatitude()+"");
-                    dwcMap.put("decimalLongitude", photoInfo.getGeoData().getLongitude()+"");
-                    dwcMap.put("coordinateUncertaintyInMeters", photoInfo.getGeoData().getAccuracy()+"");
+    private void send(FlickrRequest request, PhotoList<Photo> photoList) {
+        mapExecutor.execute(() -> {
+            try {
+                List<String[]> rows = pageMapper.map(request, photoList);
+                // The whole page travels as one message, the output writer commits it to the ledger once it is on disk
+                if (rows.isEmpty()) {
+                    budget.release();
+                    ledger.written(request.key(), -1);
+                    pending.countDown();
+                } else {
+                    template.sendBodyAndHeader("amq:output.csv", new ArrayList<>(rows), FlickrHarvester.LEDGER_KEY_HEADER, request.key());
                 }
-
-                dwcMap.put("country", (photoInfo.getCountry() != null )? photoInfo.getCountry().getName() : null);
-                dwcMap.put("locality", (photoInfo.getLocality() != null )? photoInfo.getLocality().getName() : null);
-                dwcMap.put("stateProvince", (photoInfo.getRegion() != null )? photoInfo.getRegion().getName() : null);
-
-                if(photoInfo.getLocality() == null && photoInfo.getOwner().getLocation() != null)
-                    dwcMap.put("locality", photoInfo.getOwner().getLocation());
-
-                //Reading tag info
-                photoInfo.getTags().forEach(tag -> {
-                    Pattern machineTagPattern = Pattern.compile("(.+):(.+)=(.+)");
-                    Matcher matcher = machineTagPattern.matcher(tag.getValue());
-                    if(matcher.find()){
-
-                        if (Stream.of(config.ALLOWED_TAGS).anyMatch(x ->  x.equalsIgnoreCase(matcher.group(2)))) {
-                            dwcMap.put(matcher.group(2), matcher.group(3));
-                        }
-                    }
-                });
-                template.sendBody("amq:output.csv", dwcMap);
-                log.debug("Photo {} is added to the CSV", photoInfo.getUrl());
-            } else{
-                log.info("Photo {} didn't meet the criteria to be included in the csv file.", photoInfo.getUrl());
+            } catch (FlickrException | IOException | RuntimeException e) {
+                budget.release();
+                log.error("Mapping page {} failed, it will be picked up by --resume", request.key(), e);
+                failure.compareAndSet(null, e);
+                pending.countDown();
             }
-
-        }
+        });
     }
 
     @Override
     public void run() {
-        boolean stop = false;
-        long milliseconds = 10000;
         log.info("The thread started");
-        while (!stop) {
-            try {
-                ObjectMessage objectMessage = (ObjectMessage) consumer.receive(milliseconds);
-                FlickrRequest request = (FlickrRequest) objectMessage.getObject();
-                if (request == null)
-                    stop = true;
-                stop = process(request);
-
-            } catch (JMSException e) {
-                e.printStackTrace();
-            } catch (FlickrException e) {
-                e.printStackTrace();
-            } catch (NullPointerException e){
-                log.warn("Couldn't receive any messages within {} milliseconds.", milliseconds);
+        try {
+            while (pending.getCount() > 0 && !Thread.currentThread().isInterrupted()) {
+                Message message = consumer.receive(RECEIVE_TIMEOUT_MILLIS);
+                if (message == null) {
+                    // the queue is empty for now, the pages left may be waiting out a backoff
+                    continue;
+                }
+                FlickrRequest request = (FlickrRequest) ((ObjectMessage) message).getObject();
+                budget.acquire();
+                try {
+                    process(request);
+                } catch (FlickrException | IOException | RuntimeException e) {
+                    budget.release();
+                    failed(request, e);
+                }
             }
+        } catch (JMSException e) {
+            log.error("Couldn't take a page off the queue or put one back, the thread is going to stop", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        log.info("Reached the last element, the thread is going to stop.");
+        log.info("The thread is going to stop, {} pages outstanding.", pending.getCount());
         try {
+            producer.close();
             consumer.close();
             session.close();
             connection.close();
         } catch (JMSException e) {
-            e.printStackTrace();
+            log.warn("Couldn't close the broker connection", e);
         }
     }
 
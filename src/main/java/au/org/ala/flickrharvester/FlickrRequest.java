@@ -1,6 +1,7 @@
 package au.org.ala.flickrharvester;
 
 import java.io.Serializable;
+import java.util.Date;
 
 public class FlickrRequest implements Serializable {
     public final String groupId;
@@ -12,14 +13,34 @@ public class FlickrRequest implements Serializable {
     public final String photoId;
     public final String secret;
     public final RequestType requestType;
+    /** Server-side upload date bounds, only honoured by {@link RequestType#PHOTO_SEARCH} */
+    public final Date minUploadDate;
+    public final Date maxUploadDate;
+    /** Photos whose last_update is not after this are dropped, on top of the configured update date range */
+    public final Date minUpdateDate;
+    /** How many times this page has been tried and failed before, see {@link PageRetrier} */
+    public final int attempt;
+    /** The {@link HarvestSource} this page belongs to, null for the single unnamed source */
+    public final String source;
 
     public enum RequestType{
         POOL_SEARCH,
+        PHOTO_SEARCH,
         PHOTO_INFO,
         END_OF_OPERATION
     }
 
     public FlickrRequest(String groupId, String userId, String[] tags, String[] extras, int perPage, int page, String photoId, String secret, RequestType requestType) {
+        this(groupId, userId, tags, extras, perPage, page, photoId, secret, requestType, null, null, null);
+    }
+
+    public FlickrRequest(String groupId, String userId, String[] tags, String[] extras, int perPage, int page, String photoId, String secret, RequestType requestType,
+                         Date minUploadDate, Date maxUploadDate, Date minUpdateDate) {
+        this(groupId, userId, tags, extras, perPage, page, photoId, secret, requestType, minUploadDate, maxUploadDate, minUpdateDate, 0, null);
+    }
+
+    private FlickrRequest(String groupId, String userId, String[] tags, String[] extras, int perPage, int page, String photoId, String secret, RequestType requestType,
+                          Date minUploadDate, Date maxUploadDate, Date minUpdateDate, int attempt, String source) {
         this.groupId = groupId;
         this.userId = userId;
         this.tags = tags;
@@ -29,6 +50,67 @@ public class FlickrRequest implements Serializable {
         this.photoId = photoId;
         this.secret = secret;
         this.requestType = requestType;
+        this.minUploadDate = minUploadDate;
+        this.maxUploadDate = maxUploadDate;
+        this.minUpdateDate = minUpdateDate;
+        this.attempt = attempt;
+        this.source = source;
+    }
+
+    /**
+     * @return what identifies this piece of work in the {@link PageLedger}, the page qualified by its upload date
+     * window when the harvest is partitioned, or the photo of a {@link RequestType#PHOTO_INFO} request, after the
+     * name of its source and a colon in a multi-source harvest
+     */
+    public String key() {
+        String key;
+        if (requestType == RequestType.PHOTO_INFO) {
+            key = "photo/" + photoId;
+        } else if (maxUploadDate == null) {
+            key = Integer.toString(page);
+        } else {
+            key = (minUploadDate == null ? "" : minUploadDate.getTime() / 1000) + "-" + maxUploadDate.getTime() / 1000 + "/" + page;
+        }
+        return source == null ? key : source + ":" + key;
+    }
+
+    /**
+     * @return the source a {@link #key()} belongs to, or null for the single unnamed source
+     */
+    public static String sourceOf(String key) {
+        int colon = key.indexOf(':');
+        return colon < 0 ? null : key.substring(0, colon);
+    }
+
+    /**
+     * The same page, to be tried once more after it failed.
+     */
+    public FlickrRequest nextAttempt() {
+        return new FlickrRequest(groupId, userId, tags, extras, perPage, page, photoId, secret, requestType, minUploadDate, maxUploadDate, minUpdateDate,
+                attempt + 1, source);
+    }
+
+    /**
+     * The same query for another page.
+     */
+    public FlickrRequest forPage(int page) {
+        return new FlickrRequest(groupId, userId, tags, extras, perPage, page, photoId, secret, requestType, minUploadDate, maxUploadDate, minUpdateDate,
+                0, source);
+    }
+
+    /**
+     * The same query as a photo search of the first page of an upload date window.
+     */
+    public FlickrRequest forUploadWindow(Date from, Date to) {
+        return new FlickrRequest(groupId, userId, tags, extras, perPage, 1, null, null, RequestType.PHOTO_SEARCH, from, to, minUpdateDate, 0, source);
+    }
+
+    /**
+     * The same query on behalf of a {@link HarvestSource}.
+     */
+    public FlickrRequest forSource(String source) {
+        return new FlickrRequest(groupId, userId, tags, extras, perPage, page, photoId, secret, requestType, minUploadDate, maxUploadDate, minUpdateDate,
+                attempt, source);
     }
 
 }
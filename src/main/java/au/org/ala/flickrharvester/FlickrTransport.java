@@ -0,0 +1,25 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+
+/**
+ * How {@link FlickrClient} fetches the pages of photos a harvest is made of, which are nearly all of the calls it
+ * makes and nearly all of the bytes it downloads. Chosen with {@code flickr.transport}; the less frequent lookups
+ * always go through flickr4java.
+ * <p>
+ * Implementations are called from every fetch thread at once, and rate limiting is left to the caller.
+ */
+public interface FlickrTransport {
+
+    /**
+     * flickr.groups.pools.getPhotos
+     */
+    PhotoList<Photo> getPoolPhotos(FlickrRequest request) throws FlickrException;
+
+    /**
+     * flickr.photos.search, sorted by upload date so that pages don't shift as photos are added
+     */
+    PhotoList<Photo> searchPhotos(FlickrRequest request) throws FlickrException;
+}
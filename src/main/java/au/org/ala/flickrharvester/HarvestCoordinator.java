@@ -0,0 +1,114 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs a harvest across any number of worker processes sharing a broker. The coordinator puts every page on the
+ * work queue, records each page in its own ledger as workers report it written to their shards, and announces
+ * on the control topic once nothing is outstanding so that the workers can finish their shards and exit. A page
+ * a worker gave up on is no longer outstanding either, but isn't recorded as written.
+ * <p>
+ * Resuming a coordinator only queues the pages its ledger has no W entry for.
+ */
+public class HarvestCoordinator {
+    private static final Logger log = LoggerFactory.getLogger(HarvestCoordinator.class);
+
+    static final String WORK_QUEUE = "harvest.pages";
+    static final String DONE_QUEUE = "harvest.done";
+    static final String CONTROL_TOPIC = "harvest.control";
+    /** Set on a done message for a page that was given up on rather than written */
+    static final String FAILED_PROPERTY = "failed";
+    private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
+
+    private final ConnectionFactory connectionFactory;
+    private final PageLedger ledger;
+
+    public HarvestCoordinator(ConnectionFactory connectionFactory, PageLedger ledger) {
+        this.connectionFactory = connectionFactory;
+        this.ledger = ledger;
+    }
+
+    /**
+     * Queues the pages and waits for the workers to write them.
+     *
+     * @param idleTimeoutMillis how long to wait without any page being reported before giving up on the rest
+     * @return whether every page was written
+     */
+    public boolean run(List<FlickrRequest> pages, long idleTimeoutMillis) throws JMSException, IOException, InterruptedException {
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer done = session.createConsumer(session.createQueue(DONE_QUEUE));
+            Set<String> outstanding = schedule(session, pages);
+            int failed = 0;
+
+            long lastProgress = System.currentTimeMillis();
+            while (!outstanding.isEmpty() && System.currentTimeMillis() - lastProgress < idleTimeoutMillis) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Message message = done.receive(RECEIVE_TIMEOUT_MILLIS);
+                if (message != null) {
+                    String key = ((TextMessage) message).getText();
+                    if (outstanding.remove(key)) {
+                        lastProgress = System.currentTimeMillis();
+                        if (message.getBooleanProperty(FAILED_PROPERTY)) {
+                            failed++;
+                            log.warn("Page {} was given up on, {} pages outstanding", key, outstanding.size());
+                        } else {
+                            ledger.written(key, -1);
+                            log.debug("Page {} written, {} pages outstanding", key, outstanding.size());
+                        }
+                    }
+                }
+            }
+
+            if (outstanding.isEmpty() && failed == 0) {
+                log.info("All {} pages written, telling the workers to finish", pages.size());
+            } else if (outstanding.isEmpty()) {
+                log.error("{} pages were given up on, see the workers' dead letter files, run the coordinator again with --resume to queue them again",
+                        failed);
+            } else {
+                log.error("No page written for {} ms, giving up on {} outstanding pages, run the coordinator again with --resume to queue them again",
+                        idleTimeoutMillis, outstanding.size());
+            }
+            MessageProducer control = session.createProducer(session.createTopic(CONTROL_TOPIC));
+            control.send(session.createTextMessage("complete"));
+            return outstanding.isEmpty() && failed == 0;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Set<String> schedule(Session session, List<FlickrRequest> pages) throws JMSException, IOException {
+        Set<String> outstanding = new LinkedHashSet<>();
+        MessageProducer producer = session.createProducer(session.createQueue(WORK_QUEUE));
+        for (FlickrRequest request : pages) {
+            if (ledger.isWritten(request.key())) {
+                log.debug("Page {} was written by an earlier run, skipping it", request.key());
+                continue;
+            }
+            ledger.scheduled(request.key());
+            producer.send(session.createObjectMessage(request));
+            outstanding.add(request.key());
+        }
+        producer.close();
+        log.info("Queued {} pages for the workers", outstanding.size());
+        return outstanding;
+    }
+}
@@ -0,0 +1,374 @@
+package au.org.ala.flickrharvester;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * What the harvest running in this process has got through and where its time goes: pages fetched and written
+ * against the pages planned, photos mapped and rejected, rows written, how long Flickr calls take, how long was
+ * spent waiting on the {@link RateLimiter}, and how full the queues between the stages are. From the pages written
+ * so far it works out an ETA.
+ * <p>
+ * One instance lives in the {@link FlickrClient} so every stage can reach it. The hot paths only bump counters;
+ * everything else is read from the objects that already keep it, when somebody asks. It is published over JMX,
+ * optionally as a Prometheus style {@code /metrics} page on a local port, and optionally as a periodic log line.
+ * <p>
+ * With the jms engine the broker's queues are on its own JMX beans rather than here.
+ */
+public class HarvestMetrics implements HarvestMetricsMBean, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(HarvestMetrics.class);
+
+    private static final String PREFIX = "flickrharvester_";
+
+    /**
+     * The kinds of Flickr call timed separately, as they take very different times.
+     */
+    public enum Call {
+        /** A page of photos */
+        PAGE,
+        /** photos.getInfo for a single photo */
+        INFO,
+        /** A license, owner or place */
+        LOOKUP
+    }
+
+    private final RateLimiter rateLimiter;
+    private final long startNanos = System.nanoTime();
+    private final Map<Call, LatencyHistogram> latency = new EnumMap<>(Call.class);
+    private final AtomicLong photosMapped = new AtomicLong();
+    private final AtomicLong photosRejected = new AtomicLong();
+    private final AtomicLong pagesRetried = new AtomicLong();
+    private final AtomicLong pagesDeadLettered = new AtomicLong();
+    private final Map<String, IntSupplier> queues = new ConcurrentSkipListMap<>();
+    private volatile PageLedger ledger;
+    private volatile long pagesTotal;
+    private volatile long pagesWrittenBefore;
+    private volatile long trackedSince = System.nanoTime();
+    private volatile LongSupplier rowCount = () -> 0;
+    private HttpServer server;
+    private ScheduledExecutorService reporter;
+
+    public HarvestMetrics(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        for (Call call : Call.values()) {
+            latency.put(call, new LatencyHistogram());
+        }
+    }
+
+    public void recordCall(Call call, long nanos) {
+        latency.get(call).record(nanos);
+    }
+
+    public LatencyHistogram getLatency(Call call) {
+        return latency.get(call);
+    }
+
+    public void photosMapped(int count) {
+        photosMapped.addAndGet(count);
+    }
+
+    public void photosRejected(int count) {
+        photosRejected.addAndGet(count);
+    }
+
+    public void pageRetried() {
+        pagesRetried.incrementAndGet();
+    }
+
+    public void pageDeadLettered() {
+        pagesDeadLettered.incrementAndGet();
+    }
+
+    /**
+     * Follows the pages of a harvest through its ledger. Pages an earlier run already wrote count as done but not
+     * towards the rate the ETA is worked out from.
+     *
+     * @param pagesTotal how many pages the harvest is made of, or 0 if this process can't know, as in a worker
+     */
+    public void track(PageLedger ledger, long pagesTotal) {
+        this.pagesWrittenBefore = ledger.getWrittenCount();
+        this.trackedSince = System.nanoTime();
+        this.pagesTotal = pagesTotal;
+        this.ledger = ledger;
+    }
+
+    /**
+     * @param rowCount the row count of the output, called from other threads
+     */
+    public void trackRows(LongSupplier rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public void trackQueue(String name, IntSupplier depth) {
+        queues.put(name, depth);
+    }
+
+    /**
+     * Serves {@code /metrics} on the loopback interface until {@link #close()}.
+     */
+    public synchronized void serve(int port) throws IOException, InterruptedException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService handler = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "metrics-http"));
+        server.setExecutor(handler);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // the server's dispatcher thread takes after the thread starting it, so a forgotten server can't keep the JVM up
+        Thread starter = daemon(server::start, "metrics-http-start");
+        starter.start();
+        starter.join();
+        log.info("Serving harvest metrics on http://{}:{}/metrics", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * @return the port {@code /metrics} is served on, or -1 if it isn't
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Logs {@link #summary()} every so often until {@link #close()}.
+     */
+    public synchronized void logEvery(long seconds) {
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "metrics-log"));
+        reporter.scheduleAtFixedRate(() -> log.info(summary()), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * One line on where the harvest is, for the log.
+     */
+    public String summary() {
+        long eta = getEtaSeconds();
+        return String.format("Progress: %d of %d pages written, %d fetched, %d retried, %d dead lettered, %d photos mapped, %d rejected, %d rows written, "
+                        + "%.1f pages/minute, ETA %s, page calls %.0f ms mean %d ms p99, %d ms waiting on the rate limiter, queues %s",
+                getPagesWritten(), getPagesTotal(), getPagesFetched(), getPagesRetried(), getPagesDeadLettered(), getPhotosMapped(), getPhotosRejected(), getRowsWritten(),
+                getPagesPerMinute(), eta < 0 ? "unknown" : formatSeconds(eta), getPageCallMeanMillis(), getPageCallP99Millis(),
+                getThrottleWaitMillis(), getQueueDepths());
+    }
+
+    private static String formatSeconds(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    /**
+     * Everything in Prometheus' text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "pages_planned", "Pages the harvest is made of, 0 if unknown", getPagesTotal());
+        counter(text, "pages_fetched_total", "Pages fetched from Flickr by this run", getPagesFetched());
+        gauge(text, "pages_written", "Pages committed to the output, including by earlier runs", getPagesWritten());
+        counter(text, "pages_retried_total", "Failed pages queued to be tried again", getPagesRetried());
+        counter(text, "pages_dead_lettered_total", "Pages given up on after their last attempt", getPagesDeadLettered());
+        counter(text, "photos_mapped_total", "Photos mapped to Darwin Core", getPhotosMapped());
+        counter(text, "photos_rejected_total", "Photos dropped by the update date filters", getPhotosRejected());
+        counter(text, "rows_written_total", "Rows written to the output by this run", getRowsWritten());
+        counter(text, "throttle_wait_seconds_total", "Time spent waiting on the rate limiter", getThrottleWaitMillis() / 1000.0);
+        counter(text, "throttle_events_total", "Calls Flickr throttled", rateLimiter.getThrottleCount());
+        gauge(text, "rate_limit_calls_per_second", "The rate limiter's current rate", rateLimiter.getCurrentRate());
+        gauge(text, "elapsed_seconds", "Time since the harvest started", getElapsedSeconds());
+        gauge(text, "pages_per_minute", "Pages written per minute by this run", getPagesPerMinute());
+        gauge(text, "eta_seconds", "Estimated time until every page is written, -1 if unknown", getEtaSeconds());
+
+        text.append("# HELP ").append(PREFIX).append("queue_depth Items waiting between two stages\n");
+        text.append("# TYPE ").append(PREFIX).append("queue_depth gauge\n");
+        for (Map.Entry<String, IntSupplier> queue : queues.entrySet()) {
+            text.append(PREFIX).append("queue_depth{queue=\"").append(queue.getKey()).append("\"} ")
+                    .append(queue.getValue().getAsInt()).append('\n');
+        }
+
+        text.append("# HELP ").append(PREFIX).append("flickr_call_seconds Time Flickr took to answer, rate limiter waits excluded\n");
+        text.append("# TYPE ").append(PREFIX).append("flickr_call_seconds histogram\n");
+        for (Map.Entry<Call, LatencyHistogram> entry : latency.entrySet()) {
+            String call = entry.getKey().name().toLowerCase();
+            LatencyHistogram histogram = entry.getValue();
+            for (int i = 0; i <= LatencyHistogram.BOUNDS_MILLIS.length; i++) {
+                String bound = i < LatencyHistogram.BOUNDS_MILLIS.length ? Double.toString(LatencyHistogram.BOUNDS_MILLIS[i] / 1000.0) : "+Inf";
+                text.append(PREFIX).append("flickr_call_seconds_bucket{call=\"").append(call).append("\",le=\"").append(bound).append("\"} ")
+                        .append(histogram.getCumulativeCount(i)).append('\n');
+            }
+            text.append(PREFIX).append("flickr_call_seconds_sum{call=\"").append(call).append("\"} ").append(histogram.getTotalSeconds()).append('\n');
+            text.append(PREFIX).append("flickr_call_seconds_count{call=\"").append(call).append("\"} ").append(histogram.getCount()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, Number value) {
+        metric(text, name, help, "gauge", value);
+    }
+
+    private static void counter(StringBuilder text, String name, String help, Number value) {
+        metric(text, name, help, "counter", value);
+    }
+
+    private static void metric(StringBuilder text, String name, String help, String type, Number value) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    @Override
+    public long getPagesTotal() {
+        return pagesTotal;
+    }
+
+    @Override
+    public long getPagesFetched() {
+        PageLedger tracked = ledger;
+        return tracked == null ? 0 : tracked.getFetchedCount();
+    }
+
+    @Override
+    public long getPagesWritten() {
+        PageLedger tracked = ledger;
+        return tracked == null ? 0 : tracked.getWrittenCount();
+    }
+
+    @Override
+    public long getPagesRetried() {
+        return pagesRetried.get();
+    }
+
+    @Override
+    public long getPagesDeadLettered() {
+        return pagesDeadLettered.get();
+    }
+
+    @Override
+    public long getPhotosMapped() {
+        return photosMapped.get();
+    }
+
+    @Override
+    public long getPhotosRejected() {
+        return photosRejected.get();
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return rowCount.getAsLong();
+    }
+
+    @Override
+    public long getPageCallCount() {
+        return latency.get(Call.PAGE).getCount();
+    }
+
+    @Override
+    public double getPageCallMeanMillis() {
+        return latency.get(Call.PAGE).getMeanMillis();
+    }
+
+    @Override
+    public long getPageCallP50Millis() {
+        return latency.get(Call.PAGE).getPercentileMillis(0.5);
+    }
+
+    @Override
+    public long getPageCallP99Millis() {
+        return latency.get(Call.PAGE).getPercentileMillis(0.99);
+    }
+
+    @Override
+    public long getInfoCallCount() {
+        return latency.get(Call.INFO).getCount();
+    }
+
+    @Override
+    public double getInfoCallMeanMillis() {
+        return latency.get(Call.INFO).getMeanMillis();
+    }
+
+    @Override
+    public long getLookupCallCount() {
+        return latency.get(Call.LOOKUP).getCount();
+    }
+
+    @Override
+    public double getLookupCallMeanMillis() {
+        return latency.get(Call.LOOKUP).getMeanMillis();
+    }
+
+    @Override
+    public long getThrottleWaitMillis() {
+        return rateLimiter.getTotalWaitMillis();
+    }
+
+    @Override
+    public String getQueueDepths() {
+        StringBuilder depths = new StringBuilder();
+        for (Map.Entry<String, IntSupplier> queue : queues.entrySet()) {
+            if (depths.length() > 0) {
+                depths.append(", ");
+            }
+            depths.append(queue.getKey()).append('=').append(queue.getValue().getAsInt());
+        }
+        return depths.toString();
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public double getPagesPerMinute() {
+        double minutes = (System.nanoTime() - trackedSince) / 60e9;
+        return minutes <= 0 ? 0 : (getPagesWritten() - pagesWrittenBefore) / minutes;
+    }
+
+    /**
+     * @return the pages left over the rate this run has written them at, or -1 before there is either
+     */
+    @Override
+    public long getEtaSeconds() {
+        long total = pagesTotal;
+        double perMinute = getPagesPerMinute();
+        if (total <= 0 || perMinute <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, total - getPagesWritten()) / perMinute * 60);
+    }
+}
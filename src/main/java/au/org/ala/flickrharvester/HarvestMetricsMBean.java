@@ -0,0 +1,49 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the {@link HarvestMetrics} of the running harvest.
+ */
+public interface HarvestMetricsMBean {
+
+    long getPagesTotal();
+
+    long getPagesFetched();
+
+    long getPagesWritten();
+
+    long getPagesRetried();
+
+    long getPagesDeadLettered();
+
+    long getPhotosMapped();
+
+    long getPhotosRejected();
+
+    long getRowsWritten();
+
+    long getPageCallCount();
+
+    double getPageCallMeanMillis();
+
+    long getPageCallP50Millis();
+
+    long getPageCallP99Millis();
+
+    long getInfoCallCount();
+
+    double getInfoCallMeanMillis();
+
+    long getLookupCallCount();
+
+    double getLookupCallMeanMillis();
+
+    long getThrottleWaitMillis();
+
+    String getQueueDepths();
+
+    long getElapsedSeconds();
+
+    double getPagesPerMinute();
+
+    long getEtaSeconds();
+}
@@ -0,0 +1,39 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * One of the things a harvest pages through: a group pool, or without a group a photo search for a user's photos
+ * and machine tags. Named sources are set up with {@code flickr.sources}. The single source of {@code flickr.group_id},
+ * {@code flickr.user_id} and {@code flickr.machine_tags} has no name, which keeps its ledger keys and state file as
+ * they have always been.
+ */
+public class HarvestSource {
+    /** Letters, digits, {@code _} and {@code -}, as the name ends up in ledger keys and file names */
+    static final String NAME_PATTERN = "[A-Za-z0-9_-]+";
+
+    public final String name;
+    public final String groupId;
+    public final String userId;
+    public final String[] machineTags;
+
+    public HarvestSource(String name, String groupId, String userId, String[] machineTags) {
+        if (name != null && !name.matches(NAME_PATTERN)) {
+            throw new IllegalArgumentException("A source name may only hold letters, digits, _ and -: " + name);
+        }
+        this.name = name;
+        this.groupId = groupId;
+        this.userId = userId;
+        this.machineTags = machineTags;
+    }
+
+    /**
+     * @return whether this source is a group pool rather than a search
+     */
+    public boolean isPool() {
+        return groupId != null && !groupId.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "the configured group" : name;
+    }
+}
@@ -0,0 +1,110 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * High-water marks of the photos emitted so far, kept in a small properties file between runs so that an
+ * incremental harvest only has to ask for what changed since the previous one.
+ */
+public class HarvestState {
+    private static final Logger log = LoggerFactory.getLogger(HarvestState.class);
+
+    private static final String LAST_UPDATE = "last_update";
+    private static final String DATE_UPLOAD = "date_upload";
+
+    private final Path file;
+    private final Date previousLastUpdate;
+    private final Date previousDateUpload;
+    private final AtomicLong maxLastUpdate = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong maxDateUpload = new AtomicLong(Long.MIN_VALUE);
+
+    private HarvestState(Path file, Date previousLastUpdate, Date previousDateUpload) {
+        this.file = file;
+        this.previousLastUpdate = previousLastUpdate;
+        this.previousDateUpload = previousDateUpload;
+        if (previousLastUpdate != null) {
+            maxLastUpdate.set(previousLastUpdate.getTime());
+        }
+        if (previousDateUpload != null) {
+            maxDateUpload.set(previousDateUpload.getTime());
+        }
+    }
+
+    /**
+     * Reads the state left by the previous run, or starts an empty one if there is no state file yet.
+     */
+    public static HarvestState load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            log.info("No harvest state found at {}", file);
+            return new HarvestState(file, null, null);
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        HarvestState state = new HarvestState(file, toDate(properties.getProperty(LAST_UPDATE)), toDate(properties.getProperty(DATE_UPLOAD)));
+        log.info("Loaded harvest state from {}: last_update={}, date_upload={}", file, state.previousLastUpdate, state.previousDateUpload);
+        return state;
+    }
+
+    private static Date toDate(String millis) {
+        return (millis == null || millis.isEmpty()) ? null : new Date(Long.parseLong(millis));
+    }
+
+    /**
+     * @return the newest last_update emitted by an earlier run, or null if there hasn't been one
+     */
+    public Date getPreviousLastUpdate() {
+        return previousLastUpdate;
+    }
+
+    /**
+     * @return the newest date_upload emitted by an earlier run, or null if there hasn't been one
+     */
+    public Date getPreviousDateUpload() {
+        return previousDateUpload;
+    }
+
+    /**
+     * Records a photo that has been written to the output. Safe to call from any processor thread.
+     */
+    public void observe(Photo photo) {
+        if (photo.getLastUpdate() != null) {
+            maxLastUpdate.accumulateAndGet(photo.getLastUpdate().getTime(), Math::max);
+        }
+        if (photo.getDatePosted() != null) {
+            maxDateUpload.accumulateAndGet(photo.getDatePosted().getTime(), Math::max);
+        }
+    }
+
+    /**
+     * Writes the new high-water marks, replacing the state file atomically so a crash can't leave it half written.
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        if (maxLastUpdate.get() != Long.MIN_VALUE) {
+            properties.setProperty(LAST_UPDATE, Long.toString(maxLastUpdate.get()));
+        }
+        if (maxDateUpload.get() != Long.MIN_VALUE) {
+            properties.setProperty(DATE_UPLOAD, Long.toString(maxDateUpload.get()));
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "Flickr harvester high-water marks (milliseconds since the epoch)");
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Saved harvest state to {}: last_update={}, date_upload={}", file, new Date(maxLastUpdate.get()), new Date(maxDateUpload.get()));
+    }
+}
@@ -0,0 +1,99 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.ConnectionFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+/**
+ * One process of a distributed harvest. Pages come off the shared work queue instead of being counted locally,
+ * go through the in-process pipeline and end up in this worker's own shard, with a ledger of its own next to it so
+ * a restarted worker can {@code --resume} its shard. Pages it gives up on go to a dead letter file next to the shard
+ * and are reported to the coordinator as failed.
+ */
+public class HarvestWorker {
+    private static final Logger log = LoggerFactory.getLogger(HarvestWorker.class);
+
+    private final Config config;
+    private final FlickrClient flickr;
+    private final MetadataCache metadata;
+    private final PhotoInfoEnricher enricher;
+    private final MediaVerifier media;
+    private final HeapBudget budget;
+    private final ConnectionFactory connectionFactory;
+    private final OutputFormat outputFormat;
+    private final Path shardPath;
+    private final HarvestState state;
+    private final boolean resume;
+
+    /**
+     * @param enricher the photo details stage, or null to skip it
+     * @param media    the media checks, or null to skip them
+     * @param budget   the pages that may be in flight at once
+     */
+    public HarvestWorker(Config config, FlickrClient flickr, MetadataCache metadata, PhotoInfoEnricher enricher, MediaVerifier media,
+                         HeapBudget budget, ConnectionFactory connectionFactory, OutputFormat outputFormat, Path shardPath, HarvestState state, boolean resume) {
+        this.config = config;
+        this.flickr = flickr;
+        this.metadata = metadata;
+        this.enricher = enricher;
+        this.media = media;
+        this.budget = budget;
+        this.connectionFactory = connectionFactory;
+        this.outputFormat = outputFormat;
+        this.shardPath = shardPath;
+        this.state = state;
+        this.resume = resume;
+    }
+
+    /**
+     * Harvests pages until the coordinator reports the harvest complete.
+     */
+    public void run(int threads, int mapThreads, int queueCapacity) throws Exception {
+        try (PageLedger ledger = PageLedger.open(Paths.get(shardPath + ".ledger"), resume);
+             PageRetrier retrier = PageRetrier.open(config, Paths.get(shardPath + PageRetrier.DEAD_LETTER_SUFFIX), resume, flickr.getMetrics());
+             JmsPageSource work = new JmsPageSource(connectionFactory)) {
+            if (resume) {
+                ledger.truncateToCommitted(shardPath);
+            } else {
+                Files.deleteIfExists(shardPath);
+            }
+            ledger.setWrittenListener(work::pageDone);
+            // a page this shard already holds only needs reporting, the coordinator may have lost track of it
+            PageSource pages = new PageSource() {
+                @Override
+                public FlickrRequest next() throws InterruptedException {
+                    FlickrRequest request = work.next();
+                    while (request != null && ledger.isWritten(request.key())) {
+                        work.pageDone(request.key());
+                        request = work.next();
+                    }
+                    return request;
+                }
+
+                @Override
+                public void gaveUp(FlickrRequest request) {
+                    work.pageFailed(request.key());
+                }
+
+                @Override
+                public boolean mayBlock() {
+                    return true;
+                }
+            };
+            try (OutputSink sink = outputFormat.open(shardPath, Config.CSV_FIELD_LIST, ledger)) {
+                // only the coordinator knows how many pages there are
+                flickr.getMetrics().track(ledger, 0);
+                flickr.getMetrics().trackRows(sink::getRowCount);
+                PageMapper pageMapper = new PageMapper(config, metadata.getLicenses(), state, Collections.emptyMap(), flickr.getMetrics(), media);
+                new InProcessPipeline(config, flickr, metadata, enricher, pageMapper, ledger, retrier, sink, budget, threads, mapThreads, queueCapacity)
+                        .run(pages);
+            }
+        }
+        log.info("Worker finished its shard {}", shardPath);
+    }
+}
@@ -0,0 +1,172 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a harvest within a share of the heap by bounding the pages in flight, from the moment a fetch thread asks
+ * Flickr for a page until its rows are written. A fetch thread takes a page from the budget before every fetch and
+ * waits when there is none to take, so a stage that falls behind slows the fetches down rather than letting pages
+ * pile up.
+ * <p>
+ * The budget starts at as many pages as the heap budget holds by {@code memory.bytes_per_photo}. After each garbage
+ * collection it looks at what is left on the heap: over budget, and the pages allowed in flight are halved, down to
+ * one; comfortably under, and they grow back a step at a time. One page is always allowed, so a harvest can't stall
+ * on its own budget.
+ */
+public class HeapBudget implements HeapBudgetMBean {
+    private static final Logger log = LoggerFactory.getLogger(HeapBudget.class);
+
+    /** How often a waiting thread looks at the heap again, as pages may be let through by a collection alone */
+    private static final long RECHECK_MILLIS = 100;
+    /** The share of maximum heap used when {@code memory.heap_budget_mb} is 0 */
+    private static final double DEFAULT_HEAP_SHARE = 0.5;
+    /** The share of the budget the live heap has to be under for the limit to grow again */
+    private static final double GROW_BELOW = 0.75;
+    private static final int GROW_STEPS = 10;
+
+    private final long budgetBytes;
+    private final int maxPages;
+    private int limit;
+    private int inFlight;
+    private long collections = -1;
+    private long liveBytes;
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong shrinks = new AtomicLong();
+
+    /**
+     * @param budgetBytes  how much of the heap the harvest may hold on to
+     * @param bytesPerPage what a page is expected to take up while it is in flight
+     */
+    public HeapBudget(long budgetBytes, long bytesPerPage) {
+        this.budgetBytes = budgetBytes;
+        this.maxPages = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / Math.max(1, bytesPerPage)));
+        this.limit = maxPages;
+    }
+
+    public static HeapBudget of(Config config) {
+        long budget = config.HEAP_BUDGET_MB > 0 ? config.HEAP_BUDGET_MB * 1024L * 1024
+                : (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_SHARE);
+        return new HeapBudget(budget, (long) config.PER_PAGE * config.BYTES_PER_PHOTO);
+    }
+
+    /**
+     * A budget that never holds anything back.
+     */
+    public static HeapBudget unbounded() {
+        return new HeapBudget(Long.MAX_VALUE, 1);
+    }
+
+    /**
+     * Blocks until another page may be fetched.
+     */
+    public void acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (this) {
+            adjust();
+            while (inFlight >= limit) {
+                TimeUnit.MILLISECONDS.timedWait(this, RECHECK_MILLIS);
+                adjust();
+            }
+            inFlight++;
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Gives back a page that was written, or that will never be.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Looks at the heap again once a collection has been and gone.
+     */
+    private void adjust() {
+        if (maxPages == 1) {
+            return;
+        }
+        long count = collectionCount();
+        if (count == collections) {
+            return;
+        }
+        collections = count;
+        liveBytes = liveHeapBytes();
+        if (liveBytes > budgetBytes && limit > 1) {
+            limit = Math.max(1, limit / 2);
+            shrinks.incrementAndGet();
+            log.warn("{} MB left on the heap after a collection is over the budget of {} MB, fetching at most {} pages ahead",
+                    liveBytes >> 20, budgetBytes >> 20, limit);
+        } else if (liveBytes < budgetBytes * GROW_BELOW && limit < maxPages) {
+            limit = Math.min(maxPages, limit + Math.max(1, maxPages / GROW_STEPS));
+        }
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * What the heap held after the last collection of each of its pools, or what it holds now for a pool that
+     * doesn't say, which errs on the high side.
+     */
+    private static long liveHeapBytes() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                used += (usage == null ? pool.getUsage() : usage).getUsed();
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    @Override
+    public synchronized long getLiveHeapBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    @Override
+    public synchronized int getPageLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized int getPagesInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    @Override
+    public long getShrinkCount() {
+        return shrinks.get();
+    }
+}
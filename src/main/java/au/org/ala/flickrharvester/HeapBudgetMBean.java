@@ -0,0 +1,21 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the {@link HeapBudget}.
+ */
+public interface HeapBudgetMBean {
+
+    long getBudgetBytes();
+
+    long getLiveHeapBytes();
+
+    int getMaxPages();
+
+    int getPageLimit();
+
+    int getPagesInFlight();
+
+    long getWaitMillis();
+
+    long getShrinkCount();
+}
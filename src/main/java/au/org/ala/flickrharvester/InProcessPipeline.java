@@ -0,0 +1,308 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a harvest inside the JVM without the broker: fetch threads hand pages to map threads over a bounded
+ * queue, and the map threads hand rows to a single writer thread over another one. Nothing is serialised and a slow
+ * stage blocks the one before it rather than letting work pile up in memory. The writer thread is the only
+ * one that touches the {@link OutputSink}.
+ * <p>
+ * The fetch threads do nothing but wait on Flickr, so there can be as many of them as requests we want in
+ * flight, while mapping is CPU bound and gets its own pool sized to the machine.
+ * <p>
+ * With a {@link PhotoInfoEnricher} the fetched pages go through an enrich stage of its own, with as many threads as
+ * the enricher allows calls and its own bounded queue in front of it, before being mapped.
+ * <p>
+ * A page that fails to fetch is handed out again after a backoff by a {@link RetryingPageSource}, until the
+ * {@link PageRetrier} gives up on it. The fetch threads stop once every page is through rather than on a timeout.
+ * <p>
+ * Every page is paid for from a {@link HeapBudget} before it is fetched and given back once it is written, so the
+ * queues can't hold more than the heap budget allows even when their capacities would.
+ * <p>
+ * A page that fails to map, or rows the sink fails to write, fail the run once the other pages are through, so that
+ * nothing is saved as if the harvest was complete. A failed write stops the fetch threads taking more pages.
+ */
+public class InProcessPipeline {
+    private static final Logger log = LoggerFactory.getLogger(InProcessPipeline.class);
+
+    private static final FetchedPage NO_MORE_PAGES = new FetchedPage(null, null);
+    private static final MappedPage NO_MORE_ROWS = new MappedPage(null, null);
+
+    private final Config config;
+    private final FlickrClient flickr;
+    private final MetadataCache metadata;
+    private final PhotoInfoEnricher enricher;
+    private final PageMapper pageMapper;
+    private final PageLedger ledger;
+    private final PageRetrier retrier;
+    private final OutputSink sink;
+    private final HeapBudget budget;
+    private final int fetchThreads;
+    private final int mapThreads;
+    private final BlockingQueue<FetchedPage> fetched;
+    private final BlockingQueue<FetchedPage> enriched;
+    private final BlockingQueue<MappedPage> mapped;
+    /** The first page that failed to map or write */
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private volatile boolean writeFailed;
+
+    public InProcessPipeline(Config config, FlickrClient flickr, MetadataCache metadata, PhotoInfoEnricher enricher, PageMapper pageMapper,
+                             PageLedger ledger, PageRetrier retrier, OutputSink sink, int fetchThreads, int mapThreads, int queueCapacity) {
+        this(config, flickr, metadata, enricher, pageMapper, ledger, retrier, sink, HeapBudget.unbounded(), fetchThreads, mapThreads, queueCapacity);
+    }
+
+    /**
+     * @param enricher the photo details stage, or null to map the pages as fetched
+     * @param budget   the pages that may be in flight at once
+     */
+    public InProcessPipeline(Config config, FlickrClient flickr, MetadataCache metadata, PhotoInfoEnricher enricher, PageMapper pageMapper,
+                             PageLedger ledger, PageRetrier retrier, OutputSink sink, HeapBudget budget, int fetchThreads, int mapThreads,
+                             int queueCapacity) {
+        this.config = config;
+        this.flickr = flickr;
+        this.metadata = metadata;
+        this.enricher = enricher;
+        this.pageMapper = pageMapper;
+        this.ledger = ledger;
+        this.retrier = retrier;
+        this.sink = sink;
+        this.budget = budget;
+        this.fetchThreads = fetchThreads;
+        this.mapThreads = mapThreads;
+        this.fetched = new ArrayBlockingQueue<>(enricher == null ? queueCapacity : enricher.getQueueCapacity());
+        this.enriched = enricher == null ? fetched : new ArrayBlockingQueue<>(queueCapacity);
+        this.mapped = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Harvests the pages and returns once every row has been written.
+     *
+     * @throws Exception the first failure to map or write a page, once the pipeline has stopped
+     */
+    public void run(List<FlickrRequest> pages) throws Exception {
+        run(PageSource.of(pages));
+    }
+
+    /**
+     * Harvests pages until the source runs dry and returns once every row has been written.
+     *
+     * @throws Exception the first failure to map or write a page, once the pipeline has stopped
+     */
+    public void run(PageSource source) throws Exception {
+        RetryingPageSource pages = new RetryingPageSource(source);
+        HarvestMetrics metrics = flickr.getMetrics();
+        metrics.trackQueue("fetched", fetched::size);
+        if (enricher != null) {
+            metrics.trackQueue("enriched", enriched::size);
+        }
+        metrics.trackQueue("mapped", mapped::size);
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(fetchThreads, new StageThreadFactory("fetch", StageThreadFactory.IO_STACK_SIZE));
+        int enrichThreads = enricher == null ? 0 : enricher.getThreads();
+        ExecutorService enrichExecutor = enricher == null ? null
+                : Executors.newFixedThreadPool(enrichThreads, new StageThreadFactory("enrich", StageThreadFactory.IO_STACK_SIZE));
+        ExecutorService mapExecutor = Executors.newFixedThreadPool(mapThreads, new StageThreadFactory("map", 0));
+        ExecutorService writeExecutor = Executors.newSingleThreadExecutor(new StageThreadFactory("write", 0));
+        CountDownLatch fetchersDone = new CountDownLatch(fetchThreads);
+        CountDownLatch enrichersDone = new CountDownLatch(enrichThreads);
+        CountDownLatch mappersDone = new CountDownLatch(mapThreads);
+
+        for (int i = 0; i < fetchThreads; i++) {
+            fetchExecutor.execute(() -> {
+                try {
+                    fetch(pages);
+                } finally {
+                    fetchersDone.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < enrichThreads; i++) {
+            enrichExecutor.execute(() -> {
+                try {
+                    enrich();
+                } finally {
+                    enrichersDone.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < mapThreads; i++) {
+            mapExecutor.execute(() -> {
+                try {
+                    map();
+                } finally {
+                    mappersDone.countDown();
+                }
+            });
+        }
+        writeExecutor.execute(() -> {
+            try {
+                write();
+            } catch (IOException | RuntimeException e) {
+                log.error("Writing the output failed, discarding the remaining rows", e);
+                writeFailed = true;
+                failure.compareAndSet(null, e);
+                drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // Tell each downstream stage to stop once everything upstream has drained
+        fetchersDone.await();
+        for (int i = 0; i < enrichThreads; i++) {
+            fetched.put(NO_MORE_PAGES);
+        }
+        enrichersDone.await();
+        for (int i = 0; i < mapThreads; i++) {
+            enriched.put(NO_MORE_PAGES);
+        }
+        mappersDone.await();
+        mapped.put(NO_MORE_ROWS);
+
+        fetchExecutor.shutdown();
+        if (enrichExecutor != null) {
+            enrichExecutor.shutdown();
+        }
+        mapExecutor.shutdown();
+        writeExecutor.shutdown();
+        writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        log.info("In-process pipeline finished.");
+    }
+
+    private void fetch(RetryingPageSource pages) {
+        FlickrRequest request;
+        while (!writeFailed && (request = nextPage(pages)) != null) {
+            if (ledger.isWritten(request.key())) {
+                log.debug("Page {} was written by an earlier run, skipping it", request.key());
+                pages.done(request);
+                continue;
+            }
+            try {
+                budget.acquire();
+                ledger.scheduled(request.key());
+                PhotoList<Photo> photoList = flickr.getPhotos(request);
+                metadata.resolve(photoList);
+                ledger.fetched(request.key());
+                log.info("Got {} photos in page number {}.", photoList.size(), request.page);
+                fetched.put(new FetchedPage(request, photoList));
+                pages.done(request);
+            } catch (FlickrException | IOException | RuntimeException e) {
+                budget.release();
+                long delay = retrier.failed(request, e);
+                if (delay < 0) {
+                    pages.gaveUp(request);
+                } else {
+                    pages.retry(request, delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private FlickrRequest nextPage(PageSource pages) {
+        try {
+            return pages.next();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void enrich() {
+        try {
+            for (FetchedPage page = fetched.take(); page != NO_MORE_PAGES; page = fetched.take()) {
+                enricher.enrich(page.request, page.photos);
+                enriched.put(page);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void map() {
+        try {
+            for (FetchedPage page = enriched.take(); page != NO_MORE_PAGES; page = enriched.take()) {
+                try {
+                    mapped.put(new MappedPage(page.request.key(), pageMapper.map(page.request, page.photos)));
+                } catch (FlickrException | RuntimeException e) {
+                    budget.release();
+                    log.error("Mapping page {} failed, it will be picked up by --resume", page.request.key(), e);
+                    failure.compareAndSet(null, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() throws IOException, InterruptedException {
+        while (true) {
+            MappedPage page = mapped.poll(CsvOutputWriter.DEFAULT_CHECKPOINT_MILLIS, TimeUnit.MILLISECONDS);
+            if (page == NO_MORE_ROWS) {
+                return;
+            }
+            if (page == null) {
+                // the sink only checkpoints as rows arrive, so commit what it holds while the fetchers are waiting
+                sink.checkpoint();
+            } else {
+                try {
+                    sink.write(page.key, page.rows);
+                } finally {
+                    budget.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the map threads from blocking forever once the writer can no longer write.
+     */
+    private void drain() {
+        try {
+            while (mapped.take() != NO_MORE_ROWS) {
+                budget.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class FetchedPage {
+        final FlickrRequest request;
+        final PhotoList<Photo> photos;
+
+        FetchedPage(FlickrRequest request, PhotoList<Photo> photos) {
+            this.request = request;
+            this.photos = photos;
+        }
+    }
+
+    private static final class MappedPage {
+        final String key;
+        final List<String[]> rows;
+
+        MappedPage(String key, List<String[]> rows) {
+            this.key = key;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.Closeable;
+
+/**
+ * A worker's side of a distributed harvest: takes pages off the shared work queue that a
+ * {@link HarvestCoordinator} fills, and tells the coordinator about every page once it is committed to the shard.
+ * The source runs dry when the coordinator announces that the harvest is complete, or on an
+ * {@link FlickrRequest.RequestType#END_OF_OPERATION} request.
+ */
+public class JmsPageSource implements PageSource, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(JmsPageSource.class);
+    private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
+
+    private final Connection connection;
+    private final Session workSession;
+    private final MessageConsumer workConsumer;
+    private final Session doneSession;
+    private final MessageProducer doneProducer;
+    private volatile boolean complete;
+    private boolean exhausted;
+
+    public JmsPageSource(ConnectionFactory connectionFactory) throws JMSException {
+        connection = connectionFactory.createConnection();
+        workSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        // without a small prefetch the first worker to connect would be handed most of the queue
+        workConsumer = workSession.createConsumer(workSession.createQueue(HarvestCoordinator.WORK_QUEUE + "?consumer.prefetchSize=1"));
+        doneSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        doneProducer = doneSession.createProducer(doneSession.createQueue(HarvestCoordinator.DONE_QUEUE));
+        // listeners get a session of their own, the work session is only ever used synchronously
+        Session controlSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        controlSession.createConsumer(controlSession.createTopic(HarvestCoordinator.CONTROL_TOPIC)).setMessageListener(message -> {
+            log.info("The coordinator reports the harvest is complete");
+            complete = true;
+        });
+        connection.start();
+    }
+
+    @Override
+    public synchronized FlickrRequest next() throws InterruptedException {
+        while (!exhausted) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            try {
+                Message message = workConsumer.receive(RECEIVE_TIMEOUT_MILLIS);
+                if (message == null) {
+                    exhausted = complete;
+                    continue;
+                }
+                FlickrRequest request = (FlickrRequest) ((ObjectMessage) message).getObject();
+                if (request.requestType == FlickrRequest.RequestType.END_OF_OPERATION) {
+                    exhausted = true;
+                } else {
+                    return request;
+                }
+            } catch (JMSException e) {
+                log.error("Couldn't take a page off the work queue, stopping", e);
+                exhausted = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reports a page as written to this worker's shard.
+     */
+    public void pageDone(String key) {
+        report(key, false);
+    }
+
+    /**
+     * Reports a page this worker gave up on after its last attempt.
+     */
+    public void pageFailed(String key) {
+        report(key, true);
+    }
+
+    private void report(String key, boolean failed) {
+        synchronized (doneProducer) {
+            try {
+                TextMessage message = doneSession.createTextMessage(key);
+                message.setBooleanProperty(HarvestCoordinator.FAILED_PROPERTY, failed);
+                doneProducer.send(message);
+            } catch (JMSException e) {
+                log.error("Couldn't report page {} as done, the coordinator will keep waiting for it", key, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean mayBlock() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            log.warn("Couldn't close the broker connection", e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package au.org.ala.flickrharvester;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a harvest through an embedded ActiveMQ broker and Camel routes: the pages are queued on the broker, fetch
+ * threads take them off it and send the mapped rows to an output queue with a single consumer writing to the sink.
+ * <p>
+ * Starting the broker and Camel takes a good part of a second, so {@link #start()} does it on a thread of its own
+ * and a run can count its pages in the meantime. Camel is only touched from here, so a run on another engine never
+ * loads it.
+ * <p>
+ * The broker isn't persistent, so whatever is queued on it is on the heap. The pages are queued as the fetch threads
+ * get through them, no more than the {@link HeapBudget} allows ahead, and the fetch threads pay for each page they
+ * take from the budget until the output route has written it, so neither queue can outgrow it.
+ * <p>
+ * A page is only through once the output route has written it, or given up on writing it after Camel's redeliveries,
+ * so the broker isn't stopped with rows still queued on it. Redeliveries can go through the route more than once for
+ * the same page, so each page is given back to the budget and counted off once by its ledger key.
+ * <p>
+ * As with the {@link InProcessPipeline}, a page that fails to map, or rows the output route gives up on writing, fail
+ * the run once the other pages are through, so that nothing is saved as if the harvest was complete.
+ */
+public class JmsPipeline {
+    private static final Logger log = LoggerFactory.getLogger(JmsPipeline.class);
+    /** How often the pages are topped up while the request queue is as full as the budget allows */
+    private static final long FEED_MILLIS = 50;
+
+    private final String brokerUrl;
+    private BrokerService broker;
+    private ConnectionFactory connectionFactory;
+    private CamelContext context;
+    private Future<?> started;
+
+    public JmsPipeline(String brokerUrl) {
+        this.brokerUrl = brokerUrl;
+    }
+
+    /**
+     * Starts the broker and Camel in the background, returning at once.
+     */
+    public synchronized JmsPipeline start() {
+        if (started == null) {
+            ExecutorService starter = Executors.newSingleThreadExecutor(new StageThreadFactory("jms-start", 0));
+            started = starter.submit(() -> {
+                boot();
+                return null;
+            });
+            starter.shutdown();
+        }
+        return this;
+    }
+
+    private void boot() throws Exception {
+        broker = new BrokerService();
+        // configure the broker
+        broker.addConnector(brokerUrl);
+        broker.setUseJmx(true);
+        broker.setPersistent(false);
+        // failed pages are put back on the queue with a delay
+        broker.setSchedulerSupport(true);
+        broker.start();
+
+        connectionFactory = new ActiveMQConnectionFactory(brokerUrl);
+        context = new DefaultCamelContext();
+        context.addComponent("amq", JmsComponent.jmsComponentAutoAcknowledge(connectionFactory));
+        context.start();
+    }
+
+    /**
+     * Waits for {@link #start()} to finish, starting it if it hasn't been.
+     */
+    public void awaitStarted() throws Exception {
+        try {
+            start().started.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Harvests the pages and returns once every page has been written or given up on, stopping the broker and Camel.
+     *
+     * @throws Exception the first failure to map or write a page, once the pipeline has stopped
+     */
+    public void run(Config config, FlickrClient flickr, MetadataCache metadata, PhotoInfoEnricher enricher, PageMapper pageMapper,
+                    PageLedger ledger, PageRetrier retrier, OutputSink sink, HeapBudget budget, List<FlickrRequest> pages, int threads,
+                    int mapThreads) throws Exception {
+        awaitStarted();
+        try {
+            harvest(config, flickr, metadata, enricher, pageMapper, ledger, retrier, sink, budget, pages, threads, mapThreads);
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops Camel and the broker once they have started, as when a run fails before it gets to use them.
+     */
+    public void stop() throws Exception {
+        try {
+            awaitStarted();
+        } finally {
+            if (context != null) {
+                context.stop();
+            }
+            if (broker != null) {
+                broker.stop();
+                broker.waitUntilStopped();
+            }
+        }
+    }
+
+    private void harvest(Config config, FlickrClient flickr, MetadataCache metadata, PhotoInfoEnricher enricher, PageMapper pageMapper,
+                         PageLedger ledger, PageRetrier retrier, OutputSink sink, HeapBudget budget, List<FlickrRequest> pages, int threads,
+                         int mapThreads) throws Exception {
+        int scheduled = 0;
+        for (FlickrRequest request : pages) {
+            if (!ledger.isWritten(request.key())) {
+                scheduled++;
+            }
+        }
+        // counted off as the pages are written, turn out to have no rows, or are given up on; the processors stop at zero
+        final CountDownLatch pending = new CountDownLatch(scheduled);
+        final Set<String> through = ConcurrentHashMap.newKeySet();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        // A single consumer on the output queue, so every page goes through the one sink in arrival order
+        context.addRoutes(new RouteBuilder() {
+            public void configure() {
+                onException(Exception.class)
+                        .maximumRedeliveries(config.MAX_ATTEMPTS - 1)
+                        .handled(true)
+                        .process(exchange -> {
+                            String key = exchange.getIn().getHeader(FlickrHarvester.LEDGER_KEY_HEADER, String.class);
+                            Exception e = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+                            log.error("Writing page {} failed, it will be picked up by --resume", key, e);
+                            failure.compareAndSet(null, e);
+                            if (through.add(key)) {
+                                budget.release();
+                                pending.countDown();
+                            }
+                        });
+                from("amq:output.csv?concurrentConsumers=1")
+                        .process(exchange -> {
+                            @SuppressWarnings("unchecked")
+                            List<String[]> rows = exchange.getIn().getBody(List.class);
+                            String key = exchange.getIn().getHeader(FlickrHarvester.LEDGER_KEY_HEADER, String.class);
+                            sink.write(key, rows);
+                            if (through.add(key)) {
+                                budget.release();
+                                pending.countDown();
+                            }
+                        });
+            }
+        });
+
+        // Mapping runs on its own CPU sized pool; when it falls behind the fetch threads do the mapping themselves
+        final ThreadPoolExecutor mapExecutor = new ThreadPoolExecutor(mapThreads, mapThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(mapThreads * 2), new StageThreadFactory("map", 0), new ThreadPoolExecutor.CallerRunsPolicy());
+        flickr.getMetrics().trackQueue("map", () -> mapExecutor.getQueue().size());
+        final ExecutorService flickrExecutor = Executors.newFixedThreadPool(threads, new StageThreadFactory("fetch", StageThreadFactory.IO_STACK_SIZE));
+        for (int i = 0; i < threads; i++) {
+            flickrExecutor.execute(new FlickrProcessor(config, context, flickr, metadata, enricher, pageMapper, ledger, mapExecutor, retrier,
+                    budget, pending, failure));
+        }
+        flickrExecutor.shutdown();
+        feed(pages, ledger, budget, pending, scheduled, threads);
+        while (!pending.await(1, TimeUnit.MINUTES)) {
+            if (flickrExecutor.isTerminated()) {
+                log.error("Every fetch thread stopped with {} pages outstanding, they will be picked up by --resume", pending.getCount());
+                break;
+            }
+            log.info("{} pages outstanding", pending.getCount());
+        }
+        flickrExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        mapExecutor.shutdown();
+        mapExecutor.awaitTermination(1, TimeUnit.HOURS);
+        flickrExecutor.shutdownNow();
+        log.info("Executor service is shutdown now.");
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Queues the pages an earlier run didn't write, keeping no more of them on the broker than the budget lets the
+     * fetch threads take on, plus one for each thread so none of them waits on the queue.
+     */
+    private void feed(List<FlickrRequest> pages, PageLedger ledger, HeapBudget budget, CountDownLatch pending, int scheduled, int threads)
+            throws Exception {
+        long window = (long) budget.getMaxPages() + threads;
+        Connection connection = connectionFactory.createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue("reuests.todo"));
+            int sent = 0;
+            for (FlickrRequest request : pages) {
+                if (ledger.isWritten(request.key())) {
+                    log.debug("Page {} was written by an earlier run, skipping it", request.key());
+                    continue;
+                }
+                // pages done are those the processors have counted off
+                while (sent - (scheduled - pending.getCount()) >= window) {
+                    TimeUnit.MILLISECONDS.sleep(FEED_MILLIS);
+                }
+                ledger.scheduled(request.key());
+                ObjectMessage message = session.createObjectMessage(request);
+                log.debug("Request scheduled: {}", request.key());
+                producer.send(message);
+                sent++;
+            }
+            producer.close();
+            session.close();
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package au.org.ala.flickrharvester;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.GeoData;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.Size;
+import com.flickr4java.flickr.tags.Tag;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches pages from Flickr's REST endpoint in its JSON format, asking for the response gzipped, and builds the
+ * photos while the response is still arriving, one field at a time. There is no DOM, and no copy of the response,
+ * so a 500 photo page costs little more than the photos themselves.
+ * <p>
+ * Connections are the JDK's {@link HttpURLConnection}s, which go back to a shared keep-alive pool when their
+ * response has been read to the end, so every response is drained even when it fails. The pool holds
+ * {@code http.maxConnections} idle connections per host, raised to {@link #MAX_IDLE_CONNECTIONS} unless set on the
+ * command line.
+ * <p>
+ * The photos come out as flickr4java builds them from the XML format, so the rest of the harvester can't tell the
+ * transports apart.
+ */
+public class JsonTransport implements FlickrTransport {
+
+    public static final String DEFAULT_BASE_URL = "https://api.flickr.com/services/rest/";
+    static final int MAX_IDLE_CONNECTIONS = 32;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+    private static final String PHOTO_PAGE_URL = "https://flickr.com/photos/";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final JsonFactory JSON = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * The {@code url_}, {@code width_} and {@code height_} suffixes flickr4java reads, and the size each stands for
+     */
+    private static final String[] SIZE_SUFFIXES = {"t", "s", "sq", "m", "l", "o", "q", "n", "z", "c"};
+    private static final int[] SIZE_LABELS = {Size.THUMB, Size.SMALL, Size.SQUARE, Size.MEDIUM, Size.LARGE, Size.ORIGINAL,
+            Size.SQUARE_LARGE, Size.SMALL_320, Size.MEDIUM_640, Size.MEDIUM_800};
+
+    private final String baseUrl;
+    private final String apiKey;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public JsonTransport(Config config) {
+        this(config.FLICKR_BASE_URL, config.API_KEY, config.CONNECT_TIMEOUT_MILLIS, config.READ_TIMEOUT_MILLIS);
+    }
+
+    public JsonTransport(String baseUrl, String apiKey) {
+        this(baseUrl, apiKey, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param readTimeoutMillis how long a response may stall before the call fails, rather than the whole response
+     */
+    public JsonTransport(String baseUrl, String apiKey, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.baseUrl = (baseUrl == null || baseUrl.isEmpty()) ? DEFAULT_BASE_URL : baseUrl;
+        this.apiKey = apiKey;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        // read once, when the first connection is kept alive
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+        }
+    }
+
+    @Override
+    public PhotoList<Photo> getPoolPhotos(FlickrRequest request) throws FlickrException {
+        Map<String, String> parameters = parameters("flickr.groups.pools.getPhotos", request);
+        put(parameters, "tags", join(request.tags, " "));
+        return get(parameters);
+    }
+
+    @Override
+    public PhotoList<Photo> searchPhotos(FlickrRequest request) throws FlickrException {
+        Map<String, String> parameters = parameters("flickr.photos.search", request);
+        put(parameters, "machine_tags", join(request.tags, ","));
+        if (request.minUploadDate != null) {
+            parameters.put("min_upload_date", Long.toString(request.minUploadDate.getTime() / 1000));
+        }
+        if (request.maxUploadDate != null) {
+            parameters.put("max_upload_date", Long.toString(request.maxUploadDate.getTime() / 1000));
+        }
+        parameters.put("sort", "date-posted-asc");
+        return get(parameters);
+    }
+
+    private Map<String, String> parameters(String method, FlickrRequest request) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("method", method);
+        parameters.put("api_key", apiKey);
+        put(parameters, "group_id", request.groupId);
+        put(parameters, "user_id", request.userId);
+        put(parameters, "extras", join(request.extras, ","));
+        parameters.put("per_page", Integer.toString(request.perPage));
+        parameters.put("page", Integer.toString(request.page));
+        parameters.put("format", "json");
+        parameters.put("nojsoncallback", "1");
+        return parameters;
+    }
+
+    private static void put(Map<String, String> parameters, String name, String value) {
+        if (value != null && !value.isEmpty()) {
+            parameters.put(name, value);
+        }
+    }
+
+    private static String join(String[] values, String separator) {
+        return values == null ? null : String.join(separator, values);
+    }
+
+    private PhotoList<Photo> get(Map<String, String> parameters) throws FlickrException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url(parameters)).openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                drain(connection.getErrorStream());
+                // worded like the JDK's own message, which FlickrClient.isThrottled looks for
+                throw new FlickrException("Server returned HTTP response code: " + status + " for " + parameters.get("method"));
+            }
+            InputStream in = body(connection);
+            try {
+                return readPhotos(in);
+            } finally {
+                drain(in);
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                try {
+                    drain(connection.getErrorStream());
+                } catch (IOException ignored) {
+                    // the connection is dropped rather than pooled
+                }
+            }
+            throw new FlickrException("Failed to fetch " + parameters.get("method") + " page " + parameters.get("page"), e);
+        }
+    }
+
+    private String url(Map<String, String> parameters) throws UnsupportedEncodingException {
+        StringBuilder url = new StringBuilder(baseUrl);
+        char separator = baseUrl.indexOf('?') < 0 ? '?' : '&';
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            url.append(separator).append(parameter.getKey()).append('=').append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+            separator = '&';
+        }
+        return url.toString();
+    }
+
+    private static InputStream body(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(in, 8192) : in;
+    }
+
+    /**
+     * Reads what is left of a response, so the connection can be reused, and closes it.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream body = in) {
+            byte[] buffer = new byte[4096];
+            while (body.read(buffer) >= 0) {
+                // discard
+            }
+        }
+    }
+
+    /**
+     * Parses a {@code {"photos": {...}, "stat": "ok"}} response. Flickr puts {@code stat} last, so a failure
+     * shows up as a response without photos.
+     */
+    static PhotoList<Photo> readPhotos(InputStream in) throws IOException, FlickrException {
+        PhotoList<Photo> photos = null;
+        String stat = null;
+        String code = null;
+        String message = null;
+        try (JsonParser parser = JSON.createParser(in)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("photos".equals(field) && value == JsonToken.START_OBJECT) {
+                    photos = readPhotoList(parser);
+                } else if ("stat".equals(field)) {
+                    stat = parser.getValueAsString();
+                } else if ("code".equals(field)) {
+                    code = parser.getValueAsString();
+                } else if ("message".equals(field)) {
+                    message = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (!"ok".equals(stat) || photos == null) {
+            throw new FlickrException(code, message == null ? "Response without photos, stat " + stat : message);
+        }
+        return photos;
+    }
+
+    private static PhotoList<Photo> readPhotoList(JsonParser parser) throws IOException {
+        PhotoList<Photo> photos = new PhotoList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "page":
+                    photos.setPage(parser.getValueAsString());
+                    break;
+                case "pages":
+                    photos.setPages(parser.getValueAsString());
+                    break;
+                case "perpage":
+                    photos.setPerPage(parser.getValueAsString());
+                    break;
+                case "total":
+                    photos.setTotal(parser.getValueAsString());
+                    break;
+                case "photo":
+                    expect(value, JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        photos.add(readPhoto(parser));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Reads one photo of a list, filling in the fields the way flickr4java's {@code PhotoUtils} does for the same
+     * photo in XML.
+     */
+    private static Photo readPhoto(JsonParser parser) throws IOException {
+        Photo photo = new Photo();
+        String owner = null;
+        String ownerName = null;
+        String latitude = null;
+        String longitude = null;
+        String accuracy = null;
+        String tags = null;
+        Size[] sizes = new Size[SIZE_SUFFIXES.length];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                if ("description".equals(field) || "title".equals(field)) {
+                    String content = readContent(parser);
+                    if ("description".equals(field)) {
+                        photo.setDescription(content);
+                    } else {
+                        photo.setTitle(content);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+                continue;
+            }
+            String text = parser.getValueAsString();
+            switch (field) {
+                case "id":
+                    photo.setId(text);
+                    break;
+                case "owner":
+                    owner = text;
+                    break;
+                case "ownername":
+                    ownerName = text;
+                    break;
+                case "secret":
+                    photo.setSecret(text);
+                    break;
+                case "server":
+                    photo.setServer(text);
+                    break;
+                case "farm":
+                    photo.setFarm(text);
+                    break;
+                case "title":
+                    photo.setTitle(text);
+                    break;
+                case "license":
+                    photo.setLicense(text);
+                    break;
+                case "place_id":
+                    photo.setPlaceId(text);
+                    break;
+                case "dateupload":
+                    photo.setDatePosted(text);
+                    break;
+                case "datetaken":
+                    photo.setDateTaken(text);
+                    break;
+                case "lastupdate":
+                    photo.setLastUpdate(text);
+                    break;
+                case "dateadded":
+                    photo.setDateAdded(text);
+                    break;
+                case "originalsecret":
+                    photo.setOriginalSecret(text);
+                    break;
+                case "originalformat":
+                    photo.setOriginalFormat(text);
+                    break;
+                case "iconserver":
+                    photo.setIconServer(text);
+                    break;
+                case "iconfarm":
+                    photo.setIconFarm(text);
+                    break;
+                case "media":
+                    photo.setMedia(text);
+                    break;
+                case "media_status":
+                    photo.setMediaStatus(text);
+                    break;
+                case "pathalias":
+                    photo.setPathAlias(text);
+                    break;
+                case "latitude":
+                    latitude = text;
+                    break;
+                case "longitude":
+                    longitude = text;
+                    break;
+                case "accuracy":
+                    accuracy = text;
+                    break;
+                case "tags":
+                    tags = text;
+                    break;
+                default:
+                    readSize(field, text, sizes);
+            }
+        }
+
+        User user = new User();
+        user.setId(owner);
+        user.setUsername(ownerName);
+        photo.setOwner(user);
+        photo.setUrl(PHOTO_PAGE_URL + owner + "/" + photo.getId());
+
+        if (photo.getOriginalFormat() == null || photo.getOriginalFormat().isEmpty()) {
+            photo.setOriginalFormat("video".equals(photo.getMedia()) ? "mov" : "jpg");
+        }
+        List<Size> present = new ArrayList<>();
+        for (Size size : sizes) {
+            if (size != null) {
+                present.add(size);
+            }
+        }
+        photo.setSizes(present);
+
+        if (latitude != null && longitude != null && !latitude.isEmpty() && !longitude.isEmpty()
+                && !("0".equals(latitude) && "0".equals(longitude))) {
+            photo.setGeoData(new GeoData(longitude, latitude, accuracy));
+        }
+
+        List<Tag> tagList = new ArrayList<>();
+        if (tags != null && !tags.isEmpty()) {
+            for (String value : WHITESPACE.split(tags)) {
+                Tag tag = new Tag();
+                tag.setValue(value);
+                tagList.add(tag);
+            }
+        }
+        photo.setTags(tagList);
+        return photo;
+    }
+
+    /**
+     * {@code url_o}, {@code width_o} and {@code height_o} describe the same size, in no particular order.
+     */
+    private static void readSize(String field, String text, Size[] sizes) {
+        int separator = field.indexOf('_');
+        if (separator < 0) {
+            return;
+        }
+        String prefix = field.substring(0, separator);
+        String suffix = field.substring(separator + 1);
+        for (int i = 0; i < SIZE_SUFFIXES.length; i++) {
+            if (SIZE_SUFFIXES[i].equals(suffix)) {
+                if (sizes[i] == null) {
+                    sizes[i] = new Size();
+                    sizes[i].setLabel(SIZE_LABELS[i]);
+                }
+                if ("url".equals(prefix)) {
+                    sizes[i].setSource(text);
+                } else if ("width".equals(prefix)) {
+                    sizes[i].setWidth(text);
+                } else if ("height".equals(prefix)) {
+                    sizes[i].setHeight(text);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Text fields that may hold markup come as {@code {"_content": "..."}}.
+     */
+    private static String readContent(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String content = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("_content".equals(field)) {
+                content = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return content;
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " in the Flickr response but found " + actual);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.GeoData;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.people.User;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.builder.fluent.Configurations;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.File;
+import java.net.URL;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The rules of a mapping file, see {@code dwc-mapping.properties}, compiled into arrays a {@link DwcRecordMapper}
+ * walks for every photo. Terms are resolved to columns, sources to {@link Field}s, constants or earlier columns,
+ * patterns are compiled and numbered so each mapper can keep a matcher per pattern, and the machine tag predicates
+ * go into a {@link DwcRecordMapper.TagColumns} table. Nothing is looked up by name once a photo is being mapped,
+ * and a plan is immutable so every mapper thread can share it.
+ */
+public final class MappingPlan {
+    /** The rules bundled with the harvester, used when {@code mapping.file} is empty */
+    static final String DEFAULT_RULES = "dwc-mapping.properties";
+
+    private static final String PATTERN_PREFIX = "pattern.";
+    private static final String TAG_PREFIX = "tag.";
+    private static final String TAGS = "tags";
+    private static final String REPLACE = "=>";
+    private static final DateTimeFormatter EVENT_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static MappingPlan defaults;
+
+    /** The column each rule fills, in the order the rules run */
+    final int[] columns;
+    /** The sources of each rule, the first that has a value wins */
+    final Source[][] sources;
+    final Step[] steps;
+    final DwcRecordMapper.TagColumns tags;
+
+    private MappingPlan(int[] columns, Source[][] sources, Step[] steps, DwcRecordMapper.TagColumns tags) {
+        this.columns = columns;
+        this.sources = sources;
+        this.steps = steps;
+        this.tags = tags;
+    }
+
+    /**
+     * What a photo offers a rule.
+     */
+    enum Field {
+        ID("id"),
+        URL("url"),
+        ORIGINAL_URL("originalUrl"),
+        TITLE("title"),
+        DESCRIPTION("description"),
+        /** The license's name, through the license map */
+        LICENSE("license"),
+        DATE_TAKEN("dateTaken"),
+        OWNER_ID("owner.id"),
+        OWNER_REAL_NAME("owner.realName"),
+        OWNER_USERNAME("owner.username"),
+        OWNER_LOCATION("owner.location"),
+        LATITUDE("latitude"),
+        LONGITUDE("longitude"),
+        ACCURACY("accuracy"),
+        COUNTRY("country"),
+        REGION("region"),
+        LOCALITY("locality");
+
+        private final String name;
+
+        Field(String name) {
+            this.name = name;
+        }
+
+        static Field named(String name) {
+            for (Field field : values()) {
+                if (field.name.equals(name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        String value(Photo photo, Map<String, String> licenseMap) throws FlickrException {
+            User owner = photo.getOwner();
+            GeoData geoData = photo.getGeoData();
+            switch (this) {
+                case ID:
+                    return photo.getId();
+                case URL:
+                    return photo.getUrl();
+                case ORIGINAL_URL:
+                    return photo.getOriginalUrl();
+                case TITLE:
+                    return photo.getTitle();
+                case DESCRIPTION:
+                    return photo.getDescription();
+                case LICENSE:
+                    return licenseMap.get(photo.getLicense());
+                case DATE_TAKEN:
+                    return photo.getDateTaken() == null ? null : EVENT_DATE_FORMAT.format(photo.getDateTaken().toInstant());
+                case OWNER_ID:
+                    return owner == null ? null : owner.getId();
+                case OWNER_REAL_NAME:
+                    return owner == null ? null : owner.getRealName();
+                case OWNER_USERNAME:
+                    return owner == null ? null : owner.getUsername();
+                case OWNER_LOCATION:
+                    return owner == null ? null : owner.getLocation();
+                case LATITUDE:
+                    return geoData == null ? null : Float.toString(geoData.getLatitude());
+                case LONGITUDE:
+                    return geoData == null ? null : Float.toString(geoData.getLongitude());
+                case ACCURACY:
+                    return geoData == null ? null : Integer.toString(geoData.getAccuracy());
+                case COUNTRY:
+                    return photo.getCountry() == null ? null : photo.getCountry().getName();
+                case REGION:
+                    return photo.getRegion() == null ? null : photo.getRegion().getName();
+                case LOCALITY:
+                    return photo.getLocality() == null ? null : photo.getLocality().getName();
+                default:
+                    throw new IllegalStateException("No value for " + this);
+            }
+        }
+    }
+
+    /**
+     * One alternative of a rule: a field, a constant or an earlier column, then the steps run over its value.
+     */
+    static final class Source {
+        final Field field;
+        final String constant;
+        /** The column read, or -1 */
+        final int column;
+        final int[] steps;
+
+        Source(Field field, String constant, int column, int[] steps) {
+            this.field = field;
+            this.constant = constant;
+            this.column = column;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * A compiled {@code pattern.<name>}, keeping the first match or replacing every match.
+     */
+    static final class Step {
+        final Pattern pattern;
+        /** What matches are replaced with, or null to keep the first match */
+        final String replacement;
+
+        Step(Pattern pattern, String replacement) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+        }
+    }
+
+    /**
+     * @param file a mapping file, or empty for the rules bundled with the harvester
+     */
+    public static MappingPlan load(String file) throws ConfigurationException {
+        if (file == null || file.isEmpty()) {
+            return defaults();
+        }
+        return compile(new Configurations().properties(new File(file)), file);
+    }
+
+    /**
+     * The rules bundled with the harvester, compiled the first time they are asked for.
+     */
+    public static synchronized MappingPlan defaults() {
+        if (defaults == null) {
+            URL rules = MappingPlan.class.getResource(DEFAULT_RULES);
+            if (rules == null) {
+                throw new IllegalStateException(DEFAULT_RULES + " is missing from the classpath");
+            }
+            try {
+                defaults = compile(new Configurations().properties(rules), DEFAULT_RULES);
+            } catch (ConfigurationException e) {
+                throw new IllegalStateException("The bundled mapping rules don't compile", e);
+            }
+        }
+        return defaults;
+    }
+
+    static MappingPlan compile(PropertiesConfiguration rules, String name) throws ConfigurationException {
+        Map<String, Integer> patterns = new HashMap<>();
+        List<Step> steps = new ArrayList<>();
+        for (Iterator<String> keys = rules.getKeys(PATTERN_PREFIX.substring(0, PATTERN_PREFIX.length() - 1)); keys.hasNext(); ) {
+            String key = keys.next();
+            String rule = rules.getString(key);
+            int replace = rule.indexOf(REPLACE);
+            String regex = (replace < 0 ? rule : rule.substring(0, replace)).trim();
+            try {
+                steps.add(new Step(Pattern.compile(regex), replace < 0 ? null : rule.substring(replace + REPLACE.length()).trim()));
+            } catch (PatternSyntaxException e) {
+                throw new ConfigurationException(name + ": " + key + " is not a regular expression: " + e.getMessage());
+            }
+            patterns.put(key.substring(PATTERN_PREFIX.length()), steps.size() - 1);
+        }
+
+        List<Integer> columns = new ArrayList<>();
+        List<Source[]> sources = new ArrayList<>();
+        Map<String, Integer> tags = new LinkedHashMap<>();
+        String[] tagTerms = rules.containsKey(TAGS) ? split(rules.getString(TAGS), ",") : Config.ALLOWED_TAGS;
+        for (String term : tagTerms) {
+            tags.put(term, column(term, name, TAGS));
+        }
+        for (Iterator<String> keys = rules.getKeys(); keys.hasNext(); ) {
+            String key = keys.next();
+            if (key.startsWith(PATTERN_PREFIX) || key.equals(TAGS)) {
+                continue;
+            }
+            if (key.startsWith(TAG_PREFIX)) {
+                tags.put(key.substring(TAG_PREFIX.length()), column(rules.getString(key).trim(), name, key));
+                continue;
+            }
+            int column = column(key, name, key);
+            String[] alternatives = split(rules.getString(key), "\\|");
+            Source[] compiled = new Source[alternatives.length];
+            for (int i = 0; i < alternatives.length; i++) {
+                compiled[i] = source(alternatives[i], patterns, columns, name, key);
+            }
+            columns.add(column);
+            sources.add(compiled);
+        }
+        return new MappingPlan(columns.stream().mapToInt(Integer::intValue).toArray(), sources.toArray(new Source[0][]),
+                steps.toArray(new Step[0]), new DwcRecordMapper.TagColumns(tags));
+    }
+
+    /**
+     * Compiles {@code <field>|"<constant>"|$<term>} followed by any number of {@code ~<pattern>}.
+     */
+    private static Source source(String text, Map<String, Integer> patterns, List<Integer> filled, String name, String key)
+            throws ConfigurationException {
+        String[] parts = split(text, "~");
+        int[] steps = new int[parts.length - 1];
+        for (int i = 1; i < parts.length; i++) {
+            Integer step = patterns.get(parts[i]);
+            if (step == null) {
+                throw new ConfigurationException(name + ": " + key + " uses the pattern " + parts[i] + " which isn't defined");
+            }
+            steps[i - 1] = step;
+        }
+        String value = parts[0];
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return new Source(null, value.substring(1, value.length() - 1), -1, steps);
+        }
+        if (value.startsWith("$")) {
+            int column = column(value.substring(1), name, key);
+            if (!filled.contains(column)) {
+                throw new ConfigurationException(name + ": " + key + " reads " + value + " before a rule fills it");
+            }
+            return new Source(null, null, column, steps);
+        }
+        Field field = Field.named(value);
+        if (field == null) {
+            throw new ConfigurationException(name + ": " + key + " reads " + value + " which isn't a photo field");
+        }
+        return new Source(field, null, -1, steps);
+    }
+
+    private static int column(String term, String name, String key) throws ConfigurationException {
+        int column = Config.CSV_FIELD_LIST.indexOf(term);
+        if (column < 0) {
+            throw new ConfigurationException(name + ": " + key + " names " + term + " which is not in the CSV field list");
+        }
+        return column;
+    }
+
+    private static String[] split(String text, String separator) {
+        String[] parts = text.split(separator);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].trim();
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,462 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the {@code associatedMedia} of every row before it is written, so that a private, missing or oversized
+ * image is found out during the harvest rather than when the image service gets to it. The chosen size is asked
+ * for with a HEAD request, and if it isn't there, or is bigger than the limit, the next largest of the photo's
+ * {@code url_*} sizes is tried in its place. A photo with no size left has its media cleared.
+ * <p>
+ * What was found goes to the media file next to the output, one line per photo:
+ * {@code <occurrenceID>\t<status>\t<url>\t<width>\t<height>\t<bytes>\t<content type>\t<thumbnail>}. The
+ * dimensions are Flickr's when the photo list had them, or read from the frame header of the first bytes of a JPEG.
+ * Thumbnails, when a directory is given, are stored under the SHA-256 of their content so a photo seen again, or
+ * by another source, is stored once.
+ * <p>
+ * The checks run on a pool of their own, at most {@link #getThreads()} at a time, and every byte read is paid for
+ * from a byte rate limiter, so this stage can't take the connections or the bandwidth the page fetches need.
+ */
+public class MediaVerifier implements MediaVerifierMBean, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MediaVerifier.class);
+
+    public static final String MEDIA_SUFFIX = ".media";
+
+    enum Status {
+        /** The chosen size is there */
+        OK,
+        /** The chosen size isn't, or is too big, and a smaller one stands in for it */
+        FALLBACK,
+        /** No size of the photo is there, its media was cleared */
+        MISSING,
+        /** Couldn't tell, the row was left as it was */
+        UNCHECKED
+    }
+
+    /** Where Flickr redirects requests for images that have been deleted or made private */
+    private static final String UNAVAILABLE = "photo_unavailable";
+    private static final int MAX_REDIRECTS = 3;
+    /** Enough of a JPEG to get past the EXIF block to the frame header */
+    static final int PROBE_BYTES = 64 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int threads;
+    private final long maxBytes;
+    private final RateLimiter bytes;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Path mediaFile;
+    private final Path thumbnailDir;
+    private final ExecutorService executor;
+    private BufferedWriter media;
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong fellBack = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong unchecked = new AtomicLong();
+    private final AtomicLong thumbnails = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * @param maxBytes     sizes bigger than this are passed over for a smaller one, 0 for no limit
+     * @param bytes        pays for every byte downloaded
+     * @param thumbnailDir where thumbnails are stored, or null not to download them
+     */
+    MediaVerifier(int threads, long maxBytes, RateLimiter bytes, int connectTimeoutMillis, int readTimeoutMillis, Path mediaFile, Path thumbnailDir) {
+        this.threads = threads;
+        this.maxBytes = maxBytes;
+        this.bytes = bytes;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.mediaFile = mediaFile;
+        this.thumbnailDir = thumbnailDir;
+        this.executor = Executors.newFixedThreadPool(threads, new StageThreadFactory("media", StageThreadFactory.IO_STACK_SIZE));
+    }
+
+    /**
+     * @param resume add to the media file of an earlier run rather than starting a new one
+     */
+    public static MediaVerifier open(Config config, Path mediaFile, boolean resume) throws IOException {
+        if (!resume) {
+            Files.deleteIfExists(mediaFile);
+        }
+        long rate = config.MEDIA_MAX_BYTES_PER_SECOND;
+        return new MediaVerifier(config.MEDIA_THREADS, config.MEDIA_MAX_BYTES, new RateLimiter(rate, (int) Math.min(rate, Integer.MAX_VALUE)),
+                config.CONNECT_TIMEOUT_MILLIS, config.READ_TIMEOUT_MILLIS, mediaFile,
+                config.MEDIA_THUMBNAIL_DIR.isEmpty() ? null : Paths.get(config.MEDIA_THUMBNAIL_DIR));
+    }
+
+    /**
+     * Checks the media of each row, in place, and waits for them all.
+     *
+     * @param photos the photo each row was mapped from
+     */
+    public void verify(List<Photo> photos, List<String[]> rows) {
+        List<Callable<String>> checks = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Photo photo = photos.get(i);
+            String[] row = rows.get(i);
+            checks.add(() -> check(photo, row));
+        }
+        List<String> lines = new ArrayList<>(checks.size());
+        try {
+            for (Future<String> check : executor.invokeAll(checks)) {
+                try {
+                    lines.add(check.get());
+                } catch (ExecutionException e) {
+                    unchecked.incrementAndGet();
+                    log.error("Checking the media of a photo failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        record(lines);
+    }
+
+    private String check(Photo photo, String[] row) throws InterruptedException {
+        String chosen = row[DwcRecordMapper.ASSOCIATED_MEDIA];
+        try {
+            for (Size size : candidates(photo, chosen)) {
+                Probe probe = probe(size.getSource());
+                if (probe == null || (maxBytes > 0 && probe.bytes > maxBytes)) {
+                    continue;
+                }
+                int width = size.getWidth();
+                int height = size.getHeight();
+                if ((width <= 0 || height <= 0) && probe.contentType != null && probe.contentType.contains("jpeg")) {
+                    int[] dimensions = jpegDimensions(probe.url);
+                    if (dimensions != null) {
+                        width = dimensions[0];
+                        height = dimensions[1];
+                    }
+                }
+                Status status = size.getSource().equals(chosen) ? Status.OK : Status.FALLBACK;
+                (status == Status.OK ? verified : fellBack).incrementAndGet();
+                row[DwcRecordMapper.ASSOCIATED_MEDIA] = size.getSource();
+                return line(row, status, size.getSource(), width, height, probe.bytes, probe.contentType, thumbnail(photo));
+            }
+            missing.incrementAndGet();
+            row[DwcRecordMapper.ASSOCIATED_MEDIA] = null;
+            return line(row, Status.MISSING, chosen, 0, 0, -1, null, null);
+        } catch (IOException e) {
+            unchecked.incrementAndGet();
+            log.warn("Couldn't check the media of {}: {}", row[DwcRecordMapper.OCCURRENCE_ID], e.toString());
+            return line(row, Status.UNCHECKED, chosen, 0, 0, -1, null, null);
+        }
+    }
+
+    /**
+     * The size the row was mapped with, then the photo's {@code url_*} sizes from the largest down.
+     */
+    static List<Size> candidates(Photo photo, String chosen) {
+        List<Size> candidates = new ArrayList<>();
+        Size chosenSize = null;
+        Collection<Size> sizes = photo.getSizes();
+        if (sizes != null) {
+            // flickr4java keeps a slot for every label, empty for the sizes the photo list didn't have
+            for (Size size : sizes) {
+                if (size == null || size.getSource() == null) {
+                    continue;
+                }
+                if (size.getSource().equals(chosen)) {
+                    chosenSize = size;
+                } else {
+                    candidates.add(size);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingLong(MediaVerifier::area).reversed());
+        if (chosenSize == null && chosen != null) {
+            chosenSize = new Size();
+            chosenSize.setSource(chosen);
+        }
+        if (chosenSize != null) {
+            candidates.add(0, chosenSize);
+        }
+        return candidates;
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    /**
+     * A HEAD request for the image, following redirects.
+     *
+     * @return what the server said about it, or null if it isn't there
+     */
+    private Probe probe(String location) throws IOException {
+        URL url = new URL(location);
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            HttpURLConnection connection = open(url, "HEAD");
+            try {
+                int status = connection.getResponseCode();
+                if (status >= 300 && status < 400) {
+                    String next = connection.getHeaderField("Location");
+                    if (next == null || next.contains(UNAVAILABLE)) {
+                        return null;
+                    }
+                    url = new URL(url, next);
+                    continue;
+                }
+                if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE || status == HttpURLConnection.HTTP_FORBIDDEN) {
+                    return null;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + status + " for " + url);
+                }
+                return new Probe(url, connection.getContentLengthLong(), connection.getContentType());
+            } finally {
+                connection.disconnect();
+            }
+        }
+        throw new IOException("Too many redirects for " + location);
+    }
+
+    /**
+     * Reads the first {@link #PROBE_BYTES} of a JPEG for its width and height.
+     */
+    private int[] jpegDimensions(URL url) throws IOException, InterruptedException {
+        HttpURLConnection connection = open(url, "GET");
+        connection.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+        byte[] data = new byte[PROBE_BYTES];
+        int length = 0;
+        try (InputStream in = connection.getInputStream()) {
+            for (int read; length < data.length && (read = in.read(data, length, Math.min(BUFFER_SIZE, data.length - length))) > 0; length += read) {
+                paid(read);
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return jpegDimensions(data, length);
+    }
+
+    /**
+     * @return the width and height in the first frame header, or null if it isn't a JPEG or the header isn't there
+     */
+    static int[] jpegDimensions(byte[] data, int length) {
+        if (length < 4 || (data[0] & 0xff) != 0xFF || (data[1] & 0xff) != 0xD8) {
+            return null;
+        }
+        int i = 2;
+        while (i + 8 < length) {
+            if ((data[i] & 0xff) != 0xFF) {
+                return null;
+            }
+            int marker = data[i + 1] & 0xff;
+            if (marker == 0xFF) {
+                // fill byte
+                i++;
+                continue;
+            }
+            // SOF0 to SOF15, less the DHT, JPG and DAC markers that share the range
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = ((data[i + 5] & 0xff) << 8) | (data[i + 6] & 0xff);
+                int width = ((data[i + 7] & 0xff) << 8) | (data[i + 8] & 0xff);
+                return new int[]{width, height};
+            }
+            i += 2 + (((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff));
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the photo's smallest size into the thumbnail store, named by the SHA-256 of its content.
+     *
+     * @return the thumbnail's path in the store, or null if there is no store or no size to take it from
+     */
+    private String thumbnail(Photo photo) throws IOException, InterruptedException {
+        if (thumbnailDir == null || photo.getSizes() == null) {
+            return null;
+        }
+        Size smallest = null;
+        for (Size size : photo.getSizes()) {
+            if (size != null && size.getSource() != null && (smallest == null || area(size) < area(smallest))) {
+                smallest = size;
+            }
+        }
+        if (smallest == null) {
+            return null;
+        }
+        Files.createDirectories(thumbnailDir);
+        Path download = Files.createTempFile(thumbnailDir, "thumbnail", ".part");
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        HttpURLConnection connection = open(new URL(smallest.getSource()), "GET");
+        try (InputStream in = connection.getInputStream();
+             OutputStream out = Files.newOutputStream(download)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                paid(read);
+                sha256.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(download);
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+        String hash = hex(sha256.digest());
+        String source = smallest.getSource();
+        int dot = source.lastIndexOf('.');
+        String name = hash.substring(0, 2) + "/" + hash + (dot > source.lastIndexOf('/') ? source.substring(dot) : "");
+        Path stored = thumbnailDir.resolve(name);
+        Files.createDirectories(stored.getParent());
+        if (Files.exists(stored)) {
+            // the same image from another photo or an earlier run
+            Files.delete(download);
+        } else {
+            Files.move(download, stored, StandardCopyOption.ATOMIC_MOVE);
+            thumbnails.incrementAndGet();
+        }
+        return name;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private void paid(int read) throws InterruptedException {
+        bytes.acquire(read);
+        bytesRead.addAndGet(read);
+    }
+
+    private HttpURLConnection open(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        return connection;
+    }
+
+    private static String line(String[] row, Status status, String url, int width, int height, long bytes, String contentType, String thumbnail) {
+        return row[DwcRecordMapper.OCCURRENCE_ID] + "\t" + status + "\t" + (url == null ? "" : url) + "\t" + (width > 0 ? width : "") + "\t"
+                + (height > 0 ? height : "") + "\t" + (bytes >= 0 ? bytes : "") + "\t" + (contentType == null ? "" : contentType) + "\t"
+                + (thumbnail == null ? "" : thumbnail);
+    }
+
+    private synchronized void record(List<String> lines) {
+        try {
+            if (media == null) {
+                media = Files.newBufferedWriter(mediaFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (String line : lines) {
+                media.write(line);
+                media.write('\n');
+            }
+            media.flush();
+        } catch (IOException e) {
+            log.error("Couldn't add {} photos to the media file {}", lines.size(), mediaFile, e);
+        }
+    }
+
+    public Path getMediaFile() {
+        return mediaFile;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return fellBack.get();
+    }
+
+    @Override
+    public long getMissingCount() {
+        return missing.get();
+    }
+
+    @Override
+    public long getUncheckedCount() {
+        return unchecked.get();
+    }
+
+    @Override
+    public long getThumbnailCount() {
+        return thumbnails.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (media != null) {
+            media.close();
+            media = null;
+        }
+    }
+
+    /**
+     * What a HEAD request found out about an image.
+     */
+    private static final class Probe {
+        final URL url;
+        /** -1 when the server didn't say */
+        final long bytes;
+        final String contentType;
+
+        Probe(URL url, long bytes, String contentType) {
+            this.url = url;
+            this.bytes = bytes;
+            this.contentType = contentType;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the {@link MediaVerifier}.
+ */
+public interface MediaVerifierMBean {
+
+    int getThreads();
+
+    long getVerifiedCount();
+
+    long getFallbackCount();
+
+    long getMissingCount();
+
+    long getUncheckedCount();
+
+    long getThumbnailCount();
+
+    long getBytesRead();
+}
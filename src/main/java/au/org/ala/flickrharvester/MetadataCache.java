@@ -0,0 +1,430 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.places.Location;
+import com.flickr4java.flickr.places.Place;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of the Flickr metadata that repeats across photos or runs: the license names, owner profiles,
+ * place names and the photo details fetched by the {@link PhotoInfoEnricher}. Entries expire a fixed time after
+ * they were fetched, even across restarts when the cache is persisted. The owner and place caches are bounded in
+ * size, and the photo details have a bound of their own, large enough for a whole pool so that a full harvest still
+ * skips the photos that haven't changed since their details were fetched.
+ * <p>
+ * Owners and places are only looked up when asked to, since every miss is an API call; a photo list already
+ * carries the owner's username, and the place id with the {@code geo} extra.
+ */
+public class MetadataCache implements MetadataCacheMBean {
+    private static final Logger log = LoggerFactory.getLogger(MetadataCache.class);
+
+    private static final String LICENSES_KEY = "licenses";
+    private static final String LICENSE = "L";
+    private static final String OWNER = "O";
+    private static final String PLACE = "P";
+    private static final String DETAILS = "D";
+    private static final String TAG_SEPARATOR = "\n";
+
+    private final FlickrClient flickr;
+    private final long ttlMillis;
+    private final Path file;
+    private final boolean lookupOwners;
+    private final boolean lookupPlaces;
+    private final Cache<String, Licenses> licenses;
+    private final Cache<String, OwnerProfile> owners;
+    private final Cache<String, PlaceNames> places;
+    private final Cache<String, PhotoDetails> details;
+
+    /**
+     * @param file where the cache is kept between runs, or null to keep it in memory only
+     */
+    public MetadataCache(FlickrClient flickr, long maxSize, long ttlMillis, Path file, boolean lookupOwners, boolean lookupPlaces) throws IOException {
+        this(flickr, maxSize, maxSize, ttlMillis, file, lookupOwners, lookupPlaces);
+    }
+
+    /**
+     * @param maxSize    the owners and the places to keep, each
+     * @param maxDetails the photo details to keep
+     * @param file       where the cache is kept between runs, or null to keep it in memory only
+     */
+    public MetadataCache(FlickrClient flickr, long maxSize, long maxDetails, long ttlMillis, Path file, boolean lookupOwners, boolean lookupPlaces)
+            throws IOException {
+        this.flickr = flickr;
+        this.ttlMillis = ttlMillis;
+        this.file = file;
+        this.lookupOwners = lookupOwners;
+        this.lookupPlaces = lookupPlaces;
+        this.licenses = Caffeine.newBuilder().expireAfter(new FetchedAtExpiry<String, Licenses>()).recordStats().build();
+        this.owners = Caffeine.newBuilder().maximumSize(maxSize).expireAfter(new FetchedAtExpiry<String, OwnerProfile>()).recordStats().build();
+        this.places = Caffeine.newBuilder().maximumSize(maxSize).expireAfter(new FetchedAtExpiry<String, PlaceNames>()).recordStats().build();
+        this.details = Caffeine.newBuilder().maximumSize(maxDetails).expireAfter(new FetchedAtExpiry<String, PhotoDetails>()).build();
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+    }
+
+    /**
+     * @return license names by license id, fetched once for the whole process
+     */
+    public synchronized Map<String, String> getLicenses() throws FlickrException {
+        Licenses cached = licenses.getIfPresent(LICENSES_KEY);
+        if (cached == null) {
+            Map<String, String> names = new HashMap<>();
+            flickr.getLicenses().forEach(license -> names.put(license.getId(), license.getName()));
+            log.info("Got {} licenses from Flickr. ", names.size());
+            cached = new Licenses(Collections.unmodifiableMap(names), System.currentTimeMillis());
+            licenses.put(LICENSES_KEY, cached);
+        }
+        return cached.names;
+    }
+
+    /**
+     * Fills in the owner profiles and place names the photos are missing, where those lookups are turned on.
+     */
+    public void resolve(PhotoList<Photo> photos) {
+        for (Photo photo : photos) {
+            User owner = photo.getOwner();
+            if (lookupOwners && owner != null && owner.getId() != null && (owner.getRealName() == null || owner.getLocation() == null)) {
+                OwnerProfile profile = owner(owner.getId());
+                if (profile != null) {
+                    if (owner.getRealName() == null) {
+                        owner.setRealName(profile.realName);
+                    }
+                    if (owner.getLocation() == null) {
+                        owner.setLocation(profile.location);
+                    }
+                }
+            }
+            if (lookupPlaces && photo.getPlaceId() != null && !photo.getPlaceId().isEmpty() && photo.getCountry() == null) {
+                PlaceNames names = place(photo.getPlaceId());
+                if (names != null) {
+                    photo.setCountry(named(names.country));
+                    photo.setRegion(named(names.region));
+                    photo.setLocality(named(names.locality));
+                }
+            }
+        }
+    }
+
+    OwnerProfile owner(String userId) {
+        return owners.get(userId, id -> {
+            try {
+                User user = flickr.getOwner(id);
+                return new OwnerProfile(user.getRealName(), user.getLocation(), System.currentTimeMillis());
+            } catch (FlickrException e) {
+                return missing(e, "owner " + id, new OwnerProfile(null, null, System.currentTimeMillis()));
+            }
+        });
+    }
+
+    PlaceNames place(String placeId) {
+        return places.get(placeId, id -> {
+            try {
+                Location location = flickr.getPlace(id);
+                return new PlaceNames(name(location.getCountry()), name(location.getRegion()), name(location.getLocality()), System.currentTimeMillis());
+            } catch (FlickrException e) {
+                return missing(e, "place " + id, new PlaceNames(null, null, null, System.currentTimeMillis()));
+            }
+        });
+    }
+
+    /**
+     * @return the details last fetched for the photo, whatever its last_update was then, or null
+     */
+    PhotoDetails getDetails(String photoId) {
+        return details.getIfPresent(photoId);
+    }
+
+    void putDetails(String photoId, PhotoDetails photoDetails) {
+        details.put(photoId, photoDetails);
+    }
+
+    /**
+     * Remembers that something doesn't exist, unless Flickr was only pushing back and it is worth asking again.
+     */
+    private static <V> V missing(FlickrException e, String what, V empty) {
+        if (FlickrClient.isThrottled(e)) {
+            log.warn("Couldn't look up {}, it will be asked for again", what, e);
+            return null;
+        }
+        log.debug("Flickr has no {}: {}", what, e.getErrorMessage());
+        return empty;
+    }
+
+    private static String name(Place place) {
+        return place == null ? null : place.getName();
+    }
+
+    private static Place named(String name) {
+        if (name == null) {
+            return null;
+        }
+        Place place = new Place();
+        place.setName(name);
+        return place;
+    }
+
+    /**
+     * One tab separated {@code <type> <fetchedAt> <key> <values>...} line per entry.
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Licenses cached : licenses.asMap().values()) {
+                for (Map.Entry<String, String> license : cached.names.entrySet()) {
+                    writeLine(out, LICENSE, cached.fetchedAt, license.getKey(), license.getValue());
+                }
+            }
+            for (Map.Entry<String, OwnerProfile> owner : owners.asMap().entrySet()) {
+                OwnerProfile profile = owner.getValue();
+                writeLine(out, OWNER, profile.fetchedAt, owner.getKey(), profile.realName, profile.location);
+            }
+            for (Map.Entry<String, PlaceNames> place : places.asMap().entrySet()) {
+                PlaceNames names = place.getValue();
+                writeLine(out, PLACE, names.fetchedAt, place.getKey(), names.country, names.region, names.locality);
+            }
+            for (Map.Entry<String, PhotoDetails> photo : details.asMap().entrySet()) {
+                PhotoDetails d = photo.getValue();
+                writeLine(out, DETAILS, d.fetchedAt, photo.getKey(), Long.toString(d.lastUpdate), d.tags == null ? null : String.join(TAG_SEPARATOR, d.tags),
+                        d.latitude, d.longitude, d.accuracy, d.country, d.region, d.locality, d.ownerRealName, d.ownerLocation);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Saved {} owners, {} places and {} photo details to {}", owners.estimatedSize(), places.estimatedSize(), details.estimatedSize(), file);
+    }
+
+    private void load() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, String> licenseNames = new HashMap<>();
+        long licensesFetchedAt = now;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 4) {
+                continue;
+            }
+            long fetchedAt = Long.parseLong(fields[1]);
+            if (now - fetchedAt >= ttlMillis) {
+                continue;
+            }
+            String key = unescape(fields[2]);
+            if (LICENSE.equals(fields[0])) {
+                licenseNames.put(key, unescape(fields[3]));
+                licensesFetchedAt = Math.min(licensesFetchedAt, fetchedAt);
+            } else if (OWNER.equals(fields[0]) && fields.length == 5) {
+                owners.put(key, new OwnerProfile(unescape(fields[3]), unescape(fields[4]), fetchedAt));
+            } else if (PLACE.equals(fields[0]) && fields.length == 6) {
+                places.put(key, new PlaceNames(unescape(fields[3]), unescape(fields[4]), unescape(fields[5]), fetchedAt));
+            } else if (DETAILS.equals(fields[0]) && fields.length == 13) {
+                String tags = unescape(fields[4]);
+                details.put(key, new PhotoDetails(Long.parseLong(fields[3]), tags == null ? null : tags.split(TAG_SEPARATOR),
+                        unescape(fields[5]), unescape(fields[6]), unescape(fields[7]), unescape(fields[8]), unescape(fields[9]),
+                        unescape(fields[10]), unescape(fields[11]), unescape(fields[12]), fetchedAt));
+            }
+        }
+        if (!licenseNames.isEmpty()) {
+            licenses.put(LICENSES_KEY, new Licenses(Collections.unmodifiableMap(licenseNames), licensesFetchedAt));
+        }
+        log.info("Loaded {} licenses, {} owners, {} places and {} photo details from {}", licenseNames.size(), owners.estimatedSize(),
+                places.estimatedSize(), details.estimatedSize(), file);
+    }
+
+    private static void writeLine(BufferedWriter out, String type, long fetchedAt, String key, String... values) throws IOException {
+        out.write(type);
+        out.write('\t');
+        out.write(Long.toString(fetchedAt));
+        out.write('\t');
+        out.write(escape(key));
+        for (String value : values) {
+            out.write('\t');
+            out.write(escape(value));
+        }
+        out.write('\n');
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "\\N";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if ("\\N".equals(value)) {
+            return null;
+        }
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    @Override
+    public long getLicenseHitCount() {
+        return licenses.stats().hitCount();
+    }
+
+    @Override
+    public long getLicenseMissCount() {
+        return licenses.stats().missCount();
+    }
+
+    @Override
+    public long getOwnerHitCount() {
+        return owners.stats().hitCount();
+    }
+
+    @Override
+    public long getOwnerMissCount() {
+        return owners.stats().missCount();
+    }
+
+    @Override
+    public long getOwnerCount() {
+        return owners.estimatedSize();
+    }
+
+    @Override
+    public long getPlaceHitCount() {
+        return places.stats().hitCount();
+    }
+
+    @Override
+    public long getPlaceMissCount() {
+        return places.stats().missCount();
+    }
+
+    @Override
+    public long getPlaceCount() {
+        return places.estimatedSize();
+    }
+
+    @Override
+    public long getPhotoDetailsCount() {
+        return details.estimatedSize();
+    }
+
+    /**
+     * Something fetched from Flickr, remembering when so that it expires on time after a restart too.
+     */
+    abstract static class Fetched {
+        final long fetchedAt;
+
+        Fetched(long fetchedAt) {
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    static final class Licenses extends Fetched {
+        final Map<String, String> names;
+
+        Licenses(Map<String, String> names, long fetchedAt) {
+            super(fetchedAt);
+            this.names = names;
+        }
+    }
+
+    static final class OwnerProfile extends Fetched {
+        final String realName;
+        final String location;
+
+        OwnerProfile(String realName, String location, long fetchedAt) {
+            super(fetchedAt);
+            this.realName = realName;
+            this.location = location;
+        }
+    }
+
+    static final class PlaceNames extends Fetched {
+        final String country;
+        final String region;
+        final String locality;
+
+        PlaceNames(String country, String region, String locality, long fetchedAt) {
+            super(fetchedAt);
+            this.country = country;
+            this.region = region;
+            this.locality = locality;
+        }
+    }
+
+    /**
+     * What photos.getInfo adds to a photo list entry, as of the photo's last_update. Numbers are kept as the text
+     * Flickr sent.
+     */
+    static final class PhotoDetails extends Fetched {
+        final long lastUpdate;
+        final String[] tags;
+        final String latitude;
+        final String longitude;
+        final String accuracy;
+        final String country;
+        final String region;
+        final String locality;
+        final String ownerRealName;
+        final String ownerLocation;
+
+        PhotoDetails(long lastUpdate, String[] tags, String latitude, String longitude, String accuracy, String country, String region,
+                     String locality, String ownerRealName, String ownerLocation, long fetchedAt) {
+            super(fetchedAt);
+            this.lastUpdate = lastUpdate;
+            this.tags = tags;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.country = country;
+            this.region = region;
+            this.locality = locality;
+            this.ownerRealName = ownerRealName;
+            this.ownerLocation = ownerLocation;
+        }
+    }
+
+    private final class FetchedAtExpiry<K, V extends Fetched> implements Expiry<K, V> {
+        @Override
+        public long expireAfterCreate(K key, V value, long currentTime) {
+            long remaining = ttlMillis - (System.currentTimeMillis() - value.fetchedAt);
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remaining));
+        }
+
+        @Override
+        public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
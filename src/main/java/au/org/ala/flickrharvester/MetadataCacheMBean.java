@@ -0,0 +1,25 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the shared {@link MetadataCache}.
+ */
+public interface MetadataCacheMBean {
+
+    long getLicenseHitCount();
+
+    long getLicenseMissCount();
+
+    long getOwnerHitCount();
+
+    long getOwnerMissCount();
+
+    long getOwnerCount();
+
+    long getPlaceHitCount();
+
+    long getPlaceMissCount();
+
+    long getPlaceCount();
+
+    long getPhotoDetailsCount();
+}
@@ -0,0 +1,46 @@
+package au.org.ala.flickrharvester;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The file formats a harvest can be written in.
+ */
+public enum OutputFormat {
+    /** Plain CSV with every column */
+    CSV(".csv"),
+    /** CSV in gzip members, one per checkpoint */
+    GZIP(".csv.gz"),
+    /** CSV in zstd frames, one per checkpoint */
+    ZSTD(".csv.zst"),
+    /** Avro container file with a nullable field per term, so empty terms cost a byte */
+    AVRO(".avro");
+
+    public final String suffix;
+
+    OutputFormat(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return the file name of the output without this format's suffix
+     */
+    public String baseName(Path outputPath) {
+        String name = outputPath.getFileName().toString();
+        return name.endsWith(suffix) ? name.substring(0, name.length() - suffix.length()) : name;
+    }
+
+    public OutputSink open(Path outputPath, List<String> header, PageLedger ledger) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new CsvOutputWriter(outputPath, header, ledger, CsvOutputWriter.Compression.GZIP);
+            case ZSTD:
+                return new CsvOutputWriter(outputPath, header, ledger, CsvOutputWriter.Compression.ZSTD);
+            case AVRO:
+                return new AvroOutputWriter(outputPath, header, ledger);
+            default:
+                return new CsvOutputWriter(outputPath, header, ledger, CsvOutputWriter.Compression.NONE);
+        }
+    }
+}
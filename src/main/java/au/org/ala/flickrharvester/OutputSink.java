@@ -0,0 +1,24 @@
+package au.org.ala.flickrharvester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where mapped rows end up. A sink is driven by a single writer thread and commits pages to the
+ * {@link PageLedger} itself, once their rows are durable, at an offset that is safe to truncate the file back to.
+ */
+public interface OutputSink extends Closeable {
+
+    /**
+     * Appends a page's rows, laid out like the header the sink was opened with.
+     */
+    void write(String key, List<String[]> rows) throws IOException;
+
+    /**
+     * Makes everything written so far durable and commits the pages it belongs to.
+     */
+    void checkpoint() throws IOException;
+
+    long getRowCount();
+}
@@ -0,0 +1,195 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal kept next to the output file recording which pages have been scheduled, fetched and
+ * written. Each line is {@code <S|F|W> <key> [<offset>]}, where the offset on a W entry is the length of the
+ * output file once that page's rows were appended, so it always falls on a row boundary.
+ * <p>
+ * On {@code --resume} the output is cut back to the largest committed offset, which drops any torn row or
+ * any page that reached the file but not the ledger, and only the pages without a W entry are queued again.
+ */
+public class PageLedger implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PageLedger.class);
+
+    private static final String SCHEDULED = "S";
+    private static final String FETCHED = "F";
+    private static final String WRITTEN = "W";
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Set<String> written = ConcurrentHashMap.newKeySet();
+    private final AtomicLong fetchedCount = new AtomicLong();
+    private long committedOffset;
+    private volatile Consumer<String> writtenListener = key -> {
+    };
+
+    private PageLedger(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * @param resume keep and replay an existing ledger rather than starting a new one
+     */
+    public static PageLedger open(Path file, boolean resume) throws IOException {
+        if (!resume) {
+            Files.deleteIfExists(file);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        PageLedger ledger = new PageLedger(file, channel);
+        if (resume) {
+            ledger.replay();
+        }
+        channel.position(channel.size());
+        return ledger;
+    }
+
+    private void replay() throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            // the last entry has no newline, it was torn by the crash and never counted
+            channel.truncate(end);
+        }
+        for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+            String[] parts = line.split(" ");
+            if (parts.length >= 2 && WRITTEN.equals(parts[0])) {
+                written.add(parts[1]);
+                if (parts.length > 2) {
+                    committedOffset = Math.max(committedOffset, Long.parseLong(parts[2]));
+                }
+            }
+        }
+        log.info("Replayed page ledger {}: {} pages written, output committed up to byte {}", file, written.size(), committedOffset);
+    }
+
+    public void scheduled(String key) throws IOException {
+        append(SCHEDULED + " " + key, false);
+    }
+
+    public void fetched(String key) throws IOException {
+        append(FETCHED + " " + key, false);
+        fetchedCount.incrementAndGet();
+    }
+
+    /**
+     * Commits a page.
+     *
+     * @param outputOffset the output file length after the page's rows were appended, or -1 if it had none
+     */
+    public void written(String key, long outputOffset) throws IOException {
+        synchronized (this) {
+            if (outputOffset >= 0) {
+                committedOffset = Math.max(committedOffset, outputOffset);
+            }
+        }
+        append(WRITTEN + " " + key + (outputOffset >= 0 ? " " + outputOffset : ""), true);
+        written.add(key);
+        writtenListener.accept(key);
+    }
+
+    /**
+     * Commits several pages whose rows all lie before {@code outputOffset}, forcing the ledger once for the lot.
+     *
+     * @param outputOffset the output file length after the pages' rows were appended, or -1 if they went elsewhere
+     */
+    public void written(Collection<String> keys, long outputOffset) throws IOException {
+        StringBuilder entries = new StringBuilder();
+        for (String key : keys) {
+            if (entries.length() > 0) {
+                entries.append('\n');
+            }
+            entries.append(WRITTEN).append(' ').append(key);
+            if (outputOffset >= 0) {
+                entries.append(' ').append(outputOffset);
+            }
+        }
+        synchronized (this) {
+            committedOffset = Math.max(committedOffset, outputOffset);
+        }
+        append(entries.toString(), true);
+        written.addAll(keys);
+        keys.forEach(writtenListener);
+    }
+
+    /**
+     * Called with every page once its W entry is on disk, on the thread that committed it.
+     */
+    public void setWrittenListener(Consumer<String> listener) {
+        this.writtenListener = listener;
+    }
+
+    public boolean isWritten(String key) {
+        return written.contains(key);
+    }
+
+    /**
+     * @return how many pages this process has fetched
+     */
+    public long getFetchedCount() {
+        return fetchedCount.get();
+    }
+
+    /**
+     * @return how many pages are committed, by this run or the runs it resumes
+     */
+    public long getWrittenCount() {
+        return written.size();
+    }
+
+    public synchronized long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    /**
+     * Cuts the output file back to the last committed page so that appending to it can carry on cleanly.
+     */
+    public void truncateToCommitted(Path output) throws IOException {
+        if (!Files.exists(output)) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            long offset = getCommittedOffset();
+            if (out.size() > offset) {
+                log.info("Truncating {} from {} to {} bytes, dropping rows that were not committed", output, out.size(), offset);
+                out.truncate(offset);
+                out.force(true);
+            }
+        }
+    }
+
+    private synchronized void append(String entry, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
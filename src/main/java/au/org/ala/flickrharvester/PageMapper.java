@@ -0,0 +1,122 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns a page of Flickr photos into Darwin Core rows, independent of how the page was fetched or where the rows go.
+ * Rows are laid out like {@link Config#CSV_FIELD_LIST}.
+ * <p>
+ * In a multi-source harvest each source's photos move its own high-water marks, and a photo is only mapped for the
+ * first source to come across it in the run, so photos the groups share are written once.
+ */
+public class PageMapper {
+    private static final Logger log = LoggerFactory.getLogger(PageMapper.class);
+    private final Config config;
+    private final HarvestState state;
+    private final Map<String, HarvestState> sourceStates;
+    private final HarvestMetrics metrics;
+    private final ThreadLocal<DwcRecordMapper> recordMapper;
+    private final MediaVerifier media;
+    /** The source that came across each photo first, by photo id, only kept when there is more than one source */
+    private final Map<Long, String> claims;
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    public PageMapper(Config config, Map<String, String> licenseMap, HarvestState state, HarvestMetrics metrics) {
+        this(config, licenseMap, state, Collections.emptyMap(), metrics);
+    }
+
+    public PageMapper(Config config, Map<String, String> licenseMap, HarvestState state, Map<String, HarvestState> sourceStates,
+                      HarvestMetrics metrics) {
+        this(config, licenseMap, state, sourceStates, metrics, null);
+    }
+
+    /**
+     * @param state        the high-water marks of pages that belong to no named source
+     * @param sourceStates the high-water marks of each named source, by name
+     * @param media        checks the media of every row before it is handed on, or null to leave it unchecked
+     */
+    public PageMapper(Config config, Map<String, String> licenseMap, HarvestState state, Map<String, HarvestState> sourceStates,
+                      HarvestMetrics metrics, MediaVerifier media) {
+        this.config = config;
+        this.state = state;
+        this.sourceStates = sourceStates;
+        this.metrics = metrics;
+        this.recordMapper = ThreadLocal.withInitial(() -> new DwcRecordMapper(config.MAPPING, licenseMap));
+        this.media = media;
+        this.claims = sourceStates.size() > 1 ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * @return a row for every photo in the page that passes the update date filters
+     */
+    public List<String[]> map(FlickrRequest request, PhotoList<Photo> photoList) throws FlickrException {
+        DwcRecordMapper mapper = recordMapper.get();
+        HarvestState state = request.source == null ? this.state : sourceStates.getOrDefault(request.source, this.state);
+        List<String[]> rows = new ArrayList<>(photoList.size());
+        List<Photo> mapped = media == null ? null : new ArrayList<>(photoList.size());
+        int shared = 0;
+
+        for (Photo photoInfo : photoList) {
+            Date lastUpdate = photoInfo.getLastUpdate();
+            boolean minUpdateMet = (config.MIN_UPDATE_DATE == null || lastUpdate == null)? true :  lastUpdate.after(config.MIN_UPDATE_DATE);
+            boolean maxUpdateMet = (config.MAX_UPDATE_DATE == null || lastUpdate == null)? true :  lastUpdate.before(config.MAX_UPDATE_DATE);
+            boolean changedMet = (request.minUpdateDate == null || lastUpdate == null)? true : lastUpdate.after(request.minUpdateDate);
+            if (minUpdateMet && maxUpdateMet && changedMet && !claimedElsewhere(request, photoInfo)) {
+                log.debug("Photo {} is being processed...", photoInfo.getUrl());
+                // each row outlives this call, it is handed to the writer, so it gets its own array
+                String[] record = DwcRecordMapper.newRecord();
+                mapper.map(photoInfo, record);
+                rows.add(record);
+                if (mapped != null) {
+                    mapped.add(photoInfo);
+                }
+                state.observe(photoInfo);
+                log.debug("Photo {} is added to the CSV", photoInfo.getUrl());
+            } else if (minUpdateMet && maxUpdateMet && changedMet) {
+                log.debug("Photo {} was already harvested from another source", photoInfo.getUrl());
+                state.observe(photoInfo);
+                shared++;
+            } else{
+                log.info("Photo {} didn't meet the criteria to be included in the csv file.", photoInfo.getUrl());
+            }
+
+        }
+        if (media != null) {
+            media.verify(mapped, rows);
+        }
+        metrics.photosMapped(rows.size());
+        metrics.photosRejected(photoList.size() - rows.size() - shared);
+        sharedCount.addAndGet(shared);
+        return rows;
+    }
+
+    /**
+     * Claims the photo for the request's source, a page of the same source fetched again keeps its photos.
+     */
+    private boolean claimedElsewhere(FlickrRequest request, Photo photo) {
+        if (claims == null || request.source == null) {
+            return false;
+        }
+        String claimant = claims.putIfAbsent(Long.parseLong(photo.getId()), request.source);
+        return claimant != null && !claimant.equals(request.source);
+    }
+
+    /**
+     * @return how many photos were left out as another source had already come across them
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+}
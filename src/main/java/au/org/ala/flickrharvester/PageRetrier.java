@@ -0,0 +1,112 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides what becomes of a page whose fetch failed. It is queued again after a backoff that doubles with every
+ * attempt, with up to half of it taken off at random so that pages failing together, as they do when Flickr has an
+ * outage, don't all come back at once. A page that has used up its attempts is given up on and goes to the dead
+ * letter file next to the output, one {@code <key>\t<attempts>\t<error>} line each, and being unwritten in the
+ * ledger it is queued again by {@code --resume}.
+ */
+public class PageRetrier implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PageRetrier.class);
+
+    public static final String DEAD_LETTER_SUFFIX = ".deadletter";
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Path deadLetterFile;
+    private final HarvestMetrics metrics;
+    private BufferedWriter deadLetters;
+
+    PageRetrier(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Path deadLetterFile, HarvestMetrics metrics) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadLetterFile = deadLetterFile;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param resume keep the pages an earlier run gave up on in the dead letter file rather than starting a new one
+     */
+    public static PageRetrier open(Config config, Path deadLetterFile, boolean resume, HarvestMetrics metrics) throws IOException {
+        if (!resume) {
+            Files.deleteIfExists(deadLetterFile);
+        }
+        return new PageRetrier(config.MAX_ATTEMPTS, config.RETRY_BASE_MILLIS, config.RETRY_MAX_MILLIS, deadLetterFile, metrics);
+    }
+
+    /**
+     * @return how long to wait before trying {@link FlickrRequest#nextAttempt()} of the page, or -1 if it was the
+     * page's last attempt and it went to the dead letter file
+     */
+    public long failed(FlickrRequest request, Exception e) {
+        int attempts = request.attempt + 1;
+        if (attempts < maxAttempts) {
+            long delay = delayMillis(request.attempt);
+            metrics.pageRetried();
+            log.warn("Page {} failed on attempt {} of {}, trying it again in {} ms: {}", request.key(), attempts, maxAttempts, delay, e.toString());
+            return delay;
+        }
+        metrics.pageDeadLettered();
+        log.error("Page {} failed on its last attempt, giving up on it", request.key(), e);
+        deadLetter(request.key(), attempts, e);
+        return -1;
+    }
+
+    /**
+     * @param attempt how many times the page has failed before, 0 for the first failure
+     */
+    long delayMillis(int attempt) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private synchronized void deadLetter(String key, int attempts, Exception e) {
+        try {
+            if (deadLetters == null) {
+                deadLetters = Files.newBufferedWriter(deadLetterFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            deadLetters.write(key + "\t" + attempts + "\t" + describe(e) + "\n");
+            deadLetters.flush();
+        } catch (IOException io) {
+            log.error("Couldn't add page {} to the dead letter file {}", key, deadLetterFile, io);
+        }
+    }
+
+    /**
+     * The error and what caused it, on one line.
+     */
+    private static String describe(Throwable e) {
+        StringBuilder description = new StringBuilder(e.toString());
+        for (Throwable cause = e.getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+            description.append(" caused by ").append(cause);
+        }
+        return description.toString().replaceAll("\\s+", " ");
+    }
+
+    public Path getDeadLetterFile() {
+        return deadLetterFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (deadLetters != null) {
+            deadLetters.close();
+            deadLetters = null;
+        }
+    }
+}
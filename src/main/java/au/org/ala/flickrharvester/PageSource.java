@@ -0,0 +1,114 @@
+package au.org.ala.flickrharvester;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the pages a harvest is made of, to any number of fetch threads at once.
+ */
+public interface PageSource {
+
+    /**
+     * @return the next page to harvest, or null once there are none left
+     */
+    FlickrRequest next() throws InterruptedException;
+
+    /**
+     * Told about a page that was given up on after its last attempt, and so will never be written.
+     */
+    default void gaveUp(FlickrRequest request) {
+    }
+
+    /**
+     * Whether {@link #next()} may block until more pages turn up, rather than only handing out pages it already has.
+     */
+    default boolean mayBlock() {
+        return false;
+    }
+
+    /**
+     * The pages of a list, in order.
+     */
+    static PageSource of(List<FlickrRequest> pages) {
+        AtomicInteger next = new AtomicInteger();
+        return () -> {
+            int index = next.getAndIncrement();
+            return index < pages.size() ? pages.get(index) : null;
+        };
+    }
+
+    /**
+     * Pages 1 to {@code count} of a query, each made when it is asked for, so a pool of millions of photos doesn't
+     * need a request held in memory for every page.
+     */
+    static List<FlickrRequest> pages(FlickrRequest query, int count) {
+        return new AbstractList<FlickrRequest>() {
+            @Override
+            public FlickrRequest get(int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException("Page " + (index + 1) + " of " + count);
+                }
+                return query.forPage(index + 1);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * The pages of several sources taken in turn, one from each source that has pages left, so that however many
+     * pages a source has every source gets an equal share of the fetch threads until it runs out. The pages are
+     * looked up in the sources as they are asked for rather than copied.
+     */
+    static List<FlickrRequest> interleave(List<List<FlickrRequest>> sources) {
+        int[] sizes = sources.stream().mapToInt(List::size).toArray();
+        int total = sources.stream().mapToInt(List::size).sum();
+        int rounds = sources.stream().mapToInt(List::size).max().orElse(0);
+        return new AbstractList<FlickrRequest>() {
+            @Override
+            public FlickrRequest get(int index) {
+                if (index < 0 || index >= total) {
+                    throw new IndexOutOfBoundsException("Page " + index + " of " + total);
+                }
+                // the last round that starts at or before the index
+                int low = 0;
+                int high = rounds - 1;
+                while (low < high) {
+                    int round = (low + high + 1) >>> 1;
+                    if (before(round) <= index) {
+                        low = round;
+                    } else {
+                        high = round - 1;
+                    }
+                }
+                int offset = index - before(low);
+                for (int source = 0; source < sizes.length; source++) {
+                    if (low < sizes[source] && offset-- == 0) {
+                        return sources.get(source).get(low);
+                    }
+                }
+                throw new IllegalStateException("Page " + index + " is in no source");
+            }
+
+            /**
+             * How many pages the rounds before this one take.
+             */
+            private int before(int round) {
+                int pages = 0;
+                for (int size : sizes) {
+                    pages += Math.min(size, round);
+                }
+                return pages;
+            }
+
+            @Override
+            public int size() {
+                return total;
+            }
+        };
+    }
+}
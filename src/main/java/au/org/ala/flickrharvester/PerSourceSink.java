@@ -0,0 +1,112 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes each source of a multi-source harvest to an output of its own next to where the shared one would go,
+ * {@code flickr.dwc.birds.csv} for the source birds of {@code flickr.dwc.csv}. Pages go to their source's output by
+ * the source name their ledger key starts with.
+ * <p>
+ * Each output has a ledger of its own while the harvest runs, for {@code --resume} to cut it back to what it
+ * committed, and a page is only committed to the harvest's ledger once its output has checkpointed it. A run that
+ * finishes removes the outputs' ledgers, and resuming it appends to the outputs as they are.
+ */
+public class PerSourceSink implements OutputSink {
+    private static final Logger log = LoggerFactory.getLogger(PerSourceSink.class);
+
+    private final PageLedger ledger;
+    private final Map<String, OutputSink> sinks = new LinkedHashMap<>();
+    private final List<Path> ledgerPaths = new ArrayList<>();
+    private final List<PageLedger> ledgers = new ArrayList<>();
+    private final List<String> pendingKeys = new ArrayList<>();
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    /**
+     * @param ledger the harvest's ledger, which pages are committed to once their source's output holds them
+     * @param resume carry on with the outputs of an interrupted run rather than replacing them
+     */
+    public PerSourceSink(Path output, OutputFormat format, List<HarvestSource> sources, PageLedger ledger, boolean resume) throws IOException {
+        this.ledger = ledger;
+        for (HarvestSource source : sources) {
+            Path path = sourcePath(output, format, source.name);
+            Path ledgerPath = Paths.get(path + ".ledger");
+            // only an interrupted run leaves the ledger behind
+            boolean interrupted = resume && Files.exists(ledgerPath);
+            PageLedger own = PageLedger.open(ledgerPath, interrupted);
+            if (interrupted) {
+                own.truncateToCommitted(path);
+            } else if (!resume) {
+                Files.deleteIfExists(path);
+            }
+            ledgerPaths.add(ledgerPath);
+            ledgers.add(own);
+            sinks.put(source.name, format.open(path, Config.CSV_FIELD_LIST, own));
+        }
+    }
+
+    /**
+     * @return where the records of one source go, {@code flickr.dwc.birds.csv} for {@code flickr.dwc.csv}
+     */
+    public static Path sourcePath(Path output, OutputFormat format, String source) {
+        return output.resolveSibling(format.baseName(output) + "." + source + format.suffix);
+    }
+
+    @Override
+    public void write(String key, List<String[]> rows) throws IOException {
+        OutputSink sink = sinks.get(FlickrRequest.sourceOf(key));
+        if (sink == null) {
+            throw new IllegalArgumentException("Page " + key + " belongs to none of the sources");
+        }
+        sink.write(key, rows);
+        pendingKeys.add(key);
+        if (System.currentTimeMillis() - lastCheckpoint >= CsvOutputWriter.DEFAULT_CHECKPOINT_MILLIS) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        for (OutputSink sink : sinks.values()) {
+            sink.checkpoint();
+        }
+        if (!pendingKeys.isEmpty()) {
+            ledger.written(pendingKeys, -1);
+            pendingKeys.clear();
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getRowCount() {
+        long rows = 0;
+        for (OutputSink sink : sinks.values()) {
+            rows += sink.getRowCount();
+        }
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        for (Map.Entry<String, OutputSink> source : sinks.entrySet()) {
+            log.info("Source {}: {} rows written", source.getKey(), source.getValue().getRowCount());
+            source.getValue().close();
+        }
+        for (PageLedger own : ledgers) {
+            own.close();
+        }
+        for (Path ledgerPath : ledgerPaths) {
+            Files.deleteIfExists(ledgerPath);
+        }
+    }
+}
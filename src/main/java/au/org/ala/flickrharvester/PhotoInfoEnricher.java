@@ -0,0 +1,232 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.GeoData;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.places.Place;
+import com.flickr4java.flickr.tags.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills in what only photos.getInfo knows about a photo: the raw machine tags (the photo lists only carry them
+ * lower-cased and stripped of punctuation), the exact geo context and the owner's real name and location.
+ * <p>
+ * That is an API call per photo, so it is only made when it can change a row. Photos an incremental harvest drops
+ * for not having been updated since the previous run are skipped, and the details are cached by photo id along
+ * with the last_update they were fetched at, so an unchanged photo comes from the {@link MetadataCache}, and from
+ * its file on the next run. A photo that turns up in several pages while its details are being fetched waits for
+ * that fetch rather than making another.
+ * <p>
+ * No more than {@link #getThreads()} calls are in flight whichever threads ask, so enrichment can't take the whole
+ * rate limit from the page fetches.
+ */
+public class PhotoInfoEnricher implements PhotoInfoEnricherMBean {
+    private static final Logger log = LoggerFactory.getLogger(PhotoInfoEnricher.class);
+
+    private final FlickrClient flickr;
+    private final MetadataCache metadata;
+    private final int threads;
+    private final int queueCapacity;
+    private final Semaphore permits;
+    private final ConcurrentMap<String, CompletableFuture<MetadataCache.PhotoDetails>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param threads       how many photos.getInfo calls may be in flight at once
+     * @param queueCapacity how many fetched pages may wait for enrichment before the page fetches block
+     */
+    public PhotoInfoEnricher(FlickrClient flickr, MetadataCache metadata, int threads, int queueCapacity) {
+        this.flickr = flickr;
+        this.metadata = metadata;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.permits = new Semaphore(threads);
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Enriches the photos of a page that need it, in place.
+     */
+    public void enrich(FlickrRequest request, PhotoList<Photo> photos) throws InterruptedException {
+        for (Photo photo : photos) {
+            enrich(request, photo);
+        }
+    }
+
+    void enrich(FlickrRequest request, Photo photo) throws InterruptedException {
+        Date lastUpdate = photo.getLastUpdate();
+        if (request.minUpdateDate != null && lastUpdate != null && !lastUpdate.after(request.minUpdateDate)) {
+            // the page mapper drops it
+            skipped.incrementAndGet();
+            return;
+        }
+        MetadataCache.PhotoDetails details = details(photo, lastUpdate == null ? 0 : lastUpdate.getTime());
+        if (details != null) {
+            apply(details, photo);
+        }
+    }
+
+    private MetadataCache.PhotoDetails details(Photo photo, long lastUpdate) throws InterruptedException {
+        MetadataCache.PhotoDetails details = metadata.getDetails(photo.getId());
+        if (details != null && details.lastUpdate == lastUpdate) {
+            cached.incrementAndGet();
+            return details;
+        }
+        CompletableFuture<MetadataCache.PhotoDetails> fetch = new CompletableFuture<>();
+        CompletableFuture<MetadataCache.PhotoDetails> running = inFlight.putIfAbsent(photo.getId(), fetch);
+        if (running != null) {
+            shared.incrementAndGet();
+            try {
+                return running.get();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+        try {
+            // another thread may have finished fetching it between the cache lookup and now
+            details = metadata.getDetails(photo.getId());
+            if (details == null || details.lastUpdate != lastUpdate) {
+                details = fetch(photo, lastUpdate);
+                metadata.putDetails(photo.getId(), details);
+            }
+            fetch.complete(details);
+            return details;
+        } catch (FlickrException | RuntimeException e) {
+            failed.incrementAndGet();
+            log.warn("Couldn't get the details of photo {}, its row will only have what the photo list had", photo.getId(), e);
+            return null;
+        } finally {
+            fetch.complete(null);
+            inFlight.remove(photo.getId(), fetch);
+        }
+    }
+
+    private MetadataCache.PhotoDetails fetch(Photo photo, long lastUpdate) throws FlickrException, InterruptedException {
+        Photo info;
+        permits.acquire();
+        try {
+            info = flickr.getPhotoInfo(photo.getId(), photo.getSecret());
+        } finally {
+            permits.release();
+        }
+        fetched.incrementAndGet();
+
+        String[] tags = null;
+        Collection<Tag> infoTags = info.getTags();
+        if (infoTags != null && !infoTags.isEmpty()) {
+            tags = new String[infoTags.size()];
+            int i = 0;
+            for (Tag tag : infoTags) {
+                tags[i++] = tag.getRaw() != null ? tag.getRaw() : tag.getValue();
+            }
+        }
+        GeoData geo = info.getGeoData();
+        User owner = info.getOwner();
+        return new MetadataCache.PhotoDetails(lastUpdate, tags,
+                geo == null ? null : Float.toString(geo.getLatitude()),
+                geo == null ? null : Float.toString(geo.getLongitude()),
+                geo == null ? null : Integer.toString(geo.getAccuracy()),
+                name(info.getCountry()), name(info.getRegion()), name(info.getLocality()),
+                owner == null ? null : owner.getRealName(), owner == null ? null : owner.getLocation(),
+                System.currentTimeMillis());
+    }
+
+    static void apply(MetadataCache.PhotoDetails details, Photo photo) {
+        List<Tag> tags = new ArrayList<>(details.tags == null ? 0 : details.tags.length);
+        if (details.tags != null) {
+            for (String raw : details.tags) {
+                Tag tag = new Tag();
+                tag.setRaw(raw);
+                tag.setValue(raw);
+                tags.add(tag);
+            }
+        }
+        photo.setTags(tags);
+        if (details.latitude != null) {
+            GeoData geo = new GeoData();
+            geo.setLatitude(Float.parseFloat(details.latitude));
+            geo.setLongitude(Float.parseFloat(details.longitude));
+            geo.setAccuracy(Integer.parseInt(details.accuracy));
+            photo.setGeoData(geo);
+        }
+        if (details.country != null) {
+            photo.setCountry(place(details.country));
+        }
+        if (details.region != null) {
+            photo.setRegion(place(details.region));
+        }
+        if (details.locality != null) {
+            photo.setLocality(place(details.locality));
+        }
+        User owner = photo.getOwner();
+        if (owner != null) {
+            if (details.ownerRealName != null) {
+                owner.setRealName(details.ownerRealName);
+            }
+            if (details.ownerLocation != null) {
+                owner.setLocation(details.ownerLocation);
+            }
+        }
+    }
+
+    private static String name(Place place) {
+        return place == null ? null : place.getName();
+    }
+
+    private static Place place(String name) {
+        Place place = new Place();
+        place.setName(name);
+        return place;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public long getFetchedCount() {
+        return fetched.get();
+    }
+
+    @Override
+    public long getCachedCount() {
+        return cached.get();
+    }
+
+    @Override
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,19 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the {@link PhotoInfoEnricher}.
+ */
+public interface PhotoInfoEnricherMBean {
+
+    int getThreads();
+
+    long getFetchedCount();
+
+    long getCachedCount();
+
+    long getSharedCount();
+
+    long getSkippedCount();
+
+    long getFailedCount();
+}
@@ -0,0 +1,147 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket shared by every thread that talks to Flickr.
+ * <p>
+ * Tokens refill at the current rate up to {@code burst}. When Flickr pushes back (HTTP 429/5xx or a
+ * "rate limit" error) the rate is halved, and it climbs back towards the configured rate in small steps
+ * once calls have been succeeding for a while.
+ */
+public class RateLimiter implements RateLimiterMBean {
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+    private static final long RECOVERY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double RECOVERY_STEP = 0.1;
+    private static final double MIN_RATE_FRACTION = 0.01;
+
+    private final double configuredRate;
+    private final double minRate;
+    private final int burst;
+
+    private double currentRate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastAdjustNanos;
+
+    private final AtomicLong permitsIssued = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong throttleCount = new AtomicLong();
+
+    /**
+     * @param permitsPerSecond the steady state rate, also the ceiling when recovering from back off
+     * @param burst            the number of calls that can be made back to back after an idle period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1, got " + permitsPerSecond + "/" + burst);
+        }
+        this.configuredRate = permitsPerSecond;
+        this.minRate = permitsPerSecond * MIN_RATE_FRACTION;
+        this.burst = burst;
+        this.currentRate = permitsPerSecond;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastAdjustNanos = lastRefillNanos;
+    }
+
+    /**
+     * Blocks until a call to Flickr may be made.
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Blocks until {@code permits} tokens have been paid for, e.g. bytes when the limiter caps a byte rate. More
+     * than {@code burst} at once is allowed, later callers wait for the debt to be paid off.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        long waitNanos = reserve(permits);
+        permitsIssued.addAndGet(permits);
+        if (waitNanos > 0) {
+            totalWaitNanos.addAndGet(waitNanos);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes tokens, going into debt if there aren't enough, and returns how long the caller has to wait for them.
+     */
+    private synchronized long reserve(int permits) {
+        long now = System.nanoTime();
+        refill(now);
+        tokens -= permits;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / currentRate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * currentRate / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Reports a call that Flickr answered normally.
+     */
+    public synchronized void onSuccess() {
+        long now = System.nanoTime();
+        if (currentRate < configuredRate && now - lastAdjustNanos >= RECOVERY_INTERVAL_NANOS) {
+            refill(now);
+            currentRate = Math.min(configuredRate, currentRate + configuredRate * RECOVERY_STEP);
+            lastAdjustNanos = now;
+            log.info("Flickr calls are succeeding again, rate raised to {} calls/second", String.format("%.3f", currentRate));
+        }
+    }
+
+    /**
+     * Reports a call that Flickr rejected because we were going too fast or it was overloaded.
+     */
+    public synchronized void onThrottled() {
+        long now = System.nanoTime();
+        throttleCount.incrementAndGet();
+        refill(now);
+        // drop whatever burst allowance is left so the next call waits for the reduced rate
+        tokens = Math.min(tokens, 0);
+        currentRate = Math.max(minRate, currentRate / 2);
+        lastAdjustNanos = now;
+        log.warn("Flickr is throttling us, rate lowered to {} calls/second", String.format("%.3f", currentRate));
+    }
+
+    @Override
+    public double getConfiguredRate() {
+        return configuredRate;
+    }
+
+    @Override
+    public synchronized double getCurrentRate() {
+        return currentRate;
+    }
+
+    @Override
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public long getPermitsIssued() {
+        return permitsIssued.get();
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    @Override
+    public long getThrottleCount() {
+        return throttleCount.get();
+    }
+}
@@ -0,0 +1,19 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the shared {@link RateLimiter}.
+ */
+public interface RateLimiterMBean {
+
+    double getConfiguredRate();
+
+    double getCurrentRate();
+
+    int getBurst();
+
+    long getPermitsIssued();
+
+    long getTotalWaitMillis();
+
+    long getThrottleCount();
+}
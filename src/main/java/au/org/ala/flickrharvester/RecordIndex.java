@@ -0,0 +1,528 @@
+package au.org.ala.flickrharvester;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Every record harvested so far, as a 64 bit hash of its unique key terms mapped to a fingerprint of its content,
+ * kept between runs so that a run can tell which of its records are new, changed or unchanged, and drop the ones
+ * it has already emitted when pages shift under it.
+ * <p>
+ * Key hashes, fingerprints and the offset of the key's text in a {@code .keys} file next to the index sit side by
+ * side in a table probed linearly, with a bit per slot for whether the record has been seen in this run. The table
+ * is 24 bytes a slot, between 32 and 64 bytes a record, and is mapped from a scratch file next to the index rather
+ * than kept on the heap, so it is left to the OS to page and doesn't count against the {@link HeapBudget}: only the
+ * seen bits, a bit a slot, are on the heap. It is sized for the records the run expects up front, so that it
+ * doesn't double while the harvest is running. Key texts are only read back for records that are removed. A key
+ * hash of 0 marks an empty slot, so a key that hashes to 0 is stored as 1.
+ * <p>
+ * The keys file is only appended to, and cut back to what the saved index knows about when it is loaded, so a run
+ * that never saves leaves nothing behind. The keys of removed records stay in it. Not thread safe, the harvest's
+ * writer thread is its only user.
+ */
+public class RecordIndex implements RecordIndexMBean, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RecordIndex.class);
+
+    private static final int MAGIC = 0x464c4b31;
+    private static final String KEYS_SUFFIX = ".keys";
+    private static final int STRIDE = 3;
+    private static final int KEY = 0;
+    private static final int FINGERPRINT = 1;
+    private static final int KEY_OFFSET = 2;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MAX_KEY_TEXT_BYTES = 0xffff;
+    private static final long NO_KEY_TEXT = -1;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long NULL_MARKER = 0x9e3779b97f4a7c15L;
+    private static final long CONTENT_BITS = 0x0000ffffffffffffL;
+    private static final int LICENSE_SHIFT = 48;
+
+    /**
+     * What a record is relative to the previous runs and to what this run has emitted already.
+     */
+    public enum Status {
+        NEW,
+        CHANGED,
+        /** Changed, license included */
+        RELICENSED,
+        UNCHANGED,
+        /** Already emitted by this run */
+        DUPLICATE
+    }
+
+    private final Path file;
+    private final Path keysFile;
+    private final Path scratchDir;
+    private Table table;
+    private long[] seen;
+    private int mask;
+    private int size;
+    private long keysLength;
+    private FileOutputStream keysFileOut;
+    private DataOutputStream keysOut;
+    private RandomAccessFile keysIn;
+    private long newCount;
+    private long changedCount;
+    private long relicensedCount;
+    private long unchangedCount;
+    private long duplicateCount;
+    private long removedCount;
+
+    private RecordIndex(Path file, long expected) throws IOException {
+        this.file = file;
+        this.keysFile = file == null ? null : file.resolveSibling(file.getFileName() + KEYS_SUFFIX);
+        this.scratchDir = file == null ? Paths.get(System.getProperty("java.io.tmpdir")) : file.toAbsolutePath().getParent();
+        allocate(capacityFor(expected));
+    }
+
+    /**
+     * Reads the index left by the previous run, or starts an empty one if there is none.
+     *
+     * @param file where the index is kept between runs, or null to keep it without the key texts
+     */
+    public static RecordIndex load(Path file) throws IOException {
+        return load(file, 0);
+    }
+
+    /**
+     * Reads the index left by the previous run, or starts an empty one if there is none, with room for at least
+     * {@code expectedRecords} without growing.
+     *
+     * @param file            where the index is kept between runs, or null to keep it without the key texts
+     * @param expectedRecords how many records the run is likely to emit
+     */
+    public static RecordIndex load(Path file, long expectedRecords) throws IOException {
+        if (file == null || !Files.exists(file)) {
+            log.info("No record index found at {}, every record is new", file);
+            return open(new RecordIndex(file, expectedRecords));
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a record index");
+            }
+            int count = in.readInt();
+            // a full harvest emits about as many records as it knows, an incremental one rarely enough to double it
+            RecordIndex index = new RecordIndex(file, Math.max(count, expectedRecords));
+            index.keysLength = in.readLong();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long fingerprint = in.readLong();
+                index.insert(key, fingerprint, in.readLong());
+            }
+            log.info("Loaded {} records from the record index {}", count, file);
+            return open(index);
+        }
+    }
+
+    private static RecordIndex open(RecordIndex index) throws IOException {
+        if (index.keysFile == null) {
+            return index;
+        }
+        try (FileChannel keys = FileChannel.open(index.keysFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (keys.size() > index.keysLength) {
+                // keys appended by a run that didn't save
+                keys.truncate(index.keysLength);
+            }
+        }
+        index.keysFileOut = new FileOutputStream(index.keysFile.toFile(), true);
+        index.keysOut = new DataOutputStream(new BufferedOutputStream(index.keysFileOut, 1 << 16));
+        return index;
+    }
+
+    /**
+     * Writes every record known, from this run or an earlier one, replacing the file atomically.
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        // the index must never point past the end of the keys file
+        keysOut.flush();
+        keysFileOut.getChannel().force(false);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(size);
+            out.writeLong(keysLength);
+            for (int entry = 0; entry <= mask; entry++) {
+                long key = table.get(entry, KEY);
+                if (key != 0) {
+                    out.writeLong(key);
+                    out.writeLong(table.get(entry, FINGERPRINT));
+                    out.writeLong(table.get(entry, KEY_OFFSET));
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Saved {} records to the record index {}", size, file);
+    }
+
+    /**
+     * Records that this run is emitting a row laid out like {@link Config#CSV_FIELD_LIST}, identified by its
+     * {@code keyColumns}, at least one of which the caller has checked holds a value.
+     */
+    public Status classify(String[] row, int[] keyColumns) throws IOException {
+        return classify(hash(row, keyColumns), fingerprint(row), keyText(row, keyColumns));
+    }
+
+    /**
+     * Records that this run is emitting a record.
+     *
+     * @param keyText what to hand back if the record is ever removed, or null
+     */
+    public Status classify(long key, long fingerprint, String keyText) throws IOException {
+        if (key == 0) {
+            key = 1;
+        }
+        int entry = find(key);
+        if (table.get(entry, KEY) == 0) {
+            put(entry, key, fingerprint, appendKeyText(keyText));
+            setSeen(entry, true);
+            growIfFull();
+            newCount++;
+            return Status.NEW;
+        }
+        if (isSeen(entry)) {
+            duplicateCount++;
+            return Status.DUPLICATE;
+        }
+        setSeen(entry, true);
+        long previous = table.get(entry, FINGERPRINT);
+        if (previous == fingerprint) {
+            unchangedCount++;
+            return Status.UNCHANGED;
+        }
+        table.set(entry, FINGERPRINT, fingerprint);
+        if ((previous >>> LICENSE_SHIFT) != (fingerprint >>> LICENSE_SHIFT)) {
+            relicensedCount++;
+            return Status.RELICENSED;
+        }
+        changedCount++;
+        return Status.CHANGED;
+    }
+
+    /**
+     * Drops every record this run hasn't emitted, handing over the key text of each as made by
+     * {@link #keyText(String[], int[])}, or null if the index has no file to keep key texts in. Only meaningful once
+     * a run has emitted everything there is.
+     */
+    public void removeUnseen(RemovalListener removed) throws IOException {
+        if (keysOut != null) {
+            keysOut.flush();
+        }
+        int entry = 0;
+        while (entry <= mask) {
+            if (table.get(entry, KEY) != 0 && !isSeen(entry)) {
+                removed.removed(readKeyText(table.get(entry, KEY_OFFSET)));
+                // this may move a later record into the slot, so look at it again
+                delete(entry);
+                removedCount++;
+            } else {
+                entry++;
+            }
+        }
+    }
+
+    /**
+     * A 64 bit hash of some of a row's columns, the same in every run. A missing value and an empty one hash
+     * alike since the CSV output can't tell them apart.
+     */
+    public static long hash(String[] row, int[] columns) {
+        long h = FNV_OFFSET;
+        for (int column : columns) {
+            h = mix(h, row[column]);
+        }
+        return finish(h);
+    }
+
+    /**
+     * A 64 bit hash of every column of a row, the same in every run.
+     */
+    public static long hash(String[] row) {
+        long h = FNV_OFFSET;
+        for (String value : row) {
+            h = mix(h, value);
+        }
+        return finish(h);
+    }
+
+    /**
+     * 48 bits of the hash of the whole row under 16 bits of the hash of its license, so that a change of license
+     * can be told apart from any other change.
+     */
+    public static long fingerprint(String[] row) {
+        long license = finish(mix(FNV_OFFSET, row[DwcRecordMapper.LICENSE]));
+        return (license << LICENSE_SHIFT) | (hash(row) & CONTENT_BITS);
+    }
+
+    /**
+     * The key columns' values, tab separated.
+     */
+    public static String keyText(String[] row, int[] columns) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                text.append('\t');
+            }
+            String value = row[columns[i]];
+            text.append(value == null ? "" : value);
+        }
+        return text.toString();
+    }
+
+    private static long mix(long h, String value) {
+        if (value == null || value.isEmpty()) {
+            return (h ^ NULL_MARKER) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // keeps ("ab", "c") apart from ("a", "bc")
+        return (h ^ value.length()) * FNV_PRIME;
+    }
+
+    /**
+     * The murmur3 finaliser, so that the low bits used to pick a slot depend on every input character.
+     */
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Each key text is its length as two bytes followed by that many bytes of UTF-8.
+     */
+    private long appendKeyText(String keyText) throws IOException {
+        if (keysOut == null || keyText == null) {
+            return NO_KEY_TEXT;
+        }
+        byte[] bytes = keyText.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_TEXT_BYTES) {
+            log.warn("Key {}... is too long to keep, its removal won't be reported", keyText.substring(0, 40));
+            return NO_KEY_TEXT;
+        }
+        long offset = keysLength;
+        keysOut.writeShort(bytes.length);
+        keysOut.write(bytes);
+        keysLength += 2 + bytes.length;
+        return offset;
+    }
+
+    private String readKeyText(long offset) throws IOException {
+        if (offset == NO_KEY_TEXT || keysFile == null) {
+            return null;
+        }
+        if (keysIn == null) {
+            keysIn = new RandomAccessFile(keysFile.toFile(), "r");
+        }
+        keysIn.seek(offset);
+        byte[] bytes = new byte[keysIn.readUnsignedShort()];
+        keysIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void insert(long key, long fingerprint, long keyOffset) throws IOException {
+        int entry = find(key);
+        if (table.get(entry, KEY) == 0) {
+            put(entry, key, fingerprint, keyOffset);
+            growIfFull();
+        }
+    }
+
+    private int find(long key) {
+        int entry = (int) key & mask;
+        while (table.get(entry, KEY) != 0 && table.get(entry, KEY) != key) {
+            entry = (entry + 1) & mask;
+        }
+        return entry;
+    }
+
+    private void put(int entry, long key, long fingerprint, long keyOffset) {
+        table.set(entry, KEY, key);
+        table.set(entry, FINGERPRINT, fingerprint);
+        table.set(entry, KEY_OFFSET, keyOffset);
+        size++;
+    }
+
+    /**
+     * Empties a slot, moving back every record after it that could no longer be found from its home slot.
+     */
+    private void delete(int entry) {
+        int hole = entry;
+        for (int next = (hole + 1) & mask; table.get(next, KEY) != 0; next = (next + 1) & mask) {
+            int home = (int) table.get(next, KEY) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table.copy(next, table, hole);
+                setSeen(hole, isSeen(next));
+                hole = next;
+            }
+        }
+        table.set(hole, KEY, 0);
+        setSeen(hole, false);
+        size--;
+    }
+
+    private boolean isSeen(int entry) {
+        return (seen[entry >>> 6] & (1L << entry)) != 0;
+    }
+
+    private void setSeen(int entry, boolean value) {
+        if (value) {
+            seen[entry >>> 6] |= 1L << entry;
+        } else {
+            seen[entry >>> 6] &= ~(1L << entry);
+        }
+    }
+
+    private void growIfFull() throws IOException {
+        if (size > (mask + 1) / 4 * 3 && mask + 1 < MAX_CAPACITY) {
+            grow();
+        }
+    }
+
+    private void grow() throws IOException {
+        Table oldTable = table;
+        long[] oldSeen = seen;
+        int oldCapacity = mask + 1;
+        log.info("The record index holds {} records, doubling it to {} slots", size, oldCapacity * 2);
+        allocate(oldCapacity * 2);
+        for (int entry = 0; entry < oldCapacity; entry++) {
+            long key = oldTable.get(entry, KEY);
+            if (key != 0) {
+                int to = find(key);
+                oldTable.copy(entry, table, to);
+                if ((oldSeen[entry >>> 6] & (1L << entry)) != 0) {
+                    setSeen(to, true);
+                }
+            }
+        }
+    }
+
+    private void allocate(int capacity) throws IOException {
+        table = new Table(scratchDir, capacity);
+        seen = new long[Math.max(1, capacity / 64)];
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(long expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity / 4 * 3 <= expected) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * The slots, mapped from a scratch file in segments as no one mapping can be over 2 GB. The file is deleted as
+     * soon as it is mapped, and the OS takes its pages back once the table has been collected. A new file reads as
+     * zeros, so every slot starts out empty.
+     */
+    private static final class Table {
+        private static final int SEGMENT_SHIFT = 20;
+        private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+        private final LongBuffer[] segments;
+
+        Table(Path dir, int capacity) throws IOException {
+            int entriesPerSegment = Math.min(capacity, 1 << SEGMENT_SHIFT);
+            long segmentBytes = (long) entriesPerSegment * STRIDE * Long.BYTES;
+            segments = new LongBuffer[capacity / entriesPerSegment];
+            Path scratch = Files.createTempFile(dir, "flickrharvester", ".index.tmp");
+            try (FileChannel channel = FileChannel.open(scratch, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                for (int i = 0; i < segments.length; i++) {
+                    segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes, segmentBytes)
+                            .order(ByteOrder.nativeOrder()).asLongBuffer();
+                }
+            }
+        }
+
+        long get(int entry, int field) {
+            return segments[entry >>> SEGMENT_SHIFT].get((entry & SEGMENT_MASK) * STRIDE + field);
+        }
+
+        void set(int entry, int field, long value) {
+            segments[entry >>> SEGMENT_SHIFT].put((entry & SEGMENT_MASK) * STRIDE + field, value);
+        }
+
+        void copy(int entry, Table to, int toEntry) {
+            for (int field = 0; field < STRIDE; field++) {
+                to.set(toEntry, field, get(entry, field));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface RemovalListener {
+        void removed(String keyText) throws IOException;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (keysOut != null) {
+            keysOut.close();
+        }
+        if (keysIn != null) {
+            keysIn.close();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getNewCount() {
+        return newCount;
+    }
+
+    @Override
+    public long getChangedCount() {
+        return changedCount;
+    }
+
+    @Override
+    public long getRelicensedCount() {
+        return relicensedCount;
+    }
+
+    @Override
+    public long getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public long getRemovedCount() {
+        return removedCount;
+    }
+}
@@ -0,0 +1,21 @@
+package au.org.ala.flickrharvester;
+
+/**
+ * JMX view of the {@link RecordIndex} of the running harvest.
+ */
+public interface RecordIndexMBean {
+
+    long getSize();
+
+    long getNewCount();
+
+    long getChangedCount();
+
+    long getRelicensedCount();
+
+    long getUnchangedCount();
+
+    long getDuplicateCount();
+
+    long getRemovedCount();
+}
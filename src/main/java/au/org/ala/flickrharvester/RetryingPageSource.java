@@ -0,0 +1,102 @@
+package au.org.ala.flickrharvester;
+
+import java.util.PriorityQueue;
+
+/**
+ * Hands out the pages of another source along with the pages that failed and are due to be tried again. It keeps
+ * count of the pages handed out that aren't finished with, and only runs dry once the source has, nothing is
+ * waiting to be retried and every page handed out has been reported {@link #done}, so a harvest ends as soon as its
+ * last page is through without any timeout.
+ * <p>
+ * A thread that comes back while the failed pages are backing off goes on to the source's fresh pages, so the fetch
+ * threads keep busy through a backoff, and only waits for a retry once the source has run dry. When the source
+ * {@link PageSource#mayBlock may block} until more work turns up, one thread at a time waits for the retries instead
+ * of asking it, so a failed page can't be stranded behind the others.
+ */
+public class RetryingPageSource implements PageSource {
+
+    private final PageSource pages;
+    private final PriorityQueue<Retry> retries = new PriorityQueue<>();
+    private int inFlight;
+    private boolean exhausted;
+    /** Threads waiting for a retry to be due */
+    private int waiting;
+
+    public RetryingPageSource(PageSource pages) {
+        this.pages = pages;
+    }
+
+    @Override
+    public FlickrRequest next() throws InterruptedException {
+        while (true) {
+            synchronized (this) {
+                while (true) {
+                    Retry retry = retries.peek();
+                    long now = System.currentTimeMillis();
+                    if (retry != null && retry.due <= now) {
+                        return retries.poll().request;
+                    } else if (!exhausted && (retry == null || !pages.mayBlock() || waiting > 0)) {
+                        break;
+                    } else if (retry != null) {
+                        waiting++;
+                        try {
+                            wait(retry.due - now);
+                        } finally {
+                            waiting--;
+                        }
+                    } else if (inFlight == 0) {
+                        return null;
+                    } else {
+                        wait();
+                    }
+                }
+            }
+            FlickrRequest request = pages.next();
+            synchronized (this) {
+                if (request != null) {
+                    inFlight++;
+                    return request;
+                }
+                exhausted = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Hands the page out again once the delay is up. It stays in flight until then.
+     */
+    public synchronized void retry(FlickrRequest request, long delayMillis) {
+        retries.add(new Retry(request.nextAttempt(), System.currentTimeMillis() + delayMillis));
+        notifyAll();
+    }
+
+    /**
+     * The page has been handed on, skipped or given up on.
+     */
+    public synchronized void done(FlickrRequest request) {
+        inFlight--;
+        notifyAll();
+    }
+
+    @Override
+    public void gaveUp(FlickrRequest request) {
+        pages.gaveUp(request);
+        done(request);
+    }
+
+    private static final class Retry implements Comparable<Retry> {
+        final FlickrRequest request;
+        final long due;
+
+        Retry(FlickrRequest request, long due) {
+            this.request = request;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(Retry other) {
+            return Long.compare(due, other.due);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package au.org.ala.flickrharvester;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Combines the shards the workers of a distributed harvest wrote into a single output file. A shard of
+ * {@code flickr.dwc.csv} written by worker {@code w1} is {@code flickr.dwc.shard-w1.csv}.
+ */
+public class ShardMerger {
+    private static final Logger log = LoggerFactory.getLogger(ShardMerger.class);
+
+    private static final String SHARD_MARKER = ".shard-";
+    private static final int ROWS_PER_BATCH = 1000;
+
+    private final OutputFormat format;
+    private final RecordIndex index;
+    private final int[] keyColumns;
+
+    public ShardMerger(OutputFormat format) {
+        this(format, null, null);
+    }
+
+    /**
+     * @param index drops the rows several workers harvested, or null to merge them all
+     */
+    public ShardMerger(OutputFormat format, RecordIndex index, int[] keyColumns) {
+        this.format = format;
+        this.index = index;
+        this.keyColumns = keyColumns;
+    }
+
+    public static Path shardPath(Path output, OutputFormat format, String workerId) {
+        return output.resolveSibling(format.baseName(output) + SHARD_MARKER + workerId + format.suffix);
+    }
+
+    /**
+     * @return the shards of the output in its directory, in name order
+     */
+    public List<Path> shards(Path output) throws IOException {
+        List<Path> shards = new ArrayList<>();
+        Path dir = output.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, format.baseName(output) + SHARD_MARKER + "*" + format.suffix)) {
+            stream.forEach(shards::add);
+        }
+        Collections.sort(shards);
+        return shards;
+    }
+
+    /**
+     * Writes the rows of every shard to the output, replacing it.
+     *
+     * @return the number of rows merged
+     */
+    public long merge(List<Path> shards, Path output) throws IOException {
+        Files.deleteIfExists(output);
+        Path ledgerPath = output.resolveSibling(output.getFileName() + ".ledger");
+        try (PageLedger ledger = PageLedger.open(ledgerPath, false);
+             OutputSink sink = deduplicate(format.open(output, Config.CSV_FIELD_LIST, ledger))) {
+            for (Path shard : shards) {
+                String key = shard.getFileName().toString();
+                List<String[]> batch = new ArrayList<>(ROWS_PER_BATCH);
+                if (format == OutputFormat.AVRO) {
+                    readAvro(shard, batch, sink, key);
+                } else {
+                    readCsv(shard, batch, sink, key);
+                }
+                sink.write(key, batch);
+                log.info("Merged shard {}", shard);
+            }
+            sink.checkpoint();
+            log.info("Merged {} shards into {} with {} rows", shards.size(), output, sink.getRowCount());
+            return sink.getRowCount();
+        } finally {
+            Files.deleteIfExists(ledgerPath);
+        }
+    }
+
+    private OutputSink deduplicate(OutputSink sink) {
+        return index == null ? sink : new DeduplicatingSink(sink, index, keyColumns);
+    }
+
+    private void readCsv(Path shard, List<String[]> batch, OutputSink sink, String key) throws IOException {
+        InputStream in = Files.newInputStream(shard);
+        if (format == OutputFormat.GZIP) {
+            in = new GZIPInputStream(in);
+        } else if (format == OutputFormat.ZSTD) {
+            in = new ZstdInputStream(in);
+        }
+        try (CSVParser parser = new CSVParser(new InputStreamReader(in, StandardCharsets.UTF_8), CsvOutputWriter.CSV_FORMAT.withSkipHeaderRecord().withHeader())) {
+            for (CSVRecord record : parser) {
+                String[] row = new String[record.size()];
+                for (int i = 0; i < row.length; i++) {
+                    // the writer has no way to tell an empty term from a missing one, treat both as missing
+                    row[i] = record.get(i).isEmpty() ? null : record.get(i);
+                }
+                add(batch, row, sink, key);
+            }
+        }
+    }
+
+    private void readAvro(Path shard, List<String[]> batch, OutputSink sink, String key) throws IOException {
+        try (DataFileReader<GenericRecord> reader = new DataFileReader<>(shard.toFile(), new GenericDatumReader<>())) {
+            GenericRecord record = null;
+            while (reader.hasNext()) {
+                record = reader.next(record);
+                String[] row = new String[record.getSchema().getFields().size()];
+                for (int i = 0; i < row.length; i++) {
+                    Object value = record.get(i);
+                    row[i] = value == null ? null : value.toString();
+                }
+                add(batch, row, sink, key);
+            }
+        }
+    }
+
+    private static void add(List<String[]> batch, String[] row, OutputSink sink, String key) throws IOException {
+        batch.add(row);
+        if (batch.size() == ROWS_PER_BATCH) {
+            sink.write(key, batch);
+            batch.clear();
+        }
+    }
+}
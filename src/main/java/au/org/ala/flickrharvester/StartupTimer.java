@@ -0,0 +1,76 @@
+package au.org.ala.flickrharvester;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time goes between a run starting and its first row being written. The run marks the end of each step
+ * of its setup as it goes, and the sink it writes to is watched for the first row, so that a short harvest can tell
+ * how much of its wall time went on getting started.
+ */
+public class StartupTimer {
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private long lastNanos = startNanos;
+    private volatile long firstRowNanos = -1;
+
+    /**
+     * Marks the end of a step, which took the time since the end of the one before.
+     */
+    public synchronized void phase(String name) {
+        long now = System.nanoTime();
+        phases.merge(name, now - lastNanos, Long::sum);
+        lastNanos = now;
+    }
+
+    /**
+     * @return the sink, noting when the first row goes through it
+     */
+    public OutputSink watch(OutputSink sink) {
+        return new OutputSink() {
+            @Override
+            public void write(String key, List<String[]> rows) throws IOException {
+                if (firstRowNanos < 0 && !rows.isEmpty()) {
+                    firstRowNanos = System.nanoTime();
+                }
+                sink.write(key, rows);
+            }
+
+            @Override
+            public void checkpoint() throws IOException {
+                sink.checkpoint();
+            }
+
+            @Override
+            public long getRowCount() {
+                return sink.getRowCount();
+            }
+
+            @Override
+            public void close() throws IOException {
+                sink.close();
+            }
+        };
+    }
+
+    /**
+     * @return how long after the start the first row was handed to the sink, or -1 if none has been yet
+     */
+    public long getTimeToFirstRowMillis() {
+        long firstRow = firstRowNanos;
+        return firstRow < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstRow - startNanos);
+    }
+
+    /**
+     * One line with each step's time, for the log.
+     */
+    public synchronized String breakdown() {
+        StringBuilder text = new StringBuilder("Startup:");
+        phases.forEach((name, nanos) -> text.append(' ').append(name).append(' ').append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms,"));
+        long firstRow = getTimeToFirstRowMillis();
+        return text.append(firstRow < 0 ? " no rows written" : " first row after " + firstRow + " ms").toString();
+    }
+}
@@ -0,0 +1,172 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a harvest into upload date windows small enough that Flickr pages through each of them reliably.
+ * photos.search stops returning new photos a few thousand results into a query, so any window holding more
+ * than {@code maxWindowResults} photos is halved until it doesn't, and the pages of every window can then be
+ * fetched in any order by any thread.
+ * <p>
+ * Windows are in whole seconds and inclusive at both ends, as Flickr treats min_upload_date and max_upload_date.
+ * The plan is saved next to the output so that {@code --resume} carries on with the same windows, and therefore
+ * the same ledger keys, even if photos have been uploaded since.
+ */
+public class UploadDatePartitioner {
+    private static final Logger log = LoggerFactory.getLogger(UploadDatePartitioner.class);
+
+    /** Nothing was uploaded to Flickr before it opened */
+    static final long FLICKR_EPOCH_SECONDS = 1072915200L;
+
+    /**
+     * How many photos a search would return.
+     */
+    interface ResultCounter {
+        int count(FlickrRequest request) throws FlickrException;
+    }
+
+    private final ResultCounter counter;
+    private final int maxWindowResults;
+    private final int threads;
+
+    public UploadDatePartitioner(FlickrClient flickr, int maxWindowResults, int threads) {
+        this(request -> flickr.getPhotos(request).getTotal(), maxWindowResults, threads);
+    }
+
+    UploadDatePartitioner(ResultCounter counter, int maxWindowResults, int threads) {
+        this.counter = counter;
+        this.maxWindowResults = maxWindowResults;
+        this.threads = threads;
+    }
+
+    /**
+     * An upload date range and how many photos fell in it when it was counted.
+     */
+    public static final class Window {
+        public final long fromSeconds;
+        public final long toSeconds;
+        public final int total;
+
+        public Window(long fromSeconds, long toSeconds, int total) {
+            this.fromSeconds = fromSeconds;
+            this.toSeconds = toSeconds;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Counts the query's photos between the two dates, probing a level of windows at a time in parallel.
+     *
+     * @param from earliest upload date, or null for when Flickr opened
+     * @param to   latest upload date, or null for now
+     * @return the non-empty windows in upload date order
+     */
+    public List<Window> partition(FlickrRequest query, Date from, Date to) throws FlickrException, InterruptedException {
+        long fromSeconds = from == null ? FLICKR_EPOCH_SECONDS : from.getTime() / 1000;
+        long toSeconds = (to == null ? System.currentTimeMillis() : to.getTime()) / 1000;
+        List<Window> windows = new ArrayList<>();
+        List<long[]> level = new ArrayList<>();
+        level.add(new long[]{fromSeconds, toSeconds});
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new StageThreadFactory("partition", StageThreadFactory.IO_STACK_SIZE));
+        try {
+            while (!level.isEmpty()) {
+                List<Callable<Window>> probes = new ArrayList<>(level.size());
+                for (long[] range : level) {
+                    probes.add(() -> new Window(range[0], range[1], counter.count(probe(query, range[0], range[1]))));
+                }
+                List<long[]> next = new ArrayList<>();
+                for (Future<Window> future : executor.invokeAll(probes)) {
+                    Window window = get(future);
+                    if (window.total <= maxWindowResults || window.fromSeconds == window.toSeconds) {
+                        if (window.total > maxWindowResults) {
+                            log.warn("{} photos were uploaded in the second {}, not all of them may be harvested", window.total, window.fromSeconds);
+                        }
+                        if (window.total > 0) {
+                            windows.add(window);
+                        }
+                    } else {
+                        long middle = window.fromSeconds + (window.toSeconds - window.fromSeconds) / 2;
+                        next.add(new long[]{window.fromSeconds, middle});
+                        next.add(new long[]{middle + 1, window.toSeconds});
+                    }
+                }
+                level = next;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        windows.sort((a, b) -> Long.compare(a.fromSeconds, b.fromSeconds));
+        log.info("Partitioned the harvest into {} upload date windows", windows.size());
+        return windows;
+    }
+
+    private static Window get(Future<Window> future) throws FlickrException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FlickrException) {
+                throw (FlickrException) e.getCause();
+            }
+            throw new IllegalStateException("Counting an upload date window failed", e.getCause());
+        }
+    }
+
+    private static FlickrRequest probe(FlickrRequest query, long fromSeconds, long toSeconds) {
+        return new FlickrRequest(query.groupId, query.userId, query.tags, query.extras, 1, 1, null, null,
+                FlickrRequest.RequestType.PHOTO_SEARCH, new Date(fromSeconds * 1000), new Date(toSeconds * 1000), query.minUpdateDate);
+    }
+
+    /**
+     * @return a search request for every page of every window
+     */
+    public static List<FlickrRequest> requests(FlickrRequest query, List<Window> windows) {
+        List<FlickrRequest> requests = new ArrayList<>();
+        for (Window window : windows) {
+            FlickrRequest windowQuery = query.forUploadWindow(new Date(window.fromSeconds * 1000), new Date(window.toSeconds * 1000));
+            int pages = (window.total + query.perPage - 1) / query.perPage;
+            for (int page = 1; page <= pages; page++) {
+                requests.add(windowQuery.forPage(page));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * One {@code <from> <to> <total>} line per window.
+     */
+    public static void savePlan(Path file, List<Window> windows) throws IOException {
+        List<String> lines = new ArrayList<>(windows.size());
+        windows.forEach(window -> lines.add(window.fromSeconds + " " + window.toSeconds + " " + window.total));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static List<Window> loadPlan(Path file) throws IOException {
+        List<Window> windows = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.split(" ");
+            if (parts.length == 3) {
+                windows.add(new Window(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2])));
+            }
+        }
+        return windows;
+    }
+}
@@ -0,0 +1,47 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link AvroOutputWriter}.
+ */
+public class AvroOutputWriterTest extends TestCase {
+
+    public void testAppendsAcrossRunsAndKeepsTermNames() throws Exception {
+        Path dir = Files.createTempDirectory("avro");
+        Path output = dir.resolve("out.avro");
+        Path ledgerFile = dir.resolve("out.avro.ledger");
+        List<String> header = Arrays.asList("occurrenceID", "dcterms:accessRights");
+
+        try (PageLedger ledger = PageLedger.open(ledgerFile, false);
+             AvroOutputWriter writer = new AvroOutputWriter(output, header, ledger)) {
+            writer.write("1", Arrays.asList(new String[]{"a", "CC-BY"}, new String[]{"b", null}));
+        }
+        try (PageLedger ledger = PageLedger.open(ledgerFile, true)) {
+            assertTrue(ledger.isWritten("1"));
+            assertEquals(Files.size(output), ledger.getCommittedOffset());
+            try (AvroOutputWriter writer = new AvroOutputWriter(output, header, ledger)) {
+                writer.write("2", Collections.singletonList(new String[]{"c", "CC-BY"}));
+            }
+        }
+
+        List<String> rows = new ArrayList<>();
+        try (DataFileReader<GenericRecord> reader = new DataFileReader<>(output.toFile(), new GenericDatumReader<>())) {
+            assertEquals("dcterms:accessRights", reader.getSchema().getField("dcterms_accessRights").getProp(AvroOutputWriter.TERM_PROPERTY));
+            for (GenericRecord record : reader) {
+                rows.add(record.get(0) + "," + record.get(1));
+            }
+        }
+        assertEquals(Arrays.asList("a,CC-BY", "b,null", "c,CC-BY"), rows);
+    }
+}
@@ -0,0 +1,70 @@
+package au.org.ala.flickrharvester;
+
+import com.github.luben.zstd.ZstdInputStream;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit tests for {@link CsvOutputWriter}.
+ */
+public class CsvOutputWriterTest extends TestCase {
+
+    public void testHeaderOnceAndPagesCommittedAtCheckpoints() throws Exception {
+        Path dir = Files.createTempDirectory("writer");
+        Path output = dir.resolve("out.csv");
+        Path ledgerFile = dir.resolve("out.csv.ledger");
+
+        try (PageLedger ledger = PageLedger.open(ledgerFile, false)) {
+            // a tiny buffer so rows spill to the file before the checkpoint
+            CsvOutputWriter writer = new CsvOutputWriter(output, Arrays.asList("a", "b"), ledger, CsvOutputWriter.Compression.NONE, 8, Long.MAX_VALUE);
+            writer.write("1", Arrays.asList(new String[]{"1", "one"}, new String[]{"2", "two, \"too\""}));
+            writer.write("2", Collections.emptyList());
+            assertFalse(ledger.isWritten("1"));
+            writer.checkpoint();
+            assertTrue(ledger.isWritten("1"));
+            assertTrue(ledger.isWritten("2"));
+            assertEquals(Files.size(output), ledger.getCommittedOffset());
+            writer.close();
+        }
+        try (PageLedger ledger = PageLedger.open(ledgerFile, true);
+             CsvOutputWriter writer = new CsvOutputWriter(output, Arrays.asList("a", "b"), ledger)) {
+            writer.write("3", Collections.singletonList(new String[]{"3", "ünï"}));
+        }
+
+        assertEquals("a,b\r\n1,one\r\n2,\"two, \"\"too\"\"\"\r\n3,ünï\r\n", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+    }
+
+    public void testCompressedOutputSurvivesResume() throws Exception {
+        for (CsvOutputWriter.Compression compression : new CsvOutputWriter.Compression[]{CsvOutputWriter.Compression.GZIP, CsvOutputWriter.Compression.ZSTD}) {
+            Path dir = Files.createTempDirectory("writer");
+            Path output = dir.resolve("out.csv");
+            Path ledgerFile = dir.resolve("out.csv.ledger");
+
+            try (PageLedger ledger = PageLedger.open(ledgerFile, false);
+                 CsvOutputWriter writer = new CsvOutputWriter(output, Arrays.asList("a", "b"), ledger, compression)) {
+                writer.write("1", Collections.singletonList(new String[]{"1", "one"}));
+            }
+            // bytes of a member that was never committed, as if the JVM died before the checkpoint
+            Files.write(output, new byte[]{31, -117, 8, 0, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+            try (PageLedger ledger = PageLedger.open(ledgerFile, true)) {
+                ledger.truncateToCommitted(output);
+                try (CsvOutputWriter writer = new CsvOutputWriter(output, Arrays.asList("a", "b"), ledger, compression)) {
+                    writer.write("2", Collections.singletonList(new String[]{"2", "two"}));
+                }
+            }
+
+            try (InputStream in = compression == CsvOutputWriter.Compression.GZIP
+                    ? new GZIPInputStream(Files.newInputStream(output)) : new ZstdInputStream(Files.newInputStream(output))) {
+                assertEquals(compression.name(), "a,b\r\n1,one\r\n2,two\r\n", IOUtils.toString(in, StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
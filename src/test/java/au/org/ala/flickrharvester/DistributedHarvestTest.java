@@ -0,0 +1,140 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.licenses.License;
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A coordinator and several workers sharing an embedded broker, against a Flickr that hands out synthetic pages.
+ */
+public class DistributedHarvestTest extends TestCase {
+    private static final int PAGES = 20;
+    private static final int PER_PAGE = 10;
+    private static final int WORKERS = 3;
+
+    private BrokerService broker;
+
+    @Override
+    protected void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("distributed-harvest-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    private static ActiveMQConnectionFactory connectionFactory() {
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://distributed-harvest-test?create=false");
+        connectionFactory.setTrustAllPackages(true);
+        return connectionFactory;
+    }
+
+    public void testWorkersShareThePagesAndShardsMerge() throws Exception {
+        Config config = new Config("default-config.properties");
+        Path dir = Files.createTempDirectory("distributed");
+        Path output = dir.resolve("flickr.dwc.csv");
+        FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH);
+        List<FlickrRequest> pages = new ArrayList<>();
+        for (int page = 1; page <= PAGES; page++) {
+            pages.add(query.forPage(page));
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < WORKERS; i++) {
+            Path shard = ShardMerger.shardPath(output, OutputFormat.CSV, "w" + i);
+            SyntheticFlickr flickr = new SyntheticFlickr(config);
+            MetadataCache metadata = new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+            HarvestWorker worker = new HarvestWorker(config, flickr, metadata, null, null, HeapBudget.unbounded(), connectionFactory(), OutputFormat.CSV, shard,
+                    HarvestState.load(dir.resolve("state.w" + i)), false);
+            running.add(workers.submit(() -> {
+                worker.run(2, 1, 4);
+                return null;
+            }));
+        }
+        try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false)) {
+            assertTrue(new HarvestCoordinator(connectionFactory(), ledger).run(pages, TimeUnit.SECONDS.toMillis(30)));
+            for (FlickrRequest page : pages) {
+                assertTrue(ledger.isWritten(page.key()));
+            }
+        }
+        for (Future<?> worker : running) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        workers.shutdown();
+
+        ShardMerger merger = new ShardMerger(OutputFormat.CSV);
+        List<Path> shards = merger.shards(output);
+        assertEquals(WORKERS, shards.size());
+        assertEquals(PAGES * PER_PAGE, merger.merge(shards, output));
+
+        List<String> lines = Files.readAllLines(output, StandardCharsets.UTF_8);
+        assertEquals(String.join(",", Config.CSV_FIELD_LIST), lines.get(0));
+        Set<String> rows = new HashSet<>(lines.subList(1, lines.size()));
+        assertEquals("every photo exactly once", PAGES * PER_PAGE, rows.size());
+    }
+
+    /**
+     * Pages of synthetic photos, slow enough that every worker gets some.
+     */
+    private static final class SyntheticFlickr extends FlickrClient {
+
+        SyntheticFlickr(Config config) {
+            super(config, new RateLimiter(1000.0, 1000));
+        }
+
+        @Override
+        public PhotoList<Photo> getPhotos(FlickrRequest request) {
+            PhotoList<Photo> photos = new PhotoList<>();
+            photos.setPage(request.page);
+            photos.setPerPage(request.perPage);
+            photos.setTotal(PAGES * PER_PAGE);
+            photos.setPages(PAGES);
+            for (int i = 0; i < request.perPage; i++) {
+                photos.add(SyntheticPhotos.photo(request.page * 1000L + i));
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return photos;
+        }
+
+        @Override
+        public Collection<License> getLicenses() {
+            List<License> licenses = new ArrayList<>();
+            for (Map.Entry<String, String> entry : SyntheticPhotos.LICENSES.entrySet()) {
+                License license = new License();
+                license.setId(entry.getKey());
+                license.setName(entry.getValue());
+                licenses.add(license);
+            }
+            return licenses;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import junit.framework.TestCase;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link DwcRecordMapper}.
+ */
+public class DwcRecordMapperTest extends TestCase {
+
+    private static String get(String[] record, String term) {
+        return record[Config.CSV_FIELD_LIST.indexOf(term)];
+    }
+
+    public void testMapsPhotoToColumns() throws Exception {
+        DwcRecordMapper mapper = new DwcRecordMapper(SyntheticPhotos.LICENSES);
+        String[] record = DwcRecordMapper.newRecord();
+        mapper.map(SyntheticPhotos.photo(44), record);
+
+        assertEquals("Image", get(record, "basisOfRecord"));
+        assertEquals("https://www.flickr.com/photos/12345678@N00/44/", get(record, "occurrenceID"));
+        assertEquals("http://www.biodiversitylibrary.org/page/44", get(record, "occurrenceDetails"));
+        assertEquals("Attribution-NonCommercial License", get(record, "license"));
+        assertEquals(get(record, "license"), get(record, "dcterms:accessRights"));
+        assertEquals("Jane Citizen", get(record, "recordedBy"));
+        assertEquals("-35.2809", get(record, "decimalLatitude"));
+        assertEquals("16", get(record, "coordinateUncertaintyInMeters"));
+        assertEquals("Australian Capital Territory", get(record, "stateProvince"));
+        // machine tags are applied last, so geo:country=australia wins over the place name
+        assertEquals("australia", get(record, "country"));
+        // no locality on the photo, so the owner's location stands in
+        assertEquals("Canberra, Australia", get(record, "locality"));
+        // machine tag predicates match terms whatever their case, Flickr lower-cases them
+        assertEquals("Dacelo novaeguineae", get(record, "scientificName"));
+        assertEquals("Laughing Kookaburra", get(record, "vernacularName"));
+        assertNull(get(record, "taxonRank"));
+    }
+
+    public void testRecordIsClearedBetweenPhotos() throws Exception {
+        DwcRecordMapper mapper = new DwcRecordMapper(SyntheticPhotos.LICENSES);
+        String[] record = DwcRecordMapper.newRecord();
+        mapper.map(SyntheticPhotos.photo(1), record);
+
+        Photo bare = SyntheticPhotos.photo(3);
+        bare.setGeoData(null);
+        bare.setDescription(null);
+        bare.setUrl("https://flickr.com/photos/12345678@N00/3/");
+        bare.setTags(java.util.Collections.emptyList());
+        mapper.map(bare, record);
+
+        assertNull(get(record, "decimalLatitude"));
+        assertNull(get(record, "scientificName"));
+        assertEquals("jcitizen", get(record, "recordedBy"));
+        assertEquals("https://www.flickr.com/photos/12345678@N00/3/", get(record, "occurrenceID"));
+        assertEquals(get(record, "occurrenceID"), get(record, "occurrenceDetails"));
+    }
+
+    private static MappingPlan rules(String... lines) throws Exception {
+        Path file = Files.createTempFile("mapping", ".properties");
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return MappingPlan.load(file.toString());
+    }
+
+    public void testRulesFromAMappingFile() throws Exception {
+        MappingPlan plan = rules(
+                "pattern.page=/page/(\\d+)",
+                "pattern.noOwner=@N00 => ",
+                "basisOfRecord=\"StillImage\"",
+                "occurrenceID=description ~ page | url",
+                "userId=owner.id ~ noOwner",
+                "locality=owner.location",
+                "tags=vernacularName",
+                "tag.binomial=scientificName");
+        DwcRecordMapper mapper = new DwcRecordMapper(plan, SyntheticPhotos.LICENSES);
+        String[] record = DwcRecordMapper.newRecord();
+        Photo photo = SyntheticPhotos.photo(44);
+        mapper.map(photo, record);
+
+        assertEquals("StillImage", get(record, "basisOfRecord"));
+        assertEquals("the first group of the match", "44", get(record, "occurrenceID"));
+        assertEquals("12345678", get(record, "userId"));
+        assertEquals("Canberra, Australia", get(record, "locality"));
+        assertEquals("Laughing Kookaburra", get(record, "vernacularName"));
+        assertEquals("Dacelo novaeguineae", get(record, "scientificName"));
+        assertNull("not a tag of these rules", get(record, "country"));
+        assertNull("no rule for it", get(record, "license"));
+
+        photo.setDescription("no page here");
+        mapper.map(photo, record);
+        assertEquals("falls back to the next source", "https://flickr.com/photos/12345678@N00/44", get(record, "occurrenceID"));
+    }
+
+    public void testRulesThatDontCompile() throws Exception {
+        assertRejected("country=nowhere");
+        assertRejected("notATerm=url");
+        assertRejected("locality=url ~ missing");
+        assertRejected("pattern.broken=(", "locality=url ~ broken");
+        assertRejected("occurrenceDetails=$occurrenceID", "occurrenceID=url");
+    }
+
+    private static void assertRejected(String... lines) throws Exception {
+        try {
+            rules(lines);
+            fail(String.join(", ", lines) + " compiled");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
+}
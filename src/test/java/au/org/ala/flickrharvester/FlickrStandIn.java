@@ -0,0 +1,326 @@
+package au.org.ala.flickrharvester;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the Flickr REST API, for harvesting synthetic photos without the network. It serves a group
+ * pool of any number of photos, through photos.search as well with upload dates one second apart so that
+ * {@code --partitioned} has something to split, in JSON or in XML depending on the {@code format} asked for, gzipped
+ * when asked to. Licenses are those of {@link SyntheticPhotos}; any other method fails as unknown.
+ * <p>
+ * Every call waits the given latency before answering, and the given share of page fetches fail with a 503 the way
+ * an overloaded Flickr does. The calls a harvest counts its pages with, those for page 1, never fail.
+ * <p>
+ * Point {@code flickr.baseUrl} at {@link #getBaseUrl()}, or run {@link #main} and point a harvest at it by hand.
+ */
+public class FlickrStandIn implements Closeable {
+    /** The first photo's upload date, later photos were uploaded a second apart */
+    static final long FIRST_UPLOAD_SECONDS = 1494374400L;
+    private static final long FIRST_ID = 30000000000L;
+    private static final int OWNERS = 5000;
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private volatile long photos;
+    private final long latencyMillis;
+    private final double errorRate;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile int failingPage;
+
+    /**
+     * @param port 0 for any free port
+     */
+    public FlickrStandIn(long photos, long latencyMillis, double errorRate, int port) throws IOException {
+        this.photos = photos;
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        // as many threads as requests in flight, they spend the latency asleep
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "flickr-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/services/rest/", this::handle);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/services/rest/";
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Adds photos uploaded after the ones served so far, as new uploads to the pool do.
+     */
+    public void addPhotos(long count) {
+        photos += count;
+    }
+
+    /**
+     * Has every fetch of a page after the first fail from now on, as a page Flickr can't serve does, or 0 for none.
+     */
+    public void failPage(int page) {
+        failingPage = page;
+    }
+
+    /**
+     * Writes the default config pointed at this stand-in, with the rate limit lifted, retries quick and the given
+     * settings on top.
+     */
+    public Path writeConfig(Path file, Map<String, String> settings) throws IOException {
+        Map<String, String> overrides = new LinkedHashMap<>();
+        overrides.put("flickr.baseUrl", getBaseUrl());
+        overrides.put("flickr.rate_limit", "1000000");
+        overrides.put("flickr.rate_burst", "1000");
+        overrides.put("flickr.retry_base_millis", "10");
+        overrides.put("flickr.retry_max_millis", "200");
+        overrides.put("metrics.log_seconds", "0");
+        overrides.putAll(settings);
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get("default-config.properties"), StandardCharsets.UTF_8)) {
+            int equals = line.indexOf('=');
+            if (!line.startsWith("#") && equals > 0 && overrides.containsKey(line.substring(0, equals))) {
+                line = line.substring(0, equals) + "=" + overrides.remove(line.substring(0, equals));
+            }
+            lines.add(line);
+        }
+        overrides.forEach((key, value) -> lines.add(key + "=" + value));
+        return Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            calls.incrementAndGet();
+            Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            String method = parameters.getOrDefault("method", "");
+            boolean json = "json".equals(parameters.get("format"));
+            int page = Integer.parseInt(parameters.getOrDefault("page", "1"));
+            if (method.endsWith(".getPhotos") || method.equals("flickr.photos.search")) {
+                if (page > 1 && (page == failingPage || errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate)) {
+                    failures.incrementAndGet();
+                    byte[] body = "<html><body>Service Unavailable</body></html>".getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(503, body.length);
+                    exchange.getResponseBody().write(body);
+                    return;
+                }
+                long from = 0;
+                long to = photos;
+                if (method.equals("flickr.photos.search")) {
+                    from = clamp(Long.parseLong(parameters.getOrDefault("min_upload_date", "0")) - FIRST_UPLOAD_SECONDS);
+                    to = clamp(Long.parseLong(parameters.getOrDefault("max_upload_date", Long.toString(Long.MAX_VALUE / 2))) - FIRST_UPLOAD_SECONDS + 1);
+                }
+                int perPage = Integer.parseInt(parameters.getOrDefault("per_page", "100"));
+                try (OutputStream out = open(exchange)) {
+                    if (json) {
+                        writeJsonPage(out, from, to, page, perPage);
+                    } else {
+                        writeXmlPage(out, from, to, page, perPage);
+                    }
+                }
+            } else if (method.equals("flickr.photos.licenses.getInfo") && !json) {
+                try (Writer out = new OutputStreamWriter(open(exchange), StandardCharsets.UTF_8)) {
+                    out.write("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\"><licenses>");
+                    for (Map.Entry<String, String> license : SyntheticPhotos.LICENSES.entrySet()) {
+                        out.write("<license id=\"" + license.getKey() + "\" name=\"" + license.getValue() + "\" url=\"\" />");
+                    }
+                    out.write("</licenses></rsp>\n");
+                }
+            } else {
+                try (Writer out = new OutputStreamWriter(open(exchange), StandardCharsets.UTF_8)) {
+                    out.write(json ? "{\"stat\":\"fail\",\"code\":112,\"message\":\"Method \\\"" + method + "\\\" not found\"}"
+                            : "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"fail\"><err code=\"112\" msg=\"Method &quot;" + method
+                            + "&quot; not found\" /></rsp>\n");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private long clamp(long index) {
+        return Math.max(0, Math.min(photos, index));
+    }
+
+    private static OutputStream open(HttpExchange exchange) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        return gzip ? new GZIPOutputStream(exchange.getResponseBody(), 8192) : exchange.getResponseBody();
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(parameter.substring(0, equals), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static void writeJsonPage(OutputStream out, long from, long to, int page, int perPage) throws IOException {
+        long total = to - from;
+        try (JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeObjectFieldStart("photos");
+            json.writeNumberField("page", page);
+            json.writeNumberField("pages", (total + perPage - 1) / perPage);
+            json.writeNumberField("perpage", perPage);
+            json.writeStringField("total", Long.toString(total));
+            json.writeArrayFieldStart("photo");
+            for (long index = from + (long) (page - 1) * perPage; index < Math.min(to, from + (long) page * perPage); index++) {
+                Map<String, String> photo = photo(index);
+                json.writeStartObject();
+                for (Map.Entry<String, String> field : photo.entrySet()) {
+                    if (field.getKey().equals("description")) {
+                        json.writeObjectFieldStart("description");
+                        json.writeStringField("_content", field.getValue());
+                        json.writeEndObject();
+                    } else {
+                        json.writeStringField(field.getKey(), field.getValue());
+                    }
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeStringField("stat", "ok");
+            json.writeEndObject();
+        }
+    }
+
+    private static void writeXmlPage(OutputStream stream, long from, long to, int page, int perPage) throws IOException {
+        long total = to - from;
+        Writer out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        out.write("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n<photos page=\"" + page + "\" pages=\"" + (total + perPage - 1) / perPage
+                + "\" perpage=\"" + perPage + "\" total=\"" + total + "\">\n");
+        for (long index = from + (long) (page - 1) * perPage; index < Math.min(to, from + (long) page * perPage); index++) {
+            Map<String, String> photo = photo(index);
+            out.write("<photo");
+            String description = "";
+            for (Map.Entry<String, String> field : photo.entrySet()) {
+                if (field.getKey().equals("description")) {
+                    description = field.getValue();
+                } else {
+                    out.write(" " + field.getKey() + "=\"" + escape(field.getValue()) + "\"");
+                }
+            }
+            out.write("><description>" + escape(description) + "</description></photo>\n");
+        }
+        out.write("</photos>\n</rsp>\n");
+        out.flush();
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * The photo at an index of the pool, with the extras a harvest asks for.
+     */
+    static Map<String, String> photo(long index) {
+        long id = FIRST_ID + index;
+        long uploaded = FIRST_UPLOAD_SECONDS + index;
+        String owner = String.format("%08d@N00", index % OWNERS);
+        SimpleDateFormat taken = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        taken.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Map<String, String> photo = new LinkedHashMap<>();
+        photo.put("id", Long.toString(id));
+        photo.put("owner", owner);
+        photo.put("secret", "abcdef1234");
+        photo.put("server", "4321");
+        photo.put("farm", "5");
+        photo.put("title", "Kookaburra " + index);
+        photo.put("ispublic", "1");
+        photo.put("license", index % 2 == 0 ? "2" : "4");
+        photo.put("description", "Spotted near the creek crossing, see http://www.biodiversitylibrary.org/page/" + id + " for the plate");
+        photo.put("dateupload", Long.toString(uploaded));
+        photo.put("lastupdate", Long.toString(uploaded + 86400));
+        photo.put("datetaken", taken.format(new Date((uploaded - 86400) * 1000)));
+        photo.put("datetakengranularity", "0");
+        photo.put("ownername", "user" + index % OWNERS);
+        photo.put("originalsecret", "0123456789");
+        photo.put("originalformat", "jpg");
+        photo.put("tags", "kookaburra taxonomy:binomial=dacelonovaeguineae dwc:vernacularname=laughingkookaburra");
+        photo.put("machine_tags", "taxonomy:binomial=dacelonovaeguineae");
+        photo.put("latitude", Double.toString(-35.2809 + index % 1000 / 1000.0));
+        photo.put("longitude", Double.toString(149.13 + index % 1000 / 1000.0));
+        photo.put("accuracy", "16");
+        photo.put("media", "photo");
+        photo.put("url_o", "https://farm5.staticflickr.com/4321/" + id + "_0123456789_o.jpg");
+        photo.put("height_o", "3000");
+        photo.put("width_o", "4000");
+        return photo;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Serves Flickr until killed: {@code FlickrStandIn [photos] [latency millis] [error rate] [port]}.
+     */
+    public static void main(String... args) throws Exception {
+        long photos = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 8089;
+        FlickrStandIn standIn = new FlickrStandIn(photos, latency, errorRate, port);
+        System.out.println("Serving " + photos + " photos on " + standIn.getBaseUrl());
+        Thread.currentThread().join();
+    }
+}
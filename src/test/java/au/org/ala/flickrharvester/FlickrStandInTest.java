@@ -0,0 +1,66 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Whole harvests against a {@link FlickrStandIn}.
+ */
+public class FlickrStandInTest extends TestCase {
+    private static final int PHOTOS = 2500;
+
+    public void testHarvestThroughAnUnreliableFlickr() throws Exception {
+        Path dir = Files.createTempDirectory("stand-in");
+        try (FlickrStandIn flickr = new FlickrStandIn(PHOTOS, 5, 0.3, 0)) {
+            Map<String, String> settings = new HashMap<>();
+            settings.put("flickr.max_attempts", "10");
+            Path config = flickr.writeConfig(dir.resolve("config.properties"), settings);
+            FlickrHarvester.main("-c", config.toString(), "-od", dir + "/", "-sf", dir.resolve("state").toString(), "-e", "inprocess", "-t", "8");
+            assertTrue("some pages failed and were retried", flickr.getFailureCount() > 0);
+        }
+
+        List<String> lines = Files.readAllLines(dir.resolve("flickr.dwc.csv"), StandardCharsets.UTF_8);
+        assertEquals(String.join(",", Config.CSV_FIELD_LIST), lines.get(0));
+        Set<String> rows = new HashSet<>(lines.subList(1, lines.size()));
+        assertEquals("every photo exactly once", PHOTOS, lines.size() - 1);
+        assertEquals(PHOTOS, rows.size());
+        assertFalse(Files.exists(dir.resolve("flickr.dwc.csv" + PageRetrier.DEAD_LETTER_SUFFIX)));
+    }
+
+    public void testXmlPagesAndSearchWindowsForFlickr4Java() throws Exception {
+        Path dir = Files.createTempDirectory("stand-in");
+        try (FlickrStandIn standIn = new FlickrStandIn(PHOTOS, 0, 0, 0)) {
+            Config config = new Config(standIn.writeConfig(dir.resolve("config.properties"),
+                    Collections.singletonMap("flickr.transport", "rest")).toString());
+            FlickrClient flickr = new FlickrClient(config, new RateLimiter(1000.0, 1000));
+            assertEquals(SyntheticPhotos.LICENSES.size(), flickr.getLicenses().size());
+
+            FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, 100, 25, null, null,
+                    FlickrRequest.RequestType.POOL_SEARCH);
+            PhotoList<Photo> photos = flickr.getPhotos(query);
+            assertEquals(PHOTOS, photos.getTotal());
+            assertEquals(25, photos.getPages());
+            assertEquals(100, photos.size());
+            assertEquals("4", photos.get(99).getLicense());
+            assertEquals("Spotted near the creek crossing, see http://www.biodiversitylibrary.org/page/30000002499 for the plate",
+                    photos.get(99).getDescription());
+
+            long from = FlickrStandIn.FIRST_UPLOAD_SECONDS + 1000;
+            FlickrRequest window = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, 100, 1, null, null,
+                    FlickrRequest.RequestType.PHOTO_SEARCH, new java.util.Date(from * 1000), new java.util.Date((from + 149) * 1000), null);
+            assertEquals("both ends of the window count", 150, flickr.getPhotos(window).getTotal());
+            assertEquals(from * 1000, flickr.getPhotos(window).get(0).getDatePosted().getTime());
+        }
+    }
+}
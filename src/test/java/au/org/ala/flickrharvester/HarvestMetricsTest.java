@@ -0,0 +1,74 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link HarvestMetrics} and its {@link LatencyHistogram}.
+ */
+public class HarvestMetricsTest extends TestCase {
+
+    public void testPercentilesComeFromTheBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(700));
+        histogram.record(TimeUnit.SECONDS.toNanos(90));
+        assertEquals(100, histogram.getCount());
+        assertEquals(5, histogram.getPercentileMillis(0.5));
+        assertEquals(1000, histogram.getPercentileMillis(0.99));
+        assertEquals("slower than the last bound", 90000, histogram.getPercentileMillis(1));
+        assertEquals(909.94, histogram.getMeanMillis(), 0.01);
+    }
+
+    public void testProgressAndEtaAreServed() throws Exception {
+        Path dir = Files.createTempDirectory("metrics");
+        RateLimiter rateLimiter = new RateLimiter(100, 10);
+        try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+             HarvestMetrics metrics = new HarvestMetrics(rateLimiter)) {
+            metrics.track(ledger, 4);
+            assertEquals("nothing written yet", -1, metrics.getEtaSeconds());
+
+            ledger.fetched("1");
+            ledger.fetched("2");
+            ledger.written(Arrays.asList("1", "2"), 100);
+            metrics.photosMapped(180);
+            metrics.photosRejected(20);
+            metrics.trackRows(() -> 180);
+            metrics.trackQueue("mapped", () -> 3);
+            metrics.recordCall(HarvestMetrics.Call.PAGE, TimeUnit.MILLISECONDS.toNanos(400));
+            Thread.sleep(20);
+
+            assertEquals(2, metrics.getPagesFetched());
+            assertEquals(2, metrics.getPagesWritten());
+            assertTrue(metrics.getPagesPerMinute() > 0);
+            assertTrue(metrics.getEtaSeconds() >= 0);
+            assertEquals("mapped=3", metrics.getQueueDepths());
+            assertTrue(metrics.summary(), metrics.summary().contains("2 of 4 pages written"));
+
+            metrics.serve(0);
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + metrics.getPort() + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            String page;
+            try (InputStream in = connection.getInputStream(); Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name())) {
+                page = scanner.useDelimiter("\\A").next();
+            }
+            assertTrue(page, page.contains("flickrharvester_pages_planned 4\n"));
+            assertTrue(page, page.contains("flickrharvester_photos_rejected_total 20\n"));
+            assertTrue(page, page.contains("flickrharvester_queue_depth{queue=\"mapped\"} 3\n"));
+            assertTrue(page, page.contains("flickrharvester_flickr_call_seconds_bucket{call=\"page\",le=\"0.5\"} 1\n"));
+            assertTrue(page, page.contains("flickrharvester_flickr_call_seconds_bucket{call=\"page\",le=\"0.25\"} 0\n"));
+            assertTrue(page, page.contains("flickrharvester_flickr_call_seconds_count{call=\"info\"} 0\n"));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.licenses.License;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link HeapBudget}, and for the lazy page lists that keep a large plan off the heap.
+ */
+public class HeapBudgetTest extends TestCase {
+    private static final int PER_PAGE = 10;
+    private static final int PAGES = 30;
+
+    public void testFetchesWaitForRoom() throws Exception {
+        HeapBudget budget = new HeapBudget(1L << 50, 1L << 49);
+        assertEquals(2, budget.getMaxPages());
+        budget.acquire();
+        budget.acquire();
+        Thread third = new Thread(() -> {
+            try {
+                budget.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        third.start();
+        third.join(300);
+        assertTrue("waiting for a page to be written", third.isAlive());
+        budget.release();
+        third.join(1000);
+        assertFalse(third.isAlive());
+        assertEquals(2, budget.getPagesInFlight());
+    }
+
+    public void testLimitHalvesWhenTheHeapIsOverBudget() throws Exception {
+        HeapBudget budget = new HeapBudget(1024, 256);
+        assertEquals(4, budget.getMaxPages());
+        System.gc();
+        budget.acquire();
+        assertEquals("anything left on the heap is over 1KB", 2, budget.getPageLimit());
+        assertEquals(1, budget.getShrinkCount());
+        assertTrue(budget.getLiveHeapBytes() > 1024);
+    }
+
+    public void testPipelineKeepsWithinTheBudget() throws Exception {
+        Config config = new Config("default-config.properties");
+        Path dir = Files.createTempDirectory("budget");
+        FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH);
+        HeapBudget budget = new HeapBudget(3L << 40, 1L << 40);
+        PageFlickr flickr = new PageFlickr(config);
+        MetadataCache metadata = new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+        PageMapper pageMapper = new PageMapper(config, metadata.getLicenses(), HarvestState.load(dir.resolve("state")), flickr.getMetrics());
+        SlowSink sink = new SlowSink(budget);
+        try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+             PageRetrier retrier = new PageRetrier(3, 10, 100, null, flickr.getMetrics())) {
+            new InProcessPipeline(config, flickr, metadata, null, pageMapper, ledger, retrier, sink, budget, 8, 2, 16)
+                    .run(PageSource.pages(query, PAGES));
+        }
+        assertEquals(PAGES * PER_PAGE, sink.getRowCount());
+        assertTrue("in flight " + sink.mostInFlight, sink.mostInFlight <= 3);
+        assertEquals(0, budget.getPagesInFlight());
+        assertTrue("the fetch threads had to wait", budget.getWaitMillis() > 0);
+    }
+
+    public void testPageListsAreMadeAsTheyAreAskedFor() {
+        FlickrRequest query = new FlickrRequest("pool", null, null, null, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH);
+        List<FlickrRequest> pages = PageSource.pages(query, 5000000);
+        assertEquals(5000000, pages.size());
+        assertEquals(4321, pages.get(4320).page);
+
+        List<FlickrRequest> interleaved = PageSource.interleave(Arrays.asList(
+                PageSource.pages(query.forSource("a"), 3), PageSource.pages(query.forSource("b"), 1), PageSource.pages(query.forSource("c"), 2)));
+        List<String> keys = new ArrayList<>();
+        for (FlickrRequest page : interleaved) {
+            keys.add(page.key());
+        }
+        assertEquals(Arrays.asList("a:1", "b:1", "c:1", "a:2", "c:2", "a:3"), keys);
+    }
+
+    /**
+     * Writes slowly, noting the most pages that were ever in flight.
+     */
+    private static final class SlowSink implements OutputSink {
+        private final HeapBudget budget;
+        private long rows;
+        int mostInFlight;
+
+        SlowSink(HeapBudget budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public void write(String key, List<String[]> rows) throws IOException {
+            mostInFlight = Math.max(mostInFlight, budget.getPagesInFlight());
+            this.rows += rows.size();
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public long getRowCount() {
+            return rows;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Pages of synthetic photos, each photo turning up once.
+     */
+    private static final class PageFlickr extends FlickrClient {
+        PageFlickr(Config config) {
+            super(config, new RateLimiter(1000.0, 1000));
+        }
+
+        @Override
+        public PhotoList<Photo> getPhotos(FlickrRequest request) {
+            PhotoList<Photo> photos = new PhotoList<>();
+            photos.setPage(request.page);
+            photos.setPerPage(PER_PAGE);
+            photos.setTotal(PAGES * PER_PAGE);
+            photos.setPages(PAGES);
+            for (int i = 0; i < PER_PAGE; i++) {
+                photos.add(SyntheticPhotos.photo((request.page - 1) * PER_PAGE + i));
+            }
+            return photos;
+        }
+
+        @Override
+        public Collection<License> getLicenses() {
+            List<License> licenses = new ArrayList<>();
+            for (Map.Entry<String, String> entry : SyntheticPhotos.LICENSES.entrySet()) {
+                License license = new License();
+                license.setId(entry.getKey());
+                license.setName(entry.getValue());
+                licenses.add(license);
+            }
+            return licenses;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Incremental harvests against a {@link FlickrStandIn}, one of them with a page Flickr can't serve.
+ */
+public class IncrementalHarvestTest extends TestCase {
+    private static final int PHOTOS = 250;
+    private static final int PER_PAGE = 50;
+
+    public void testHighWaterMarksOnlyMoveOnceEveryPageIsWritten() throws Exception {
+        Path dir = Files.createTempDirectory("incremental");
+        Path stateFile = dir.resolve("flickrharvester.state");
+        try (FlickrStandIn flickr = new FlickrStandIn(PHOTOS, 0, 0, 0)) {
+            String config = flickr.writeConfig(dir.resolve("config.properties"),
+                    Collections.singletonMap("flickr.per_page", Integer.toString(PER_PAGE))).toString();
+            // without a previous state the first run harvests the whole pool
+            assertEquals(PHOTOS, harvest(config, dir));
+            assertEquals(uploaded(PHOTOS - 1), HarvestState.load(stateFile).getPreviousDateUpload());
+
+            // the search from the last upload finds it again, but it isn't newer than the last update so it is left out
+            flickr.addPhotos(PHOTOS);
+            flickr.failPage(3);
+            assertEquals(PHOTOS - PER_PAGE, harvest(config, dir));
+            assertEquals("a page wasn't written", uploaded(PHOTOS - 1), HarvestState.load(stateFile).getPreviousDateUpload());
+
+            flickr.failPage(0);
+            assertEquals("the photos of the failed page are asked for again", PHOTOS, harvest(config, dir));
+            assertEquals(uploaded(2 * PHOTOS - 1), HarvestState.load(stateFile).getPreviousDateUpload());
+
+            assertEquals("nothing new", 0, harvest(config, dir));
+            assertEquals(uploaded(2 * PHOTOS - 1), HarvestState.load(stateFile).getPreviousDateUpload());
+        }
+    }
+
+    private static Date uploaded(int photo) {
+        return new Date((FlickrStandIn.FIRST_UPLOAD_SECONDS + photo) * 1000);
+    }
+
+    /**
+     * @return the rows written to the delta file
+     */
+    private static int harvest(String config, Path dir) throws Exception {
+        FlickrHarvester harvester = new FlickrHarvester(config, dir + "/", "flickr.dwc.delta.csv", true, dir.resolve("flickrharvester.state").toString(),
+                false, FlickrHarvester.Engine.INPROCESS, OutputFormat.CSV, false, false);
+        harvester.run(4, 2);
+        return Files.readAllLines(dir.resolve("flickr.dwc.delta.csv"), StandardCharsets.UTF_8).size() - 1;
+    }
+}
@@ -0,0 +1,63 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import junit.framework.TestCase;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Harvests through the broker and Camel routes of a {@link JmsPipeline}, against a {@link FlickrStandIn}.
+ */
+public class JmsPipelineTest extends TestCase {
+    private static final int PHOTOS = 500;
+    private static final int PER_PAGE = 50;
+
+    public void testAPageThatFailsToMapFailsTheRun() throws Exception {
+        Path dir = Files.createTempDirectory("jms");
+        try (FlickrStandIn standIn = new FlickrStandIn(PHOTOS, 0, 0, 0)) {
+            Config config = new Config(standIn.writeConfig(dir.resolve("config.properties"), Collections.emptyMap()).toString());
+            FlickrClient flickr = new FlickrClient(config, new RateLimiter(1000.0, 1000));
+            MetadataCache metadata = new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+            PageMapper pageMapper = new PageMapper(config, metadata.getLicenses(), HarvestState.load(dir.resolve("state")), flickr.getMetrics()) {
+                @Override
+                public List<String[]> map(FlickrRequest request, PhotoList<Photo> photoList) throws FlickrException {
+                    if (request.page == 3) {
+                        throw new IllegalStateException("Unmappable page");
+                    }
+                    return super.map(request, photoList);
+                }
+            };
+            FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                    FlickrRequest.RequestType.POOL_SEARCH);
+            List<FlickrRequest> pages = PageSource.pages(query, PHOTOS / PER_PAGE);
+            try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+                 PageRetrier retrier = new PageRetrier(3, 10, 100, null, flickr.getMetrics());
+                 OutputSink sink = OutputFormat.CSV.open(dir.resolve("flickr.dwc.csv"), Config.CSV_FIELD_LIST, ledger)) {
+                try {
+                    new JmsPipeline("tcp://localhost:" + freePort()).run(config, flickr, metadata, null, pageMapper, ledger, retrier, sink,
+                            HeapBudget.unbounded(), pages, 4, 2);
+                    fail();
+                } catch (IllegalStateException e) {
+                    assertEquals("Unmappable page", e.getMessage());
+                }
+                sink.checkpoint();
+                for (FlickrRequest page : pages) {
+                    assertEquals("page " + page.key(), page.page != 3, ledger.isWritten(page.key()));
+                }
+            }
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
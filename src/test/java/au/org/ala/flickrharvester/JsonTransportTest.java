@@ -0,0 +1,126 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit tests for {@link JsonTransport}.
+ */
+public class JsonTransportTest extends TestCase {
+
+    private static final String PAGE = "{\"photos\":{\"page\":2,\"pages\":\"7\",\"perpage\":2,\"total\":\"13\",\"photo\":["
+            + "{\"id\":\"34001\",\"owner\":\"12345678@N00\",\"secret\":\"abcdef1234\",\"server\":\"4321\",\"farm\":5,"
+            + "\"title\":\"Kookaburra\",\"ispublic\":1,\"dateadded\":\"1494374400\",\"ownername\":\"jcitizen\","
+            + "\"description\":{\"_content\":\"Spotted near the creek, see http://www.biodiversitylibrary.org/page/34001\"},"
+            + "\"license\":\"4\",\"dateupload\":\"1494374400\",\"lastupdate\":\"1494460800\",\"datetaken\":\"2017-05-09 10:00:00\","
+            + "\"datetakengranularity\":\"0\",\"originalsecret\":\"0123456789\",\"originalformat\":\"jpg\","
+            + "\"tags\":\"kookaburra taxonomy:binomial=dacelonovaeguineae dwc:vernacularname=laughingkookaburra\","
+            + "\"machine_tags\":\"taxonomy:binomial=dacelonovaeguineae\",\"latitude\":-35.2809,\"longitude\":149.13,\"accuracy\":\"16\","
+            + "\"context\":0,\"place_id\":\"abc\",\"woeid\":\"1100968\",\"geo_is_public\":1,\"media\":\"photo\",\"media_status\":\"ready\",\"views\":\"42\","
+            + "\"url_o\":\"https://farm5.staticflickr.com/4321/34001_0123456789_o.jpg\",\"height_o\":\"3000\",\"width_o\":\"4000\"},"
+            + "{\"id\":\"34002\",\"owner\":\"87654321@N00\",\"secret\":\"1234abcdef\",\"server\":\"4321\",\"farm\":5,\"title\":\"\","
+            + "\"ownername\":\"other\",\"description\":{\"_content\":\"\"},\"license\":\"0\",\"tags\":\"\",\"latitude\":0,\"longitude\":0,"
+            + "\"accuracy\":0,\"media\":\"video\"}"
+            + "]},\"stat\":\"ok\"}";
+
+    public void testPhotosAreReadLikeFlickr4JavaReadsThem() throws Exception {
+        PhotoList<Photo> photos = JsonTransport.readPhotos(new ByteArrayInputStream(PAGE.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, photos.getPage());
+        assertEquals(7, photos.getPages());
+        assertEquals(13, photos.getTotal());
+        assertEquals(2, photos.size());
+
+        Photo photo = photos.get(0);
+        assertEquals("https://flickr.com/photos/12345678@N00/34001", photo.getUrl());
+        assertEquals("jcitizen", photo.getOwner().getUsername());
+        assertEquals("4", photo.getLicense());
+        assertEquals(1494374400000L, photo.getDatePosted().getTime());
+        assertEquals(1494460800000L, photo.getLastUpdate().getTime());
+        assertNotNull(photo.getDateTaken());
+        assertEquals("https://farm5.staticflickr.com/4321/34001_0123456789_o.jpg", photo.getOriginalUrl());
+        assertEquals(-35.2809f, photo.getGeoData().getLatitude());
+        assertEquals(16, photo.getGeoData().getAccuracy());
+        assertEquals(3, photo.getTags().size());
+
+        String[] record = DwcRecordMapper.newRecord();
+        new DwcRecordMapper(SyntheticPhotos.LICENSES).map(photo, record);
+        assertEquals("https://www.flickr.com/photos/12345678@N00/34001/", record[DwcRecordMapper.OCCURRENCE_ID]);
+        assertEquals("http://www.biodiversitylibrary.org/page/34001", record[DwcRecordMapper.OCCURRENCE_DETAILS]);
+        assertEquals("laughingkookaburra", record[Config.CSV_FIELD_LIST.indexOf("vernacularName")]);
+
+        Photo video = photos.get(1);
+        assertNull("0,0 is not a location", video.getGeoData());
+        assertTrue(video.getTags().isEmpty());
+        assertEquals("mov", video.getOriginalFormat());
+    }
+
+    public void testFailuresCarryFlickrsCode() throws Exception {
+        String failure = "{\"stat\":\"fail\",\"code\":1,\"message\":\"Group not found\"}";
+        try {
+            JsonTransport.readPhotos(new ByteArrayInputStream(failure.getBytes(StandardCharsets.UTF_8)));
+            fail();
+        } catch (FlickrException e) {
+            assertEquals("1", e.getErrorCode());
+            assertEquals("Group not found", e.getErrorMessage());
+        }
+    }
+
+    public void testGzippedPagesAndThrottlingOverHttp() throws Exception {
+        List<String> queries = new ArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/services/rest/", exchange -> {
+            queries.add(exchange.getRequestURI().getQuery());
+            boolean gzip = "gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            boolean throttle = exchange.getRequestURI().getQuery().contains("page=3");
+            byte[] body = throttle ? "<html>Service Unavailable</html>".getBytes(StandardCharsets.UTF_8)
+                    : gzip ? gzip(PAGE) : PAGE.getBytes(StandardCharsets.UTF_8);
+            if (gzip && !throttle) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(throttle ? 503 : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            JsonTransport transport = new JsonTransport("http://localhost:" + server.getAddress().getPort() + "/services/rest/", "KEY");
+            FlickrRequest request = new FlickrRequest("806927@N20", null, null, new String[]{"license", "geo"}, 2, 2, null, null,
+                    FlickrRequest.RequestType.POOL_SEARCH, null, null, null);
+            assertEquals(2, transport.getPoolPhotos(request).size());
+            assertTrue(queries.get(0), queries.get(0).contains("method=flickr.groups.pools.getPhotos"));
+            assertTrue(queries.get(0), queries.get(0).contains("group_id=806927@N20"));
+            assertTrue(queries.get(0), queries.get(0).contains("extras=license,geo"));
+            assertTrue(queries.get(0), queries.get(0).contains("format=json"));
+
+            try {
+                transport.getPoolPhotos(request.forPage(3));
+                fail();
+            } catch (FlickrException e) {
+                assertTrue(FlickrClient.isThrottled(e));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static byte[] gzip(String text) throws java.io.IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+}
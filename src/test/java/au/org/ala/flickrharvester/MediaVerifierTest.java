@@ -0,0 +1,132 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.Size;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link MediaVerifier}, against a local server standing in for Flickr's static image hosts.
+ */
+public class MediaVerifierTest extends TestCase {
+
+    public void testJpegDimensionsAreReadFromTheFrameHeader() throws Exception {
+        byte[] jpeg = jpeg(120, 80);
+        assertTrue(Arrays.equals(new int[]{120, 80}, MediaVerifier.jpegDimensions(jpeg, jpeg.length)));
+        assertNull(MediaVerifier.jpegDimensions("GIF89a".getBytes(StandardCharsets.US_ASCII), 6));
+        assertNull("cut off before the frame header", MediaVerifier.jpegDimensions(jpeg, 20));
+    }
+
+    public void testMissingImagesFallBackToAnotherSizeOrAreCleared() throws Exception {
+        byte[] large = jpeg(640, 480);
+        byte[] small = jpeg(64, 48);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = path.endsWith("_b.jpg") ? large : path.endsWith("_s.jpg") ? small : null;
+            if (path.endsWith("_gone.jpg")) {
+                exchange.getResponseHeaders().set("Location", "https://s.yimg.com/pw/images/en-us/photo_unavailable.png");
+                exchange.sendResponseHeaders(302, -1);
+            } else if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        Path dir = Files.createTempDirectory("media");
+        Path mediaFile = dir.resolve("flickr.dwc.csv.media");
+        String host = "http://localhost:" + server.getAddress().getPort() + "/4321/";
+        try (MediaVerifier verifier = new MediaVerifier(2, 0, new RateLimiter(1e9, 1 << 20), 1000, 1000, mediaFile, dir.resolve("thumbnails"))) {
+            // the original has gone, the large size is there
+            Photo fallback = photo(1, size(Size.ORIGINAL, host + "1_o.jpg", 4000, 3000), size(Size.LARGE, host + "1_b.jpg", 640, 480), size(Size.SMALL, host + "1_s.jpg", 64, 48));
+            // the chosen size is there but wasn't in the photo list, so its dimensions are read from the image, and its
+            // thumbnail is the same bytes as the first photo's
+            Photo ok = photo(2, size(Size.SMALL, host + "2_s.jpg", 64, 48));
+            Photo gone = photo(3, size(Size.LARGE, host + "3_gone.jpg", 640, 480));
+            List<String[]> rows = Arrays.asList(row(fallback, host + "1_o.jpg"), row(ok, host + "2_b.jpg"), row(gone, host + "3_gone.jpg"));
+            verifier.verify(Arrays.asList(fallback, ok, gone), rows);
+
+            assertEquals(host + "1_b.jpg", rows.get(0)[DwcRecordMapper.ASSOCIATED_MEDIA]);
+            assertEquals(host + "2_b.jpg", rows.get(1)[DwcRecordMapper.ASSOCIATED_MEDIA]);
+            assertNull(rows.get(2)[DwcRecordMapper.ASSOCIATED_MEDIA]);
+            assertEquals(1, verifier.getVerifiedCount());
+            assertEquals(1, verifier.getFallbackCount());
+            assertEquals(1, verifier.getMissingCount());
+            assertEquals(0, verifier.getUncheckedCount());
+            assertEquals("the same thumbnail is stored once", 1, verifier.getThumbnailCount());
+            assertTrue(verifier.getBytesRead() >= large.length + 2 * small.length);
+        } finally {
+            server.stop(0);
+        }
+
+        List<String> lines = Files.readAllLines(mediaFile, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        String[] fallback = lines.get(0).split("\t", -1);
+        assertEquals("1", fallback[0]);
+        assertEquals("FALLBACK", fallback[1]);
+        assertEquals("640", fallback[3]);
+        assertEquals("480", fallback[4]);
+        assertEquals(Integer.toString(large.length), fallback[5]);
+        assertEquals("image/jpeg", fallback[6]);
+        assertTrue(fallback[7], fallback[7].endsWith(".jpg"));
+        assertTrue(Files.exists(dir.resolve("thumbnails").resolve(fallback[7])));
+        String[] ok = lines.get(1).split("\t", -1);
+        assertEquals("OK", ok[1]);
+        assertEquals("640", ok[3]);
+        assertEquals("480", ok[4]);
+        assertEquals(fallback[7], ok[7]);
+        assertEquals("MISSING", lines.get(2).split("\t", -1)[1]);
+    }
+
+    private static Photo photo(long id, Size... sizes) {
+        Photo photo = new Photo();
+        photo.setId(Long.toString(id));
+        photo.setSizes(Arrays.asList(sizes));
+        return photo;
+    }
+
+    private static Size size(int label, String source, int width, int height) {
+        Size size = new Size();
+        size.setLabel(label);
+        size.setSource(source);
+        size.setWidth(width);
+        size.setHeight(height);
+        return size;
+    }
+
+    private static String[] row(Photo photo, String media) {
+        String[] row = DwcRecordMapper.newRecord();
+        row[DwcRecordMapper.OCCURRENCE_ID] = photo.getId();
+        row[DwcRecordMapper.ASSOCIATED_MEDIA] = media;
+        return row;
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bytes);
+        return bytes.toByteArray();
+    }
+}
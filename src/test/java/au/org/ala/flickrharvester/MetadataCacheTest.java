@@ -0,0 +1,111 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.licenses.License;
+import junit.framework.TestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link MetadataCache}.
+ */
+public class MetadataCacheTest extends TestCase {
+
+    public void testPhotoDetailsHaveTheirOwnLimit() throws Exception {
+        Config config = new Config("default-config.properties");
+        MetadataCache cache = new MetadataCache(new CountingFlickr(config), 10, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+        for (int i = 0; i < 500; i++) {
+            cache.putDetails(Integer.toString(i), new MetadataCache.PhotoDetails(i, null, null, null, null, null, null, null, null, null,
+                    System.currentTimeMillis()));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertNotNull("details of photo " + i + " kept past the owner and place limit", cache.getDetails(Integer.toString(i)));
+        }
+    }
+
+    public void testLookupsAreSharedAndPersisted() throws Exception {
+        Config config = new Config("default-config.properties");
+        CountingFlickr flickr = new CountingFlickr(config);
+        Path file = Files.createTempDirectory("metadata").resolve("metadata.cache");
+        MetadataCache cache = new MetadataCache(flickr, 100, TimeUnit.HOURS.toMillis(1), file, true, false);
+
+        assertEquals("CC BY\tsomething", cache.getLicenses().get("4"));
+        cache.getLicenses();
+        assertEquals(1, flickr.licenseCalls);
+
+        PhotoList<Photo> photos = new PhotoList<>();
+        for (int i = 0; i < 5; i++) {
+            Photo photo = new Photo();
+            User owner = new User();
+            owner.setId(i % 2 == 0 ? "alice" : "bob");
+            photo.setOwner(owner);
+            photos.add(photo);
+        }
+        cache.resolve(photos);
+        assertEquals(2, flickr.ownerCalls);
+        assertEquals(3, cache.getOwnerHitCount());
+        assertEquals(2, cache.getOwnerMissCount());
+        assertEquals("Real alice", photos.get(0).getOwner().getRealName());
+        assertNull("bob has no profile", photos.get(1).getOwner().getRealName());
+        cache.putDetails("42", new MetadataCache.PhotoDetails(1234L, new String[]{"dwc:genus=Dacelo", "kookaburra"},
+                "-35.28", "149.13", "16", "Australia", null, null, null, "Canberra", System.currentTimeMillis()));
+        cache.save();
+
+        MetadataCache reloaded = new MetadataCache(flickr, 100, TimeUnit.HOURS.toMillis(1), file, true, false);
+        assertEquals("CC BY\tsomething", reloaded.getLicenses().get("4"));
+        assertEquals("Real alice", reloaded.owner("alice").realName);
+        assertNull(reloaded.owner("bob").realName);
+        MetadataCache.PhotoDetails details = reloaded.getDetails("42");
+        assertEquals(1234L, details.lastUpdate);
+        assertEquals(2, details.tags.length);
+        assertEquals("dwc:genus=Dacelo", details.tags[0]);
+        assertNull(details.region);
+        assertEquals("Canberra", details.ownerLocation);
+        assertEquals(1, flickr.licenseCalls);
+        assertEquals(2, flickr.ownerCalls);
+
+        MetadataCache expired = new MetadataCache(flickr, 100, 0, file, true, false);
+        expired.getLicenses();
+        assertEquals("entries past their TTL are fetched again", 2, flickr.licenseCalls);
+    }
+
+    private static final class CountingFlickr extends FlickrClient {
+        int licenseCalls;
+        int ownerCalls;
+
+        CountingFlickr(Config config) {
+            super(config, new RateLimiter(1000.0, 1000));
+        }
+
+        @Override
+        public Collection<License> getLicenses() {
+            licenseCalls++;
+            List<License> licenses = new ArrayList<>();
+            License license = new License();
+            license.setId("4");
+            license.setName("CC BY\tsomething");
+            licenses.add(license);
+            return licenses;
+        }
+
+        @Override
+        public User getOwner(String userId) throws FlickrException {
+            ownerCalls++;
+            if ("bob".equals(userId)) {
+                throw new FlickrException("1", "User not found");
+            }
+            User user = new User();
+            user.setId(userId);
+            user.setRealName("Real " + userId);
+            return user;
+        }
+    }
+}
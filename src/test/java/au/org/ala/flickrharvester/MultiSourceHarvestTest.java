@@ -0,0 +1,144 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.licenses.License;
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two sources harvested in one run, a group pool and a machine tag search that share some of their photos.
+ */
+public class MultiSourceHarvestTest extends TestCase {
+    private static final int PER_PAGE = 10;
+    /** Photos 0 to 29 are in the pool and 20 to 39 carry the tag, so 20 to 29 are in both */
+    private static final int POOL_PAGES = 3;
+    private static final int SEARCH_PAGES = 2;
+    private static final int SEARCH_FIRST_PHOTO = 20;
+    private static final int PHOTOS = 40;
+
+    public void testPagesOfTheSourcesTakeTurns() {
+        FlickrRequest pool = new FlickrRequest("pool", null, null, null, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH).forSource("birds");
+        FlickrRequest search = new FlickrRequest(null, null, new String[]{"taxonomy:class=amphibia"}, null, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.PHOTO_SEARCH).forSource("frogs");
+        List<FlickrRequest> pages = PageSource.interleave(Arrays.asList(
+                Arrays.asList(pool.forPage(1), pool.forPage(2), pool.forPage(3)),
+                Arrays.asList(search.forPage(1))));
+        List<String> keys = new ArrayList<>();
+        for (FlickrRequest page : pages) {
+            keys.add(page.key());
+        }
+        assertEquals(Arrays.asList("birds:1", "frogs:1", "birds:2", "birds:3"), keys);
+        assertEquals("frogs", FlickrRequest.sourceOf("frogs:1"));
+        assertNull(FlickrRequest.sourceOf("1"));
+        assertEquals("birds:1-2/1", pool.forUploadWindow(new java.util.Date(1000), new java.util.Date(2000)).key());
+    }
+
+    public void testSharedPhotosAreWrittenOnceToSeparateOutputs() throws Exception {
+        Config config = new Config("default-config.properties");
+        Path dir = Files.createTempDirectory("multi-source");
+        Path output = dir.resolve("flickr.dwc.csv");
+        FlickrRequest pool = new FlickrRequest("pool", null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH).forSource("birds");
+        FlickrRequest search = new FlickrRequest(null, null, new String[]{"taxonomy:class=amphibia"}, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.PHOTO_SEARCH).forSource("frogs");
+        List<FlickrRequest> poolPages = new ArrayList<>();
+        for (int page = 1; page <= POOL_PAGES; page++) {
+            poolPages.add(pool.forPage(page));
+        }
+        List<FlickrRequest> searchPages = new ArrayList<>();
+        for (int page = 1; page <= SEARCH_PAGES; page++) {
+            searchPages.add(search.forPage(page));
+        }
+        List<FlickrRequest> pages = PageSource.interleave(Arrays.asList(poolPages, searchPages));
+
+        List<HarvestSource> sources = Arrays.asList(new HarvestSource("birds", "pool", null, null),
+                new HarvestSource("frogs", null, null, new String[]{"taxonomy:class=amphibia"}));
+        Map<String, HarvestState> states = new LinkedHashMap<>();
+        states.put("birds", HarvestState.load(dir.resolve("state.birds")));
+        states.put("frogs", HarvestState.load(dir.resolve("state.frogs")));
+
+        SourceFlickr flickr = new SourceFlickr(config);
+        MetadataCache metadata = new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+        PageMapper pageMapper = new PageMapper(config, metadata.getLicenses(), HarvestState.load(dir.resolve("state")), states, flickr.getMetrics());
+        try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+             PageRetrier retrier = new PageRetrier(3, 10, 100, dir.resolve("flickr.dwc.csv.deadletter"), flickr.getMetrics())) {
+            try (OutputSink sink = new PerSourceSink(output, OutputFormat.CSV, sources, ledger, false)) {
+                new InProcessPipeline(config, flickr, metadata, null, pageMapper, ledger, retrier, sink, 4, 2, 4).run(pages);
+                assertEquals(PHOTOS, sink.getRowCount());
+            }
+            for (FlickrRequest page : pages) {
+                assertTrue(ledger.isWritten(page.key()));
+            }
+        }
+
+        assertFalse(Files.exists(output));
+        List<String> birds = rows(PerSourceSink.sourcePath(output, OutputFormat.CSV, "birds"));
+        List<String> frogs = rows(PerSourceSink.sourcePath(output, OutputFormat.CSV, "frogs"));
+        Set<String> all = new HashSet<>(birds);
+        all.addAll(frogs);
+        assertEquals("every photo exactly once", PHOTOS, birds.size() + frogs.size());
+        assertEquals(PHOTOS, all.size());
+        assertTrue("photos only in the pool", birds.size() >= SEARCH_FIRST_PHOTO);
+        assertTrue("photos only in the search", frogs.size() >= PHOTOS - POOL_PAGES * PER_PAGE);
+        assertEquals(POOL_PAGES * PER_PAGE - SEARCH_FIRST_PHOTO, pageMapper.getSharedCount());
+        assertFalse(Files.exists(dir.resolve("flickr.dwc.birds.csv.ledger")));
+    }
+
+    private static List<String> rows(Path path) throws Exception {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        assertEquals(String.join(",", Config.CSV_FIELD_LIST), lines.get(0));
+        return lines.subList(1, lines.size());
+    }
+
+    /**
+     * A pool of photos 0 to 29 and a search returning photos 20 to 39.
+     */
+    private static final class SourceFlickr extends FlickrClient {
+
+        SourceFlickr(Config config) {
+            super(config, new RateLimiter(1000.0, 1000));
+        }
+
+        @Override
+        public PhotoList<Photo> getPhotos(FlickrRequest request) {
+            boolean pool = request.requestType == FlickrRequest.RequestType.POOL_SEARCH;
+            int pages = pool ? POOL_PAGES : SEARCH_PAGES;
+            long first = (pool ? 0 : SEARCH_FIRST_PHOTO) + (request.page - 1) * PER_PAGE;
+            PhotoList<Photo> photos = new PhotoList<>();
+            photos.setPage(request.page);
+            photos.setPerPage(PER_PAGE);
+            photos.setTotal(pages * PER_PAGE);
+            photos.setPages(pages);
+            for (int i = 0; i < PER_PAGE; i++) {
+                photos.add(SyntheticPhotos.photo(first + i));
+            }
+            return photos;
+        }
+
+        @Override
+        public Collection<License> getLicenses() {
+            List<License> licenses = new ArrayList<>();
+            for (Map.Entry<String, String> entry : SyntheticPhotos.LICENSES.entrySet()) {
+                License license = new License();
+                license.setId(entry.getKey());
+                license.setName(entry.getValue());
+                licenses.add(license);
+            }
+            return licenses;
+        }
+    }
+}
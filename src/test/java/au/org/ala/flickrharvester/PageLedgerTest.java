@@ -0,0 +1,46 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Unit tests for {@link PageLedger}.
+ */
+public class PageLedgerTest extends TestCase {
+
+    public void testResumeDropsTornEntriesAndUncommittedRows() throws Exception {
+        Path dir = Files.createTempDirectory("ledger");
+        Path ledgerFile = dir.resolve("out.csv.ledger");
+        Path output = dir.resolve("out.csv");
+        Files.write(output, "header\nrow1\nrow2\n".getBytes(StandardCharsets.UTF_8));
+
+        try (PageLedger ledger = PageLedger.open(ledgerFile, false)) {
+            ledger.scheduled("1");
+            ledger.scheduled("2");
+            ledger.written("1", 12);
+            ledger.written("3", -1);
+        }
+        // a half written entry and a row that never got committed, as if the JVM died mid-write
+        Files.write(ledgerFile, "W 2 1".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Files.write(output, "row3,tor".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (PageLedger ledger = PageLedger.open(ledgerFile, true)) {
+            assertTrue(ledger.isWritten("1"));
+            assertFalse(ledger.isWritten("2"));
+            assertTrue(ledger.isWritten("3"));
+            assertEquals(12, ledger.getCommittedOffset());
+            ledger.truncateToCommitted(output);
+            ledger.written("2", 17);
+        }
+        assertEquals("header\nrow1\n", new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+
+        try (PageLedger ledger = PageLedger.open(ledgerFile, true)) {
+            assertTrue(ledger.isWritten("2"));
+            assertEquals(17, ledger.getCommittedOffset());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.licenses.License;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link PageRetrier} and {@link RetryingPageSource}.
+ */
+public class PageRetrierTest extends TestCase {
+    private static final int PER_PAGE = 5;
+
+    public void testBackoffDoublesWithJitter() {
+        PageRetrier retrier = new PageRetrier(5, 100, 1000, null, null);
+        for (int i = 0; i < 100; i++) {
+            long first = retrier.delayMillis(0);
+            assertTrue(Long.toString(first), first >= 50 && first <= 100);
+            long second = retrier.delayMillis(1);
+            assertTrue(Long.toString(second), second >= 100 && second <= 200);
+            long capped = retrier.delayMillis(40);
+            assertTrue(Long.toString(capped), capped >= 500 && capped <= 1000);
+        }
+    }
+
+    public void testFlakyPagesAreRetriedAndPoisonPagesDeadLettered() throws Exception {
+        Config config = new Config("default-config.properties");
+        Path dir = Files.createTempDirectory("retry");
+        Path output = dir.resolve("flickr.dwc.csv");
+        Path deadLetters = dir.resolve("flickr.dwc.csv" + PageRetrier.DEAD_LETTER_SUFFIX);
+        FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH);
+        List<FlickrRequest> pages = new ArrayList<>();
+        for (int page = 1; page <= 4; page++) {
+            pages.add(query.forPage(page));
+        }
+
+        // page 2 comes through on its third attempt, page 3 never does
+        FlakyFlickr flickr = new FlakyFlickr(config, 2, 3);
+        MetadataCache metadata = new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+        PageMapper pageMapper = new PageMapper(config, metadata.getLicenses(), HarvestState.load(dir.resolve("state")), flickr.getMetrics());
+        try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+             PageRetrier retrier = new PageRetrier(3, 10, 100, deadLetters, flickr.getMetrics());
+             OutputSink sink = OutputFormat.CSV.open(output, Config.CSV_FIELD_LIST, ledger)) {
+            new InProcessPipeline(config, flickr, metadata, null, pageMapper, ledger, retrier, sink, 2, 1, 4).run(pages);
+            sink.checkpoint();
+
+            assertTrue(ledger.isWritten("1"));
+            assertTrue("written on the third attempt", ledger.isWritten("2"));
+            assertFalse("never written", ledger.isWritten("3"));
+            assertTrue(ledger.isWritten("4"));
+        }
+        assertEquals(3, flickr.calls.get(2).get());
+        assertEquals(3, flickr.calls.get(3).get());
+        assertEquals(4, flickr.getMetrics().getPagesRetried());
+        assertEquals(1, flickr.getMetrics().getPagesDeadLettered());
+        assertEquals(1 + 3 * PER_PAGE, Files.readAllLines(output, StandardCharsets.UTF_8).size());
+
+        List<String> dead = Files.readAllLines(deadLetters, StandardCharsets.UTF_8);
+        assertEquals(1, dead.size());
+        assertTrue(dead.get(0), dead.get(0).startsWith("3\t3\t"));
+        assertTrue(dead.get(0), dead.get(0).contains("HTTP response code: 503"));
+    }
+
+    public void testFreshPagesAreHandedOutWhileAFailedPageBacksOff() throws Exception {
+        Config config = new Config("default-config.properties");
+        FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH);
+        RetryingPageSource pages = new RetryingPageSource(PageSource.of(PageSource.pages(query, 3)));
+
+        FlickrRequest failed = pages.next();
+        pages.retry(failed, TimeUnit.MINUTES.toMillis(1));
+        long start = System.currentTimeMillis();
+        assertEquals(2, pages.next().page);
+        assertEquals(3, pages.next().page);
+        assertTrue("didn't wait for the retry", System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(10));
+    }
+
+    public void testAFailedWriteFailsTheRun() throws Exception {
+        Config config = new Config("default-config.properties");
+        Path dir = Files.createTempDirectory("retry");
+        FlickrRequest query = new FlickrRequest(config.GROUP_ID, null, null, config.EXTRAS, PER_PAGE, 1, null, null,
+                FlickrRequest.RequestType.POOL_SEARCH);
+        FlakyFlickr flickr = new FlakyFlickr(config, 0, 0);
+        MetadataCache metadata = new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+        PageMapper pageMapper = new PageMapper(config, metadata.getLicenses(), HarvestState.load(dir.resolve("state")), flickr.getMetrics());
+        try (PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+             PageRetrier retrier = new PageRetrier(3, 10, 100, null, flickr.getMetrics());
+             OutputSink sink = OutputFormat.CSV.open(dir.resolve("flickr.dwc.csv"), Config.CSV_FIELD_LIST, ledger)) {
+            OutputSink full = new OutputSink() {
+                @Override
+                public void write(String key, List<String[]> rows) throws IOException {
+                    if (key.equals("3")) {
+                        throw new IOException("No space left on device");
+                    }
+                    sink.write(key, rows);
+                }
+
+                @Override
+                public void checkpoint() throws IOException {
+                    sink.checkpoint();
+                }
+
+                @Override
+                public long getRowCount() {
+                    return sink.getRowCount();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            try {
+                new InProcessPipeline(config, flickr, metadata, null, pageMapper, ledger, retrier, full, 1, 1, 4)
+                        .run(PageSource.pages(query, 100));
+                fail();
+            } catch (IOException e) {
+                assertEquals("No space left on device", e.getMessage());
+            }
+            sink.checkpoint();
+            assertTrue(ledger.isWritten("2"));
+            assertFalse(ledger.isWritten("3"));
+            assertTrue("the fetch threads stopped", flickr.calls.size() < 100);
+        }
+    }
+
+    /**
+     * Synthetic pages, failing like an overloaded Flickr for the first two attempts at one page and every attempt at another.
+     */
+    private static final class FlakyFlickr extends FlickrClient {
+        final Map<Integer, AtomicInteger> calls = new ConcurrentHashMap<>();
+        private final int flakyPage;
+        private final int poisonPage;
+
+        FlakyFlickr(Config config, int flakyPage, int poisonPage) {
+            super(config, new RateLimiter(1000.0, 1000));
+            this.flakyPage = flakyPage;
+            this.poisonPage = poisonPage;
+        }
+
+        @Override
+        public PhotoList<Photo> getPhotos(FlickrRequest request) throws FlickrException {
+            int call = calls.computeIfAbsent(request.page, page -> new AtomicInteger()).incrementAndGet();
+            if (request.page == poisonPage || (request.page == flakyPage && call < 3)) {
+                throw new FlickrException("Server returned HTTP response code: 503 for flickr.groups.pools.getPhotos");
+            }
+            PhotoList<Photo> photos = new PhotoList<>();
+            photos.setPage(request.page);
+            photos.setPerPage(request.perPage);
+            for (int i = 0; i < request.perPage; i++) {
+                photos.add(SyntheticPhotos.photo(request.page * 1000L + i));
+            }
+            return photos;
+        }
+
+        @Override
+        public Collection<License> getLicenses() {
+            List<License> licenses = new ArrayList<>();
+            for (Map.Entry<String, String> entry : SyntheticPhotos.LICENSES.entrySet()) {
+                License license = new License();
+                license.setId(entry.getKey());
+                license.setName(entry.getValue());
+                licenses.add(license);
+            }
+            return licenses;
+        }
+    }
+}
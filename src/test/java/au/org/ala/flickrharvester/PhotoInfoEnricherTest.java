@@ -0,0 +1,118 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.tags.Tag;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link PhotoInfoEnricher}.
+ */
+public class PhotoInfoEnricherTest extends TestCase {
+    private static final FlickrRequest PAGE = new FlickrRequest(null, null, null, new String[0], 10, 1, null, null,
+            FlickrRequest.RequestType.POOL_SEARCH);
+
+    public void testDetailsAreFetchedOnceWithinTheConcurrencyLimit() throws Exception {
+        Config config = new Config("default-config.properties");
+        InfoFlickr flickr = new InfoFlickr(config);
+        PhotoInfoEnricher enricher = new PhotoInfoEnricher(flickr, cache(flickr), 2, 4);
+
+        // the same five photos turn up in each of six pages, enriched at the same time
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        List<Future<PhotoList<Photo>>> pages = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            pages.add(pool.submit(() -> {
+                PhotoList<Photo> page = page(1, 2, 3, 4, 5);
+                enricher.enrich(PAGE, page);
+                return page;
+            }));
+        }
+        for (Future<PhotoList<Photo>> page : pages) {
+            Photo photo = page.get(10, TimeUnit.SECONDS).get(0);
+            assertEquals("dwc:scientificName=Dacelo novaeguineae", photo.getTags().iterator().next().getValue());
+            assertEquals("Melbourne, Australia", photo.getOwner().getLocation());
+        }
+        pool.shutdown();
+
+        assertEquals(5, flickr.calls.get());
+        assertEquals(5, enricher.getFetchedCount());
+        assertEquals(25, enricher.getCachedCount() + enricher.getSharedCount());
+        assertTrue("at most 2 calls at once, saw " + flickr.maxConcurrent.get(), flickr.maxConcurrent.get() <= 2);
+    }
+
+    public void testOnlyChangedPhotosAreFetchedAgain() throws Exception {
+        Config config = new Config("default-config.properties");
+        InfoFlickr flickr = new InfoFlickr(config);
+        PhotoInfoEnricher enricher = new PhotoInfoEnricher(flickr, cache(flickr), 2, 4);
+
+        enricher.enrich(PAGE, page(1, 2));
+        PhotoList<Photo> again = page(1, 2);
+        again.get(1).setLastUpdate(new Date(again.get(1).getLastUpdate().getTime() + 1000));
+        enricher.enrich(PAGE, again);
+        assertEquals("only the updated photo", 3, flickr.calls.get());
+        assertEquals("Melbourne, Australia", again.get(0).getOwner().getLocation());
+
+        FlickrRequest incremental = new FlickrRequest(null, null, null, new String[0], 10, 1, null, null,
+                FlickrRequest.RequestType.PHOTO_SEARCH, null, null, new Date(Long.MAX_VALUE));
+        enricher.enrich(incremental, page(7));
+        assertEquals(3, flickr.calls.get());
+        assertEquals(1, enricher.getSkippedCount());
+    }
+
+    private static MetadataCache cache(FlickrClient flickr) throws Exception {
+        return new MetadataCache(flickr, 1000, TimeUnit.HOURS.toMillis(1), null, false, false);
+    }
+
+    private static PhotoList<Photo> page(long... ids) {
+        PhotoList<Photo> page = new PhotoList<>();
+        for (long id : ids) {
+            page.add(SyntheticPhotos.photo(id));
+        }
+        return page;
+    }
+
+    /**
+     * Answers photos.getInfo slowly enough for concurrent callers to overlap, keeping count.
+     */
+    private static final class InfoFlickr extends FlickrClient {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        InfoFlickr(Config config) {
+            super(config, new RateLimiter(1000.0, 1000));
+        }
+
+        @Override
+        public Photo getPhotoInfo(String photoId, String secret) {
+            calls.incrementAndGet();
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+            Photo info = SyntheticPhotos.photo(Long.parseLong(photoId));
+            Tag tag = new Tag();
+            tag.setValue("dwc:scientificname=daceloNovaeguineae");
+            tag.setRaw("dwc:scientificName=Dacelo novaeguineae");
+            info.setTags(Collections.singletonList(tag));
+            User owner = info.getOwner();
+            owner.setLocation("Melbourne, Australia");
+            return info;
+        }
+    }
+}
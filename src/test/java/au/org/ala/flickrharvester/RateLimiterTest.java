@@ -0,0 +1,45 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link RateLimiter}.
+ */
+public class RateLimiterTest extends TestCase {
+
+    public void testBurstIsFreeThenRateApplies() throws Exception {
+        RateLimiter limiter = new RateLimiter(20.0, 3);
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire();
+        }
+        assertTrue("burst should not wait", System.nanoTime() - start < 40_000_000L);
+        limiter.acquire();
+        limiter.acquire();
+        assertTrue("calls past the burst should wait", limiter.getTotalWaitMillis() >= 40);
+        assertEquals(5, limiter.getPermitsIssued());
+    }
+
+    public void testThrottleHalvesRate() {
+        RateLimiter limiter = new RateLimiter(8.0, 1);
+        limiter.onThrottled();
+        assertEquals(4.0, limiter.getCurrentRate(), 0.0001);
+        limiter.onThrottled();
+        assertEquals(2.0, limiter.getCurrentRate(), 0.0001);
+        assertEquals(2, limiter.getThrottleCount());
+        // recovery only happens after a quiet period
+        limiter.onSuccess();
+        assertEquals(2.0, limiter.getCurrentRate(), 0.0001);
+    }
+
+    public void testThrottleDetection() {
+        assertTrue(FlickrClient.isThrottled(new com.flickr4java.flickr.FlickrException("Rate limit exceeded")));
+        assertTrue(FlickrClient.isThrottled(new RuntimeException("Server returned HTTP response code: 503")));
+        assertTrue(FlickrClient.isThrottled(new com.flickr4java.flickr.FlickrException("105", "Service currently unavailable")));
+        assertTrue(FlickrClient.isThrottled(new com.flickr4java.flickr.FlickrException("999", "Service currently unavailable")));
+        assertTrue(FlickrClient.isThrottled(new com.flickr4java.flickr.FlickrException("0", "Sorry, the Flickr API service is not currently available.")));
+        assertFalse(FlickrClient.isThrottled(new com.flickr4java.flickr.FlickrException("1", "Group not found")));
+        assertFalse("a status code only counts as one", FlickrClient.isThrottled(
+                new com.flickr4java.flickr.FlickrException("1", "Photo 503 not found in the pool, per_page=500")));
+    }
+}
@@ -0,0 +1,185 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link RecordIndex} and the {@link DeduplicatingSink} in front of it.
+ */
+public class RecordIndexTest extends TestCase {
+    private static final int RECORDS = 5000;
+
+    public void testRecordsAreClassifiedAcrossRuns() throws Exception {
+        Path file = Files.createTempDirectory("index").resolve("flickrharvester.state.index");
+
+        RecordIndex first = RecordIndex.load(file);
+        // 0 marks an empty slot, keys are hashes and only start at 1 here to keep the test readable
+        for (long key = 1; key <= RECORDS; key++) {
+            assertEquals(RecordIndex.Status.NEW, first.classify(key, key * 7, null));
+        }
+        assertEquals(RecordIndex.Status.DUPLICATE, first.classify(42, 42 * 7, null));
+        assertEquals(RecordIndex.Status.DUPLICATE, first.classify(RECORDS, 0, null));
+        assertEquals(RECORDS, first.getSize());
+        first.save();
+
+        RecordIndex second = RecordIndex.load(file);
+        assertEquals(RECORDS, second.getSize());
+        assertEquals(RecordIndex.Status.UNCHANGED, second.classify(1, 7, null));
+        assertEquals(RecordIndex.Status.CHANGED, second.classify(2, 15, null));
+        assertEquals(RecordIndex.Status.DUPLICATE, second.classify(2, 15, null));
+        assertEquals(RecordIndex.Status.NEW, second.classify(RECORDS + 1, 0, null));
+        second.save();
+
+        RecordIndex third = RecordIndex.load(file);
+        assertEquals(RECORDS + 1, third.getSize());
+        assertEquals("the change was kept", RecordIndex.Status.UNCHANGED, third.classify(2, 15, null));
+    }
+
+    public void testUnseenRecordsAreRemoved() throws Exception {
+        Path file = Files.createTempDirectory("index").resolve("flickrharvester.state.index");
+        int[] keyColumns = {DwcRecordMapper.OCCURRENCE_ID};
+
+        RecordIndex first = RecordIndex.load(file);
+        for (int i = 0; i < RECORDS; i++) {
+            first.classify(row("photo" + i, "first"), keyColumns);
+        }
+        first.save();
+        first.close();
+
+        RecordIndex second = RecordIndex.load(file);
+        for (int i = 0; i < RECORDS; i += 2) {
+            second.classify(row("photo" + i, "first"), keyColumns);
+        }
+        List<String> removed = new ArrayList<>();
+        second.removeUnseen(removed::add);
+        assertEquals(RECORDS / 2, removed.size());
+        assertEquals(RECORDS / 2, second.getRemovedCount());
+        Collections.sort(removed);
+        assertEquals("photo1", removed.get(0));
+        second.save();
+        second.close();
+
+        RecordIndex third = RecordIndex.load(file);
+        assertEquals(RECORDS / 2, third.getSize());
+        assertEquals(RecordIndex.Status.NEW, third.classify(row("photo1", "first"), keyColumns));
+        assertEquals(RecordIndex.Status.UNCHANGED, third.classify(row("photo2", "first"), keyColumns));
+        third.close();
+    }
+
+    public void testLicenseChangesAreToldApart() throws Exception {
+        int[] keyColumns = {DwcRecordMapper.OCCURRENCE_ID};
+        Path file = Files.createTempDirectory("index").resolve("flickrharvester.state.index");
+        RecordIndex first = RecordIndex.load(file);
+        first.classify(licensed(row("a", "first"), "CC BY"), keyColumns);
+        first.classify(licensed(row("b", "first"), "CC BY"), keyColumns);
+        first.save();
+        first.close();
+
+        RecordIndex second = RecordIndex.load(file);
+        assertEquals(RecordIndex.Status.CHANGED, second.classify(licensed(row("a", "second"), "CC BY"), keyColumns));
+        assertEquals(RecordIndex.Status.RELICENSED, second.classify(licensed(row("b", "first"), "CC BY-NC"), keyColumns));
+        second.close();
+    }
+
+    public void testChangesAreWrittenToTheirOwnOutputs() throws Exception {
+        Path dir = Files.createTempDirectory("diff");
+        Path output = dir.resolve("flickr.dwc.csv");
+        Path indexFile = dir.resolve("flickrharvester.state.index");
+        int[] keyColumns = {DwcRecordMapper.OCCURRENCE_ID};
+
+        RecordIndex first = RecordIndex.load(indexFile);
+        PageLedger ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+        try (ChangeDataSink sink = new ChangeDataSink(output, OutputFormat.CSV, first, keyColumns, ledger)) {
+            sink.write("1", Arrays.asList(licensed(row("a", "first"), "CC BY"), licensed(row("b", "first"), "CC BY"),
+                    licensed(row("c", "first"), "CC BY")));
+            sink.writeRemoved();
+        }
+        ledger.close();
+        first.save();
+        first.close();
+        assertEquals(4, Files.readAllLines(ChangeDataSink.changePath(output, OutputFormat.CSV, ChangeDataSink.ADDED)).size());
+
+        RecordIndex second = RecordIndex.load(indexFile);
+        ledger = PageLedger.open(dir.resolve("flickr.dwc.csv.ledger"), false);
+        try (ChangeDataSink sink = new ChangeDataSink(output, OutputFormat.CSV, second, keyColumns, ledger)) {
+            sink.write("1", Arrays.asList(licensed(row("a", "second"), "CC BY"), licensed(row("b", "first"), "CC BY-NC"),
+                    licensed(row("d", "first"), "CC BY")));
+            sink.checkpoint();
+            assertTrue(ledger.isWritten("1"));
+            sink.writeRemoved();
+        }
+        ledger.close();
+        second.close();
+
+        List<String> added = Files.readAllLines(ChangeDataSink.changePath(output, OutputFormat.CSV, ChangeDataSink.ADDED));
+        List<String> updated = Files.readAllLines(ChangeDataSink.changePath(output, OutputFormat.CSV, ChangeDataSink.UPDATED));
+        List<String> removed = Files.readAllLines(ChangeDataSink.changePath(output, OutputFormat.CSV, ChangeDataSink.REMOVED));
+        assertEquals("header, b under its new license and d", 3, added.size());
+        assertEquals(2, updated.size());
+        assertTrue(updated.get(1).contains("second"));
+        assertEquals("header, b under its old license and c", 3, removed.size());
+        assertFalse(removed.get(1).contains("first"));
+        assertFalse(Files.exists(dir.resolve("flickr.dwc.added.csv.ledger")));
+    }
+
+    public void testHashesTellColumnsApart() {
+        assertFalse(RecordIndex.hash(new String[]{"ab", "c"}) == RecordIndex.hash(new String[]{"a", "bc"}));
+        assertEquals(RecordIndex.hash(new String[]{null, "x"}), RecordIndex.hash(new String[]{"", "x"}));
+        assertEquals(RecordIndex.hash(new String[]{"k", "x"}, new int[]{0}), RecordIndex.hash(new String[]{"k", "y"}, new int[]{0}));
+    }
+
+    public void testSinkDropsRowsAlreadyWritten() throws Exception {
+        int[] keyColumns = DeduplicatingSink.keyColumns(new String[]{"photoPageUrl"});
+        assertTrue(Arrays.equals(new int[]{DwcRecordMapper.OCCURRENCE_ID}, keyColumns));
+
+        CollectingSink rows = new CollectingSink();
+        DeduplicatingSink sink = new DeduplicatingSink(rows, RecordIndex.load(null), keyColumns);
+        sink.write("1", Arrays.asList(row("a", "first"), row("b", "first")));
+        // the pool shifted by one while paging, "b" comes round again
+        sink.write("2", Arrays.asList(row("b", "first"), row("c", "first"), row(null, "unkeyed"), row(null, "unkeyed")));
+        assertEquals(5, rows.rows.size());
+        assertEquals(Arrays.asList("1", "2"), rows.keys);
+    }
+
+    private static String[] row(String occurrenceId, String remarks) {
+        String[] row = DwcRecordMapper.newRecord();
+        row[DwcRecordMapper.OCCURRENCE_ID] = occurrenceId;
+        row[DwcRecordMapper.OCCURRENCE_REMARKS] = remarks;
+        return row;
+    }
+
+    private static String[] licensed(String[] row, String license) {
+        row[DwcRecordMapper.LICENSE] = license;
+        return row;
+    }
+
+    private static final class CollectingSink implements OutputSink {
+        final List<String[]> rows = new ArrayList<>();
+        final List<String> keys = new ArrayList<>();
+
+        @Override
+        public void write(String key, List<String[]> page) {
+            keys.add(key);
+            rows.addAll(page);
+        }
+
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public long getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * How long a short harvest against a {@link FlickrStandIn} takes to write its first row.
+ */
+public class StartupTimeTest extends TestCase {
+    private static final int PHOTOS = 1000;
+
+    public void testFirstRowWithinASecondOnAWarmJvm() throws Exception {
+        Path dir = Files.createTempDirectory("startup");
+        try (FlickrStandIn flickr = new FlickrStandIn(PHOTOS, 0, 0, 0)) {
+            String config = flickr.writeConfig(dir.resolve("config.properties"), Collections.emptyMap()).toString();
+            // the first run loads the classes and warms the JIT, the second is the one timed
+            harvest(config, dir, "warm");
+            FlickrHarvester harvester = harvest(config, dir, "timed");
+
+            StartupTimer startup = harvester.getStartup();
+            long firstRow = startup.getTimeToFirstRowMillis();
+            assertTrue(startup.breakdown(), firstRow >= 0 && firstRow < 1000);
+            assertTrue(startup.breakdown(), startup.breakdown().contains("page count"));
+            assertFalse("a short harvest doesn't start the broker", startup.breakdown().contains("broker"));
+        }
+        assertEquals(PHOTOS + 1, Files.readAllLines(dir.resolve("timed.csv"), StandardCharsets.UTF_8).size());
+    }
+
+    public void testAutoStaysInProcessWithTheShippedConfig() throws Exception {
+        Path dir = Files.createTempDirectory("startup");
+        try (FlickrStandIn flickr = new FlickrStandIn(PHOTOS, 0, 0, 0)) {
+            // 100 pages, past the jms_min_pages the config used to ship with
+            Map<String, String> settings = Collections.singletonMap("flickr.per_page", "10");
+            String config = flickr.writeConfig(dir.resolve("config.properties"), settings).toString();
+            FlickrHarvester harvester = harvest(config, dir, "long");
+            assertFalse("the broker isn't started until JMS is verified", harvester.getStartup().breakdown().contains("broker"));
+        }
+        assertEquals(PHOTOS + 1, Files.readAllLines(dir.resolve("long.csv"), StandardCharsets.UTF_8).size());
+    }
+
+    private static FlickrHarvester harvest(String config, Path dir, String name) throws Exception {
+        FlickrHarvester harvester = new FlickrHarvester(config, dir + "/", name + ".csv", false, dir.resolve(name + ".state").toString(), false,
+                FlickrHarvester.Engine.AUTO, OutputFormat.CSV, false, false);
+        harvester.run(4, 2);
+        return harvester;
+    }
+}
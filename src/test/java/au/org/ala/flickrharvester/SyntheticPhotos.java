@@ -0,0 +1,76 @@
+package au.org.ala.flickrharvester;
+
+import com.flickr4java.flickr.photos.GeoData;
+import com.flickr4java.flickr.photos.Photo;
+import com.flickr4java.flickr.people.User;
+import com.flickr4java.flickr.places.Place;
+import com.flickr4java.flickr.tags.Tag;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Photos that look like what the group pool returns, for tests and benchmarks that can't talk to Flickr.
+ */
+public final class SyntheticPhotos {
+
+    public static final Map<String, String> LICENSES = new HashMap<>();
+
+    static {
+        LICENSES.put("0", "All Rights Reserved");
+        LICENSES.put("2", "Attribution-NonCommercial License");
+        LICENSES.put("4", "Attribution License");
+    }
+
+    private SyntheticPhotos() {
+    }
+
+    public static Photo photo(long id) {
+        Photo photo = new Photo();
+        photo.setId(Long.toString(id));
+        photo.setSecret("abcdef1234");
+        photo.setOriginalSecret("0123456789");
+        photo.setOriginalFormat("jpg");
+        photo.setFarm("5");
+        photo.setServer("4321");
+        photo.setUrl("https://flickr.com/photos/12345678@N00/" + id);
+        photo.setLicense(id % 2 == 0 ? "2" : "4");
+        photo.setDescription("Spotted near the creek crossing, see http://www.biodiversitylibrary.org/page/" + id + " for the plate");
+        photo.setDateTaken(new Date(1494288000000L + id * 1000));
+        photo.setDatePosted(new Date(1494374400000L + id * 1000));
+        photo.setLastUpdate(new Date(1494460800000L + id * 1000));
+
+        User owner = new User();
+        owner.setId("12345678@N00");
+        owner.setUsername("jcitizen");
+        owner.setRealName(id % 3 == 0 ? null : "Jane Citizen");
+        owner.setLocation("Canberra, Australia");
+        photo.setOwner(owner);
+
+        photo.setGeoData(new GeoData("149.13", "-35.2809", "16"));
+        Place country = new Place();
+        country.setName("Australia");
+        photo.setCountry(country);
+        Place region = new Place();
+        region.setName("Australian Capital Territory");
+        photo.setRegion(region);
+
+        List<Tag> tags = new ArrayList<>();
+        tags.add(tag("kookaburra"));
+        tags.add(tag("geo:country=australia"));
+        tags.add(tag("dwc:scientificname=Dacelo novaeguineae"));
+        tags.add(tag("dwc:vernacularName=Laughing Kookaburra"));
+        tags.add(tag("taxonomy:binomial=Dacelo novaeguineae"));
+        photo.setTags(tags);
+        return photo;
+    }
+
+    private static Tag tag(String value) {
+        Tag tag = new Tag();
+        tag.setValue(value);
+        return tag;
+    }
+}
@@ -0,0 +1,68 @@
+package au.org.ala.flickrharvester;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link UploadDatePartitioner}.
+ */
+public class UploadDatePartitionerTest extends TestCase {
+
+    private static final FlickrRequest QUERY = new FlickrRequest("806927@N20", null, null, new String[0], 10, 1,
+            null, null, FlickrRequest.RequestType.POOL_SEARCH);
+
+    public void testSplitsLargeWindowsAndCoversEveryPhoto() throws Exception {
+        // 1000 photos bunched into the first day, then one every hour or so
+        List<Long> uploads = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            uploads.add(1400000000L + i * 60);
+        }
+        for (int i = 0; i < 200; i++) {
+            uploads.add(1500000000L + i * 4000);
+        }
+        UploadDatePartitioner partitioner = new UploadDatePartitioner(request -> (int) uploads.stream()
+                .filter(upload -> upload >= request.minUploadDate.getTime() / 1000 && upload <= request.maxUploadDate.getTime() / 1000)
+                .count(), 100, 4);
+
+        List<UploadDatePartitioner.Window> windows = partitioner.partition(QUERY, new Date(1300000000000L), new Date(1600000000000L));
+
+        int total = 0;
+        long previousTo = 0;
+        for (UploadDatePartitioner.Window window : windows) {
+            assertTrue(window.total > 0 && window.total <= 100);
+            assertTrue("windows must not overlap", window.fromSeconds > previousTo);
+            previousTo = window.toSeconds;
+            total += window.total;
+        }
+        assertEquals(uploads.size(), total);
+
+        List<FlickrRequest> pages = UploadDatePartitioner.requests(QUERY, windows);
+        Set<String> keys = new HashSet<>();
+        for (FlickrRequest page : pages) {
+            assertEquals(FlickrRequest.RequestType.PHOTO_SEARCH, page.requestType);
+            keys.add(page.key());
+        }
+        assertEquals("every page needs its own ledger key", pages.size(), keys.size());
+    }
+
+    public void testPlanRoundTrip() throws Exception {
+        Path plan = Files.createTempDirectory("plan").resolve("out.csv.partitions");
+        List<UploadDatePartitioner.Window> windows = new ArrayList<>();
+        windows.add(new UploadDatePartitioner.Window(10, 19, 7));
+        windows.add(new UploadDatePartitioner.Window(20, 40, 3));
+        UploadDatePartitioner.savePlan(plan, windows);
+
+        List<UploadDatePartitioner.Window> loaded = UploadDatePartitioner.loadPlan(plan);
+        assertEquals(2, loaded.size());
+        assertEquals(20, loaded.get(1).fromSeconds);
+        assertEquals(40, loaded.get(1).toSeconds);
+        assertEquals(3, loaded.get(1).total);
+    }
+}